@@ -0,0 +1,216 @@
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import exceptions.StockUnavailableException;
+import impl.Factory;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.ShopConfig;
+import interfaces.ShopEngine;
+import interfaces.ShopResult;
+
+/**
+ * JMH benchmarks for every IShop method on a shop made by the factory with each engine.
+ * Each benchmark runs over catalogs of 10 to 1,000,000 products, with barcodes drawn so that the given
+ * fraction of them are registered. Run with -t to set the number of tills and -prof gc for allocation rate.
+ * The SIMPLE and COLUMNAR shops aren't thread safe, so they refuse to run with more than one till.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShopBenchmark {
+
+    private static final int PROBES = 1 << 16;
+
+    /**
+     * The shop and the barcodes looked up in it, shared by every thread.
+     * Every product is restocked before each iteration, sharing half the range of the shop's int total between them.
+     */
+    @State(Scope.Benchmark)
+    public static class ShopState {
+
+        @Param({"SIMPLE", "CONCURRENT", "SHARDED", "COLUMNAR"})
+        public ShopEngine engine;
+
+        @Param({"10", "1000", "100000", "1000000"})
+        public int catalogSize;
+
+        @Param({"1.0", "0.5", "0.0"})
+        public double hitRatio;
+
+        IShop shop;
+        IProduct[] products;
+        String[] probes;
+        int stockPerProduct;
+
+        @Setup(Level.Trial)
+        public void createShop(BenchmarkParams params) throws BarCodeAlreadyInUseException {
+            if (params.getThreads() > 1 && (this.engine == ShopEngine.SIMPLE || this.engine == ShopEngine.COLUMNAR)) {
+                throw new IllegalStateException("The " + this.engine + " shop isn't thread safe, run it with -t 1");
+            }
+            this.shop = Factory.getInstance().makeShop(ShopConfig.DEFAULT.withEngine(this.engine));
+            this.stockPerProduct = Integer.MAX_VALUE / 2 / this.catalogSize;
+            this.products = new IProduct[this.catalogSize];
+            for (int i = 0; i < this.catalogSize; i++) {
+                this.products[i] = Factory.getInstance().makeProduct(barCode(i), "Product " + i);
+                this.shop.registerProduct(this.products[i]);
+            }
+            Random random = new Random(42);
+            this.probes = new String[PROBES];
+            for (int i = 0; i < PROBES; i++) {
+                boolean hit = random.nextDouble() < this.hitRatio;
+                this.probes[i] = hit ? barCode(random.nextInt(this.catalogSize)) : barCode(this.catalogSize + random.nextInt(PROBES));
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void restock() throws ProductNotRegisteredException {
+            for (IProduct product : this.products) {
+                int stock = this.shop.lookupStock(product.getBarCode());
+                if (stock < this.stockPerProduct) {
+                    this.shop.addStock(product.getBarCode(), this.stockPerProduct - stock);
+                }
+            }
+        }
+
+        private static String barCode(int i) {
+            return Long.toString(5_000_000_000_000L + i);
+        }
+    }
+
+    /**
+     * Where each thread is up to in the probe barcodes.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+        private int registered;
+
+        @Setup(Level.Trial)
+        public void start() {
+            this.next = (int) Thread.currentThread().getId() * 7919;
+        }
+
+        String next(ShopState state) {
+            return state.probes[this.next++ & (PROBES - 1)];
+        }
+
+        IProduct newProduct() {
+            return Factory.getInstance().makeProduct("T" + Thread.currentThread().getId() + "-" + (this.registered++ & 1023), "New Product");
+        }
+    }
+
+    @Benchmark
+    public IProduct registerAndUnregister(ShopState state, Cursor cursor)
+            throws BarCodeAlreadyInUseException, ProductNotRegisteredException {
+        IProduct product = cursor.newProduct();
+        state.shop.registerProduct(product);
+        state.shop.unregisterProduct(product);
+        return product;
+    }
+
+    @Benchmark
+    public void addStock(ShopState state, Cursor cursor) throws ProductNotRegisteredException {
+        state.shop.addStock(cursor.next(state));
+    }
+
+    @Benchmark
+    public void buyProduct(ShopState state, Cursor cursor) throws StockUnavailableException, ProductNotRegisteredException {
+        state.shop.buyProduct(cursor.next(state));
+    }
+
+    @Benchmark
+    public void addStockBulk(ShopState state, Cursor cursor) throws ProductNotRegisteredException {
+        state.shop.addStock(cursor.next(state), 12);
+    }
+
+    @Benchmark
+    public void buyProductBulk(ShopState state, Cursor cursor) throws StockUnavailableException, ProductNotRegisteredException {
+        state.shop.buyProduct(cursor.next(state), 12);
+    }
+
+    @Benchmark
+    public ShopResult tryBuy(ShopState state, Cursor cursor) {
+        return state.shop.tryBuy(cursor.next(state), 1);
+    }
+
+    @Benchmark
+    public ShopResult tryAddStock(ShopState state, Cursor cursor) {
+        return state.shop.tryAddStock(cursor.next(state), 1);
+    }
+
+    @Benchmark
+    public boolean checkout(ShopState state, Cursor cursor) throws StockUnavailableException, ProductNotRegisteredException {
+        Map<String, Integer> basket = new HashMap<>();
+        basket.put(cursor.next(state), 1);
+        basket.put(cursor.next(state), 2);
+        basket.put(cursor.next(state), 1);
+        return state.shop.checkout(basket);
+    }
+
+    @Benchmark
+    public int getStockCount(ShopState state, Cursor cursor) throws ProductNotRegisteredException {
+        return state.shop.getStockCount(cursor.next(state));
+    }
+
+    @Benchmark
+    public int getNumberOfSales(ShopState state, Cursor cursor) throws ProductNotRegisteredException {
+        return state.shop.getNumberOfSales(cursor.next(state));
+    }
+
+    @Benchmark
+    public int lookupStock(ShopState state, Cursor cursor) {
+        return state.shop.lookupStock(cursor.next(state));
+    }
+
+    @Benchmark
+    public int lookupSales(ShopState state, Cursor cursor) {
+        return state.shop.lookupSales(cursor.next(state));
+    }
+
+    @Benchmark
+    public int getNumberOfProducts(ShopState state) {
+        return state.shop.getNumberOfProducts();
+    }
+
+    @Benchmark
+    public int getTotalStockCount(ShopState state) {
+        return state.shop.getTotalStockCount();
+    }
+
+    @Benchmark
+    public IProduct getMostPopular(ShopState state) throws ProductNotRegisteredException {
+        return state.shop.getMostPopular();
+    }
+
+    @Benchmark
+    public List<IProduct> getTopSellers(ShopState state) {
+        return state.shop.getTopSellers(10);
+    }
+
+}
@@ -1,8 +1,38 @@
 package exceptions;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This exception should be used to indicate when multiple products share the same barcode.
+ * When it reports a batch of conflicts, such as from a bulk load, the clashing barcodes are listed.
  *
  */
 public class BarCodeAlreadyInUseException extends Exception {
+
+    private final List<String> barCodes;
+
+    /**
+     * Constructor for a single clash
+     */
+    public BarCodeAlreadyInUseException() {
+        this.barCodes = Collections.emptyList();
+    }
+
+    /**
+     * Constructor for a batch of clashes
+     * @param barCodes the barcodes that were already in use
+     */
+    public BarCodeAlreadyInUseException(List<String> barCodes) {
+        super(barCodes.size() + " bar codes already in use");
+        this.barCodes = Collections.unmodifiableList(new ArrayList<>(barCodes));
+    }
+
+    /**
+     * @return the barcodes that were already in use, empty for a single clash
+     */
+    public List<String> getBarCodes() {
+        return this.barCodes;
+    }
 }
@@ -0,0 +1,210 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import interfaces.IProduct;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
+
+/**
+ * This class is a listener that hands shop events to another listener on a background thread.
+ * Tills only pay for putting the event on a bounded queue, the background thread takes events off in batches
+ * and passes them on in the order they were published. If the queue is full the event is dropped and counted
+ * rather than making the till wait.
+ *
+ */
+public class AsyncShopListener implements ShopListener, AutoCloseable {
+
+    /**
+     * The number of events that can be waiting when no capacity is given.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * The largest number of events passed on per batch when no batch size is given.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final ShopListener delegate;
+    private final ArrayBlockingQueue<Event> queue;
+    private final int batchSize;
+    private final LongAdder dropped;
+    private final AtomicLong accepted;
+    private final AtomicLong delivered;
+    private final Thread worker;
+    private volatile boolean running;
+
+    /**
+     * Constructor with the default capacity and batch size
+     * @param delegate the listener to pass events on to
+     */
+    public AsyncShopListener(ShopListener delegate) {
+        this(delegate, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor that starts the background thread
+     * @param delegate the listener to pass events on to
+     * @param capacity the number of events that can be waiting before new events are dropped
+     * @param batchSize the largest number of events taken off the queue at once
+     * @throws IllegalArgumentException if the capacity or batch size is less than one
+     */
+    public AsyncShopListener(ShopListener delegate, int capacity, int batchSize) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Capacity and batch size must be at least one");
+        }
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.dropped = new LongAdder();
+        this.accepted = new AtomicLong();
+        this.delivered = new AtomicLong();
+        this.running = true;
+        this.worker = new Thread(this::drain, "shop-listener");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void productRegistered(IProduct product) {
+        publish(new Event(EventType.REGISTERED, product, null, 0, 0, null, null));
+    }
+
+    @Override
+    public void productUnregistered(IProduct product, int stockCount) {
+        publish(new Event(EventType.UNREGISTERED, product, null, 0, stockCount, null, null));
+    }
+
+    @Override
+    public void stockAdded(String barCode, int quantity, int stockCount) {
+        publish(new Event(EventType.STOCK_ADDED, null, barCode, quantity, stockCount, null, null));
+    }
+
+    @Override
+    public void productSold(String barCode, int quantity, int stockCount) {
+        publish(new Event(EventType.SOLD, null, barCode, quantity, stockCount, null, null));
+    }
+
+    @Override
+    public void operationFailed(ShopOperation operation, String barCode, ShopResult result) {
+        publish(new Event(EventType.FAILED, null, barCode, 0, 0, operation, result));
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Waits until every event accepted so far has been passed on
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        long target = this.accepted.get();
+        while (this.delivered.get() < target && this.worker.isAlive()) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stops the background thread once the events already queued have been passed on
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        this.worker.interrupt();
+        try {
+            this.worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publish(Event event) {
+        if (this.running && this.queue.offer(event)) {
+            this.accepted.incrementAndGet();
+        } else {
+            this.dropped.increment();
+        }
+    }
+
+    private void drain() {
+        List<Event> batch = new ArrayList<>(this.batchSize);
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                if (this.queue.drainTo(batch, this.batchSize) == 0) {
+                    batch.add(this.queue.take());
+                    this.queue.drainTo(batch, this.batchSize - 1);
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            for (Event event : batch) {
+                dispatch(event);
+            }
+            this.delivered.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void dispatch(Event event) {
+        try {
+            switch (event.type) {
+                case REGISTERED:
+                    this.delegate.productRegistered(event.product);
+                    break;
+                case UNREGISTERED:
+                    this.delegate.productUnregistered(event.product, event.stockCount);
+                    break;
+                case STOCK_ADDED:
+                    this.delegate.stockAdded(event.barCode, event.quantity, event.stockCount);
+                    break;
+                case SOLD:
+                    this.delegate.productSold(event.barCode, event.quantity, event.stockCount);
+                    break;
+                default:
+                    this.delegate.operationFailed(event.operation, event.barCode, event.result);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // a failing listener mustn't stop the events behind it being delivered
+        }
+    }
+
+    private enum EventType {
+        REGISTERED, UNREGISTERED, STOCK_ADDED, SOLD, FAILED
+    }
+
+    /**
+     * A queued shop event.
+     */
+    private static final class Event {
+
+        private final EventType type;
+        private final IProduct product;
+        private final String barCode;
+        private final int quantity;
+        private final int stockCount;
+        private final ShopOperation operation;
+        private final ShopResult result;
+
+        Event(EventType type, IProduct product, String barCode, int quantity, int stockCount,
+                ShopOperation operation, ShopResult result) {
+            this.type = type;
+            this.product = product;
+            this.barCode = barCode;
+            this.quantity = quantity;
+            this.stockCount = stockCount;
+            this.operation = operation;
+            this.result = result;
+        }
+    }
+
+}
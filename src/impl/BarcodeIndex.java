@@ -0,0 +1,105 @@
+package impl;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IStockRecord;
+import interfaces.ShopListener;
+
+/**
+ * This class is a listener that keeps a shop's products sorted by barcode, so the products of one manufacturer,
+ * whose GS1 barcodes share a prefix, or a range of barcodes can be listed without scanning the catalog.
+ * The index is a skip list, so finding where a prefix or range starts costs O(log n) and each product after that
+ * costs O(1). Queries return lazy iterators over a view of the index: they read the products as they are asked for,
+ * and see products registered or unregistered while they are being used wherever the iterator hasn't passed yet.
+ * Barcodes are ordered as strings, so numeric barcodes of different lengths sort by their digits from the left.
+ *
+ */
+public class BarcodeIndex implements ShopListener {
+
+    private final ConcurrentSkipListMap<String, IProduct> products;
+
+    /**
+     * Constructor for an empty index
+     */
+    public BarcodeIndex() {
+        this.products = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Starts indexing a shop, including the products it already has
+     * @param shop the shop to index
+     */
+    public void attach(IShop shop) {
+        shop.addListener(this);
+        for (IStockRecord record : shop.snapshot().getStockRecords()) {
+            this.products.putIfAbsent(record.getProduct().getBarCode(), record.getProduct());
+        }
+    }
+
+    /**
+     * Lists the products whose barcodes start with a prefix, in barcode order
+     * @param prefix the start of the barcodes, where the empty string matches every product
+     * @return a lazy iterator over the matching products
+     * @throws IllegalArgumentException if the prefix is null
+     */
+    public Iterator<IProduct> productsWithPrefix(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("Prefix must not be null");
+        }
+        String end = successor(prefix);
+        NavigableMap<String, IProduct> matches = end == null ? this.products.tailMap(prefix, true)
+                : this.products.subMap(prefix, true, end, false);
+        return Collections.unmodifiableCollection(matches.values()).iterator();
+    }
+
+    /**
+     * Lists the products whose barcodes are between two barcodes, in barcode order
+     * @param from the lowest barcode to include, or null to start at the lowest in the index
+     * @param to the highest barcode to include, or null to go on to the highest in the index
+     * @return a lazy iterator over the products in the range, which is empty if from is after to
+     */
+    public Iterator<IProduct> productsInRange(String from, String to) {
+        NavigableMap<String, IProduct> range;
+        if (from != null && to != null) {
+            range = from.compareTo(to) > 0 ? Collections.emptyNavigableMap() : this.products.subMap(from, true, to, true);
+        } else if (from != null) {
+            range = this.products.tailMap(from, true);
+        } else if (to != null) {
+            range = this.products.headMap(to, true);
+        } else {
+            range = this.products;
+        }
+        return Collections.unmodifiableCollection(range.values()).iterator();
+    }
+
+    @Override
+    public void productRegistered(IProduct product) {
+        this.products.put(product.getBarCode(), product);
+    }
+
+    @Override
+    public void productUnregistered(IProduct product, int stockCount) {
+        this.products.remove(product.getBarCode(), product);
+    }
+
+    /**
+     * Gets the first string after every string that starts with the prefix
+     * @return the prefix with its last character that can be raised raised by one and the rest cut off,
+     *         or null if every character is already the highest, so no string comes after them all
+     */
+    private static String successor(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,183 @@
+package impl;
+
+import java.util.HashMap;
+
+/**
+ * This class maps barcodes to slot numbers, keeping numeric barcodes as primitive longs.
+ * Barcodes of up to 15 digits, which covers EAN-8, UPC-A, EAN-13 and GTIN-14, are packed into a long holding both
+ * the digits and their count, so codes that differ only by leading zeros stay distinct. Those keys live in an
+ * open addressing table of parallel long and int arrays with linear probing, so a lookup hashes no string and
+ * allocates nothing. Any other barcode falls back to a HashMap of strings.
+ * The map isn't thread safe.
+ *
+ */
+class BarcodeSlotMap {
+
+    /**
+     * The value returned for a barcode with no slot.
+     */
+    static final int NO_SLOT = -1;
+
+    private static final int MAX_NUMERIC_DIGITS = 15;
+    private static final int LENGTH_SHIFT = 50;
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private int[] values;
+    private int numericSize;
+    private HashMap<String, Integer> others;
+
+    /**
+     * Constructor for a map sized for a number of barcodes
+     * @param expectedSize the number of barcodes the map is expected to hold
+     */
+    BarcodeSlotMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.others = new HashMap<>();
+    }
+
+    /**
+     * @param barCode the barcode to look up
+     * @return the slot of the barcode, or NO_SLOT if it has none
+     */
+    int get(String barCode) {
+        long key = numericKey(barCode);
+        if (key == EMPTY) {
+            Integer slot = this.others.get(barCode);
+            return slot == null ? NO_SLOT : slot;
+        }
+        int mask = this.keys.length - 1;
+        for (int i = indexOf(key, mask); this.keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (this.keys[i] == key) {
+                return this.values[i];
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * @param barCode the barcode to look up
+     * @return true if the barcode has a slot
+     */
+    boolean containsKey(String barCode) {
+        return get(barCode) != NO_SLOT;
+    }
+
+    /**
+     * Gives a barcode a slot, replacing any slot it already had
+     * @param barCode the barcode
+     * @param slot the slot for the barcode, which must not be negative
+     */
+    void put(String barCode, int slot) {
+        long key = numericKey(barCode);
+        if (key == EMPTY) {
+            this.others.put(barCode, slot);
+            return;
+        }
+        if ((this.numericSize + 1) * 4 > this.keys.length * 3) {
+            resize(this.keys.length * 2);
+        }
+        int mask = this.keys.length - 1;
+        int i = indexOf(key, mask);
+        while (this.keys[i] != EMPTY && this.keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (this.keys[i] == EMPTY) {
+            this.keys[i] = key;
+            this.numericSize++;
+        }
+        this.values[i] = slot;
+    }
+
+    /**
+     * Removes a barcode's slot
+     * Numeric entries after the removed one are shifted back so no tombstones are left in the table
+     * @param barCode the barcode
+     * @return the slot the barcode had, or NO_SLOT if it had none
+     */
+    int remove(String barCode) {
+        long key = numericKey(barCode);
+        if (key == EMPTY) {
+            Integer slot = this.others.remove(barCode);
+            return slot == null ? NO_SLOT : slot;
+        }
+        int mask = this.keys.length - 1;
+        int i = indexOf(key, mask);
+        while (this.keys[i] != key) {
+            if (this.keys[i] == EMPTY) {
+                return NO_SLOT;
+            }
+            i = (i + 1) & mask;
+        }
+        int slot = this.values[i];
+        int gap = i;
+        for (int j = (gap + 1) & mask; this.keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = indexOf(this.keys[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                this.keys[gap] = this.keys[j];
+                this.values[gap] = this.values[j];
+                gap = j;
+            }
+        }
+        this.keys[gap] = EMPTY;
+        this.numericSize--;
+        return slot;
+    }
+
+    /**
+     * @return the number of barcodes with a slot
+     */
+    int size() {
+        return this.numericSize + this.others.size();
+    }
+
+    /**
+     * Packs a barcode of 1 to 15 digits into a long, with the digit count above the value
+     * @param barCode the barcode
+     * @return the packed key, or EMPTY if the barcode is null, too long or not all digits
+     */
+    static long numericKey(String barCode) {
+        if (barCode == null) {
+            return EMPTY;
+        }
+        int length = barCode.length();
+        if (length == 0 || length > MAX_NUMERIC_DIGITS) {
+            return EMPTY;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = barCode.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return EMPTY;
+            }
+            value = value * 10 + digit;
+        }
+        return ((long) length << LENGTH_SHIFT) | value;
+    }
+
+    private static int indexOf(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = indexOf(oldKeys[i], mask);
+                while (this.keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                this.keys[j] = oldKeys[i];
+                this.values[j] = oldValues[i];
+            }
+        }
+    }
+
+}
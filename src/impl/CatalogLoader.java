@@ -0,0 +1,383 @@
+package impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import interfaces.IProduct;
+import interfaces.IShop;
+
+/**
+ * This class loads a catalog of products into a shop from a CSV file of barcode, description and initial stock lines.
+ * The file is read through a FileChannel a chunk at a time, cut at line ends, so only a few chunks are ever held in
+ * memory. Chunks can be parsed on several threads at once, but products are always added in file order, so the
+ * first line for a barcode wins. Each barcode is checked against the shop's own index as it is added, so duplicates
+ * are found in the same pass and the whole load is linear in the size of the file. Clashing barcodes and lines that
+ * can't be read are collected in a {@link Report} rather than stopping the load.
+ * Descriptions containing commas can be quoted, with a doubled quote standing for a quote. A first line that
+ * doesn't have a stock count is taken to be a header and skipped.
+ *
+ */
+public class CatalogLoader {
+
+    /**
+     * The number of bytes read from the file per chunk when no chunk size is given.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private final int parallelism;
+    private final int chunkSize;
+
+    /**
+     * Constructor for a loader that parses on the calling thread
+     */
+    public CatalogLoader() {
+        this(1, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor for a loader that parses chunks on several threads
+     * @param parallelism the number of chunks parsed at once
+     */
+    public CatalogLoader(int parallelism) {
+        this(parallelism, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor that sets the parallelism and chunk size
+     * @param parallelism the number of chunks parsed at once
+     * @param chunkSize the number of bytes read from the file per chunk, grown for longer lines
+     * @throws IllegalArgumentException if the parallelism or chunk size is less than one
+     */
+    public CatalogLoader(int parallelism, int chunkSize) {
+        if (parallelism < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Parallelism and chunk size must be at least one");
+        }
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Adds every product in the file to the shop with its initial stock
+     * Products go straight into the storage of the shops in this package, which still tell their listeners each
+     * product was registered and stocked
+     * @param csv the catalog file
+     * @param shop the shop to add the products to
+     * @return a report of the products added, the clashing barcodes and the lines that couldn't be read
+     * @throws IOException if the file can't be read
+     */
+    public Report load(Path csv, IShop shop) throws IOException {
+        Report report = new Report();
+        Checkpointable target = shop instanceof Checkpointable ? (Checkpointable) shop : null;
+        ExecutorService pool = this.parallelism > 1 ? Executors.newFixedThreadPool(this.parallelism) : null;
+        try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            ChunkReader reader = new ChunkReader(channel, this.chunkSize);
+            List<Future<Chunk>> round = new ArrayList<>(this.parallelism);
+            long linesBefore = 0;
+            boolean first = true;
+            while (true) {
+                round.clear();
+                Chunk chunk;
+                while (round.size() < this.parallelism && (chunk = reader.next()) != null) {
+                    Chunk unparsed = chunk;
+                    boolean header = first;
+                    round.add(pool == null ? CompletableFuture.completedFuture(unparsed.parse(header)) : pool.submit(() -> unparsed.parse(header)));
+                    first = false;
+                }
+                if (round.isEmpty()) {
+                    break;
+                }
+                for (Future<Chunk> parsed : round) {
+                    Chunk done = await(parsed);
+                    for (Row row : done.rows) {
+                        add(row, shop, target, report);
+                    }
+                    for (int line : done.malformed) {
+                        report.malformedLines.add(linesBefore + line);
+                    }
+                    linesBefore += done.lines;
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        return report;
+    }
+
+    private static void add(Row row, IShop shop, Checkpointable target, Report report) {
+        IProduct product = Factory.getInstance().makeProduct(row.barCode, row.description);
+        boolean added;
+        if (target != null) {
+            added = target.restore(product, row.stockCount, 0);
+        } else {
+            added = shop.lookupStock(row.barCode) == IShop.NOT_REGISTERED;
+            if (added) {
+                try {
+                    shop.registerProduct(product);
+                    if (row.stockCount > 0) {
+                        shop.addStock(row.barCode, row.stockCount);
+                    }
+                } catch (BarCodeAlreadyInUseException | ProductNotRegisteredException e) {
+                    added = false;
+                }
+            }
+        }
+        if (added) {
+            report.loaded++;
+        } else {
+            report.conflicts.add(row.barCode);
+        }
+    }
+
+    private static Chunk await(Future<Chunk> parsed) throws IOException {
+        try {
+            return parsed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading catalog", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * The outcome of loading a catalog.
+     */
+    public static final class Report {
+
+        private int loaded;
+        private final List<String> conflicts = new ArrayList<>();
+        private final List<Long> malformedLines = new ArrayList<>();
+
+        /**
+         * @return the number of products added to the shop
+         */
+        public int getLoaded() {
+            return this.loaded;
+        }
+
+        /**
+         * @return the barcodes that were already registered or appeared earlier in the file, in file order
+         */
+        public List<String> getConflicts() {
+            return Collections.unmodifiableList(this.conflicts);
+        }
+
+        /**
+         * @return the numbers of the lines that couldn't be read, counting from one
+         */
+        public List<Long> getMalformedLines() {
+            return Collections.unmodifiableList(this.malformedLines);
+        }
+
+        /**
+         * Reports every clashing barcode at once
+         * @throws BarCodeAlreadyInUseException listing the clashing barcodes, if there were any
+         */
+        public void throwIfConflicts() throws BarCodeAlreadyInUseException {
+            if (!this.conflicts.isEmpty()) {
+                throw new BarCodeAlreadyInUseException(this.conflicts);
+            }
+        }
+    }
+
+    /**
+     * A parsed catalog line.
+     */
+    private static final class Row {
+
+        private final String barCode;
+        private final String description;
+        private final int stockCount;
+
+        Row(String barCode, String description, int stockCount) {
+            this.barCode = barCode;
+            this.description = description;
+            this.stockCount = stockCount;
+        }
+    }
+
+    /**
+     * A run of whole lines from the file, and once parsed the rows read from them.
+     */
+    private static final class Chunk {
+
+        private final byte[] bytes;
+        private final int length;
+        private final List<Row> rows = new ArrayList<>();
+        private final List<Integer> malformed = new ArrayList<>();
+        private int lines;
+
+        Chunk(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        /**
+         * Parses every line of the chunk
+         * @param first whether this is the first chunk of the file, whose first line may be a header
+         * @return this chunk
+         */
+        Chunk parse(boolean first) {
+            int start = 0;
+            while (start < this.length) {
+                int end = start;
+                while (end < this.length && this.bytes[end] != '\n') {
+                    end++;
+                }
+                this.lines++;
+                int trimmed = end > start && this.bytes[end - 1] == '\r' ? end - 1 : end;
+                if (trimmed > start) {
+                    Row row = parseLine(start, trimmed);
+                    if (row != null) {
+                        this.rows.add(row);
+                    } else if (!(first && this.lines == 1)) {
+                        this.malformed.add(this.lines);
+                    }
+                }
+                start = end + 1;
+            }
+            return this;
+        }
+
+        /**
+         * @return the row on the line, or null if it doesn't have a barcode, a description and a stock count
+         */
+        private Row parseLine(int start, int end) {
+            String[] fields = new String[3];
+            int position = start;
+            for (int field = 0; field < 3; field++) {
+                if (position > end) {
+                    return null;
+                }
+                int[] next = new int[1];
+                fields[field] = parseField(position, end, next);
+                if (fields[field] == null) {
+                    return null;
+                }
+                position = next[0] + 1;
+            }
+            if (position <= end || fields[0].isEmpty()) {
+                return null;
+            }
+            try {
+                int stockCount = Integer.parseInt(fields[2].trim());
+                return stockCount < 0 ? null : new Row(fields[0], fields[1], stockCount);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Reads one field, quoted or not
+         * @param next set to the position of the comma or line end after the field
+         * @return the field, or null if a quoted field isn't closed properly
+         */
+        private String parseField(int start, int end, int[] next) {
+            if (start < end && this.bytes[start] == '"') {
+                byte[] field = new byte[end - start];
+                int length = 0;
+                int position = start + 1;
+                while (position < end) {
+                    if (this.bytes[position] == '"') {
+                        if (position + 1 < end && this.bytes[position + 1] == '"') {
+                            field[length++] = '"';
+                            position += 2;
+                            continue;
+                        }
+                        if (position + 1 < end && this.bytes[position + 1] != ',') {
+                            return null;
+                        }
+                        next[0] = position + 1;
+                        return new String(field, 0, length, StandardCharsets.UTF_8);
+                    }
+                    field[length++] = this.bytes[position++];
+                }
+                return null;
+            }
+            int position = start;
+            while (position < end && this.bytes[position] != ',') {
+                position++;
+            }
+            next[0] = position;
+            return new String(this.bytes, start, position - start, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads a file through a channel in chunks that end at a line end.
+     */
+    private static final class ChunkReader {
+
+        private final FileChannel channel;
+        private final int chunkSize;
+        private byte[] carry;
+        private int carryLength;
+        private boolean endOfFile;
+
+        ChunkReader(FileChannel channel, int chunkSize) {
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.carry = new byte[0];
+            this.carryLength = 0;
+            this.endOfFile = false;
+        }
+
+        /**
+         * @return the next run of whole lines, or null at the end of the file
+         */
+        Chunk next() throws IOException {
+            if (this.endOfFile && this.carryLength == 0) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(this.chunkSize, this.carryLength * 2));
+            buffer.put(this.carry, 0, this.carryLength);
+            while (true) {
+                while (buffer.hasRemaining() && !this.endOfFile) {
+                    if (this.channel.read(buffer) < 0) {
+                        this.endOfFile = true;
+                    }
+                }
+                byte[] bytes = buffer.array();
+                int filled = buffer.position();
+                if (this.endOfFile) {
+                    this.carryLength = 0;
+                    return filled == 0 ? null : new Chunk(bytes, filled);
+                }
+                int lastLineEnd = filled - 1;
+                while (lastLineEnd >= 0 && bytes[lastLineEnd] != '\n') {
+                    lastLineEnd--;
+                }
+                if (lastLineEnd >= 0) {
+                    this.carryLength = filled - lastLineEnd - 1;
+                    this.carry = new byte[Math.max(this.carryLength, 16)];
+                    System.arraycopy(bytes, lastLineEnd + 1, this.carry, 0, this.carryLength);
+                    return new Chunk(bytes, lastLineEnd + 1);
+                }
+                // a line longer than the buffer, so read more of it before cutting
+                ByteBuffer larger = ByteBuffer.allocate(bytes.length * 2);
+                larger.put(bytes, 0, filled);
+                buffer = larger;
+            }
+        }
+    }
+
+}
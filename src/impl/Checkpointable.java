@@ -0,0 +1,47 @@
+package impl;
+
+import java.io.IOException;
+
+import interfaces.IProduct;
+
+/**
+ * This interface is implemented by shops that can hand their stock to a {@link SnapshotFile} directly
+ * and take it back without going through the public shop methods.
+ *
+ */
+interface Checkpointable {
+
+    /**
+     * Visits every registered product in the order they were registered
+     * The stock count and number of sales of each product are read together, so they belong to the same moment
+     * @param visitor the visitor to give each product to
+     * @throws IOException if the visitor fails to write a product
+     */
+    void checkpoint(RecordVisitor visitor) throws IOException;
+
+    /**
+     * Registers a product with its stock count and number of sales already set
+     * The listeners are told the product was registered and, if it has stock, that the stock was added, so indexes
+     * attached to the shop see it; its past sales aren't replayed to them
+     * @param product the product to register
+     * @param stockCount the stock count of the product
+     * @param sales the number of sales of the product
+     * @return false if a product with the same barcode is already registered
+     */
+    boolean restore(IProduct product, int stockCount, int sales);
+
+    /**
+     * Takes the products of a shop being checkpointed.
+     */
+    interface RecordVisitor {
+
+        /**
+         * @param product a registered product
+         * @param stockCount the stock count of the product
+         * @param sales the number of sales of the product
+         * @throws IOException if the product can't be written
+         */
+        void visit(IProduct product, int stockCount, int sales) throws IOException;
+    }
+
+}
@@ -0,0 +1,687 @@
+package impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import exceptions.StockUnavailableException;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IShopSnapshot;
+import interfaces.IStockRecord;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
+
+/**
+ * This class represents a shop that keeps its stock in columns of primitives rather than in stock record objects.
+ * Each product is given a slot when it is registered, and its stock count, number of sales and registration order
+ * are held at that slot in dense int and long arrays, so scans over the catalog are tight loops over primitives.
+ * Slots of unregistered products are reused. {@link IStockRecord} views are only created when asked for.
+ * The best seller's slot is kept up to date as products sell, so it is only found by scanning the sales column
+ * after the best seller itself has been unregistered.
+ * A snapshot shares the columns rather than copying them; the next change copies them first.
+ * Barcodes are mapped to slots by a {@link BarcodeSlotMap}, which keys EAN and UPC codes as primitive longs.
+ * Like {@link Shop} this class isn't thread safe.
+ *
+ */
+public class ColumnarShop implements IShop, Checkpointable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private BarcodeSlotMap slots;
+    private IProduct[] products;
+    private int[] stockCounts;
+    private int[] sales;
+    private long[] registrationOrder;
+    private int[] freeSlots;
+    private int freeSlotCount;
+    private int slotsUsed;
+    private int numOfProducts;
+    private int totalStockCount;
+    private long nextRegistration;
+    private int leader;
+    private boolean leaderKnown;
+    private ShopListeners listeners;
+    private boolean columnsShared;
+
+    /**
+     * Constructor for a columnar shop with no products
+     */
+    public ColumnarShop() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor for a columnar shop sized for a number of products, so the columns don't have to grow while it is filled
+     * @param expectedProducts the number of products the shop is expected to hold
+     */
+    public ColumnarShop(int expectedProducts) {
+        int capacity = Math.max(expectedProducts, 1);
+        this.slots = new BarcodeSlotMap(capacity);
+        this.products = new IProduct[capacity];
+        this.stockCounts = new int[capacity];
+        this.sales = new int[capacity];
+        this.registrationOrder = new long[capacity];
+        this.freeSlots = new int[capacity];
+        this.leader = -1;
+        this.leaderKnown = true;
+        this.listeners = new ShopListeners();
+    }
+
+    /**
+     * Method that registers a product to the shop, giving it a free slot in the columns
+     * @param product the product to be registered to the shop
+     * @throws BarCodeAlreadyInUseException if the bar code matches a product already registered
+     */
+    @Override
+    public void registerProduct(IProduct product) throws BarCodeAlreadyInUseException {
+        try {
+            if (product == null) {
+                this.listeners.operationFailed(ShopOperation.REGISTER, null, ShopResult.INVALID_ARGUMENT);
+                return;
+            }
+            if (this.slots.containsKey(product.getBarCode())) {
+                throw new BarCodeAlreadyInUseException();
+            }
+            int slot = allocateSlot();
+            this.products[slot] = product;
+            this.stockCounts[slot] = 0;
+            this.sales[slot] = 0;
+            this.registrationOrder[slot] = this.nextRegistration++;
+            this.slots.put(product.getBarCode(), slot);
+            this.numOfProducts++;
+            offerLeader(slot);
+            this.listeners.productRegistered(product);
+        } catch (BarCodeAlreadyInUseException e) {
+            this.listeners.operationFailed(ShopOperation.REGISTER, product.getBarCode(), ShopResult.BAR_CODE_IN_USE);
+        }
+    }
+
+    /**
+     * Registers a product from a snapshot straight into a free slot with its stock and sales already set
+     * @param product the product to register
+     * @param stockCount the stock count of the product
+     * @param sales the number of sales of the product
+     * @return false if the barcode is already registered
+     */
+    @Override
+    public boolean restore(IProduct product, int stockCount, int sales) {
+        if (this.slots.containsKey(product.getBarCode())) {
+            return false;
+        }
+        int slot = allocateSlot();
+        this.products[slot] = product;
+        this.stockCounts[slot] = stockCount;
+        this.sales[slot] = sales;
+        this.registrationOrder[slot] = this.nextRegistration++;
+        this.slots.put(product.getBarCode(), slot);
+        this.numOfProducts++;
+        this.totalStockCount += stockCount;
+        offerLeader(slot);
+        this.listeners.productRegistered(product);
+        if (stockCount > 0) {
+            this.listeners.stockAdded(product.getBarCode(), stockCount, stockCount);
+        }
+        return true;
+    }
+
+    /**
+     * Visits every product in registration order, which isn't slot order once slots have been reused
+     * @param visitor the visitor to give each product to
+     * @throws IOException if the visitor fails to write a product
+     */
+    @Override
+    public void checkpoint(RecordVisitor visitor) throws IOException {
+        Integer[] live = new Integer[this.numOfProducts];
+        int count = 0;
+        for (int slot = 0; slot < this.slotsUsed; slot++) {
+            if (this.products[slot] != null) {
+                live[count++] = slot;
+            }
+        }
+        Arrays.sort(live, (a, b) -> Long.compare(this.registrationOrder[a], this.registrationOrder[b]));
+        for (int slot : live) {
+            visitor.visit(this.products[slot], this.stockCounts[slot], this.sales[slot]);
+        }
+    }
+
+    /**
+     * This method removes a product from the shop and frees its slot for reuse
+     * @param product the product to be removed from the shops registered products
+     * @throws ProductNotRegisteredException if the product to be unregistered isn't registered in the shop
+     */
+    @Override
+    public void unregisterProduct(IProduct product) throws ProductNotRegisteredException {
+        try {
+            if (product == null) {
+                this.listeners.operationFailed(ShopOperation.UNREGISTER, null, ShopResult.INVALID_ARGUMENT);
+                return;
+            }
+            int slot = slotOf(product.getBarCode());
+            if (slot < 0 || this.products[slot] != product) {
+                throw new ProductNotRegisteredException();
+            }
+            int remainingStock = this.stockCounts[slot];
+            this.slots.remove(product.getBarCode());
+            ownColumns();
+            this.products[slot] = null;
+            this.freeSlots[this.freeSlotCount++] = slot;
+            this.numOfProducts--;
+            this.totalStockCount -= remainingStock;
+            if (slot == this.leader) {
+                this.leader = -1;
+                this.leaderKnown = this.numOfProducts == 0;
+            }
+            this.listeners.productUnregistered(product, remainingStock);
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.UNREGISTER, product.getBarCode(), ShopResult.NOT_REGISTERED);
+        }
+    }
+
+    /**
+     * This method increments the amount of stock for the product with the barcode
+     * @param barCode a string of the barcode to have its stock incremented
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode) throws ProductNotRegisteredException {
+        tryAddStock(barCode, 1);
+    }
+
+    /**
+     * This method allows a product to be bought
+     * @param barCode the barcode of the product to be bought
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has no stock
+     */
+    @Override
+    public void buyProduct(String barCode) throws StockUnavailableException, ProductNotRegisteredException {
+        tryBuy(barCode, 1);
+    }
+
+    /**
+     * This method increases the amount of stock for the product with the barcode by the quantity
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items of stock to add
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode, int quantity) throws ProductNotRegisteredException {
+        tryAddStock(barCode, quantity);
+    }
+
+    /**
+     * This method allows several of a product to be bought at once, buying nothing if there isn't enough stock
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has less stock than the quantity
+     */
+    @Override
+    public void buyProduct(String barCode, int quantity) throws StockUnavailableException, ProductNotRegisteredException {
+        tryBuy(barCode, quantity);
+    }
+
+    /**
+     * Method that buys a whole basket of products
+     * Every line is resolved to its slot and checked before any stock is taken, so a failed line changes nothing
+     * @param basket the quantity to buy for each barcode
+     * @return true if the whole basket was bought
+     * @throws StockUnavailableException if a product in the basket has less stock than its quantity
+     * @throws ProductNotRegisteredException if a product in the basket isn't registered in the shop
+     */
+    @Override
+    public boolean checkout(Map<String, Integer> basket) throws StockUnavailableException, ProductNotRegisteredException {
+        String barCode = null;
+        try {
+            if (basket == null) {
+                this.listeners.operationFailed(ShopOperation.CHECKOUT, null, ShopResult.INVALID_ARGUMENT);
+                return false;
+            }
+            int[] lineSlots = new int[basket.size()];
+            int[] quantities = new int[basket.size()];
+            int line = 0;
+            for (Map.Entry<String, Integer> entry : basket.entrySet()) {
+                barCode = entry.getKey();
+                if (barCode == null || entry.getValue() == null || entry.getValue() < 1) {
+                    this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                    return false;
+                }
+                int slot = slotOf(barCode);
+                if (slot < 0) {
+                    throw new ProductNotRegisteredException();
+                }
+                if (this.stockCounts[slot] < entry.getValue()) {
+                    throw new StockUnavailableException();
+                }
+                if (this.sales[slot] > Integer.MAX_VALUE - entry.getValue()) {
+                    this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                    return false;
+                }
+                lineSlots[line] = slot;
+                quantities[line] = entry.getValue();
+                line++;
+            }
+            for (int i = 0; i < lineSlots.length; i++) {
+                sell(lineSlots[i], quantities[i]);
+            }
+            return true;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.NOT_REGISTERED);
+        } catch (StockUnavailableException e) {
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.STOCK_UNAVAILABLE);
+        }
+        return false;
+    }
+
+    /**
+     * This method adds stock without the cost of an exception when it fails
+     * Stock that would take the product's stock count or the shop's total past Integer.MAX_VALUE isn't added
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items of stock to add
+     * @return the result of adding the stock
+     */
+    @Override
+    public ShopResult tryAddStock(String barCode, int quantity) {
+        if (barCode == null || quantity < 1) {
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, ShopResult.INVALID_ARGUMENT);
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        int slot = slotOf(barCode);
+        if (slot < 0) {
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, ShopResult.NOT_REGISTERED);
+            return ShopResult.NOT_REGISTERED;
+        }
+        if (this.stockCounts[slot] > Integer.MAX_VALUE - quantity || this.totalStockCount > Integer.MAX_VALUE - quantity) {
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, ShopResult.INVALID_ARGUMENT);
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        ownColumns();
+        this.stockCounts[slot] += quantity;
+        this.totalStockCount += quantity;
+        this.listeners.stockAdded(barCode, quantity, this.stockCounts[slot]);
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * This method buys a product without the cost of an exception when it fails
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @return the result of the purchase
+     */
+    @Override
+    public ShopResult tryBuy(String barCode, int quantity) {
+        ShopResult result = ShopResult.SUCCESS;
+        int slot = -1;
+        if (barCode == null || quantity < 1) {
+            result = ShopResult.INVALID_ARGUMENT;
+        } else if ((slot = slotOf(barCode)) < 0) {
+            result = ShopResult.NOT_REGISTERED;
+        } else if (this.stockCounts[slot] < quantity) {
+            result = ShopResult.STOCK_UNAVAILABLE;
+        } else if (this.sales[slot] > Integer.MAX_VALUE - quantity) {
+            result = ShopResult.INVALID_ARGUMENT;
+        }
+        if (result != ShopResult.SUCCESS) {
+            this.listeners.operationFailed(ShopOperation.BUY, barCode, result);
+            return result;
+        }
+        sell(slot, quantity);
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * Takes a snapshot that shares the columns, so it costs nothing until the shop next changes
+     * @return the snapshot
+     */
+    @Override
+    public IShopSnapshot snapshot() {
+        this.columnsShared = true;
+        return new ShopSnapshot(this.products, this.stockCounts, this.sales, this.registrationOrder, this.slotsUsed);
+    }
+
+    /**
+     * Method for getting the total number of products
+     * @return the total number of products in the shop
+     */
+    @Override
+    public int getNumberOfProducts() {
+        return this.numOfProducts;
+    }
+
+    /**
+     * Method for getting the total amount of stock in the shop
+     * The total is maintained as stock is added, bought and unregistered
+     * @return the total amount of stock of all products in the shop
+     */
+    @Override
+    public int getTotalStockCount() {
+        return this.totalStockCount;
+    }
+
+    /**
+     * Method for getting the amount of stock for a particular product
+     * @param barCode the barcode of the product to get the stock count for
+     * @return the stock count for the product
+     * @throws ProductNotRegisteredException if the product to get the stock count for isn't a registered product
+     */
+    @Override
+    public int getStockCount(String barCode) throws ProductNotRegisteredException {
+        try {
+            if (barCode == null) {
+                this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+                return 0;
+            }
+            int stockCount = lookupStock(barCode);
+            if (stockCount == NOT_REGISTERED) {
+                throw new ProductNotRegisteredException();
+            }
+            return stockCount;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
+        }
+        return 0;
+    }
+
+    /**
+     * Method that gets the sales for a product
+     * @param barCode the barcode of the product to get sales for
+     * @return the number of sales for the product
+     * @throws ProductNotRegisteredException if the product to get number of sales of isn't a registered product
+     */
+    @Override
+    public int getNumberOfSales(String barCode) throws ProductNotRegisteredException {
+        try {
+            if (barCode == null) {
+                this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+                return 0;
+            }
+            int numberOfSales = lookupSales(barCode);
+            if (numberOfSales == NOT_REGISTERED) {
+                throw new ProductNotRegisteredException();
+            }
+            return numberOfSales;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
+        }
+        return 0;
+    }
+
+    /**
+     * Method for getting the amount of stock for a particular product without an exception when it isn't registered
+     * @param barCode the barcode of the product to get the stock count for
+     * @return the stock count for the product, or NOT_REGISTERED
+     */
+    @Override
+    public int lookupStock(String barCode) {
+        int slot = barCode == null ? -1 : slotOf(barCode);
+        return slot < 0 ? NOT_REGISTERED : this.stockCounts[slot];
+    }
+
+    /**
+     * Method for getting the sales of a particular product without an exception when it isn't registered
+     * @param barCode the barcode of the product to get sales for
+     * @return the number of sales for the product, or NOT_REGISTERED
+     */
+    @Override
+    public int lookupSales(String barCode) {
+        int slot = barCode == null ? -1 : slotOf(barCode);
+        return slot < 0 ? NOT_REGISTERED : this.sales[slot];
+    }
+
+    /**
+     * Method that gets the product that has sold the most
+     * Reads the kept best seller, scanning the sales column only if the best seller was unregistered since it was
+     * last found, ties going to the earliest registered product
+     * @return the product with the most sales, or null if there are no products in the shop
+     * @throws ProductNotRegisteredException if there are no products registered in the shop
+     */
+    @Override
+    public IProduct getMostPopular() throws ProductNotRegisteredException {
+        try {
+            if (!this.leaderKnown) {
+                this.leaderKnown = true;
+                for (int slot = 0; slot < this.slotsUsed; slot++) {
+                    if (this.products[slot] != null) {
+                        offerLeader(slot);
+                    }
+                }
+            }
+            if (this.leader < 0) {
+                throw new ProductNotRegisteredException();
+            }
+            return this.products[this.leader];
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.NOT_REGISTERED);
+        }
+        return null;
+    }
+
+    /**
+     * Method that gets the best selling products
+     * Scans the sales column into a heap of at most k slots, so it costs O(n log k)
+     * @param k the number of products to return
+     * @return the k products with the most sales, most sales first
+     */
+    @Override
+    public List<IProduct> getTopSellers(int k) {
+        if (k < 1) {
+            return new ArrayList<>();
+        }
+        int[] heap = new int[Math.min(k, this.numOfProducts)];
+        int size = 0;
+        for (int slot = 0; slot < this.slotsUsed; slot++) {
+            if (this.products[slot] == null) {
+                continue;
+            }
+            if (size < heap.length) {
+                heap[size] = slot;
+                siftUp(heap, size++);
+            } else if (heap.length > 0 && ranksAbove(slot, heap[0])) {
+                heap[0] = slot;
+                siftDown(heap, size);
+            }
+        }
+        IProduct[] ordered = new IProduct[size];
+        while (size > 0) {
+            ordered[--size] = this.products[heap[0]];
+            heap[0] = heap[size];
+            siftDown(heap, size);
+        }
+        return new ArrayList<>(Arrays.asList(ordered));
+    }
+
+    /**
+     * Method that adds a listener to be told about changes to the shop and failed operations
+     * @param listener the listener to add
+     */
+    @Override
+    public void addListener(ShopListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Method that removes a listener from the shop
+     * @param listener the listener to remove
+     */
+    @Override
+    public void removeListener(ShopListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Creates a stock record view of a product's slot, reading from and writing through to the columns
+     * The view stops seeing the product's stock once it is unregistered
+     * @param barCode the barcode of the product
+     * @return a stock record view, or null if the product isn't registered
+     */
+    public IStockRecord getStockRecord(String barCode) {
+        int slot = barCode == null ? -1 : slotOf(barCode);
+        return slot < 0 ? null : new StockRecordView(slot, this.products[slot]);
+    }
+
+    /**
+     * Copies the columns if a snapshot shares them, so changing them doesn't change the snapshot
+     */
+    private void ownColumns() {
+        if (this.columnsShared) {
+            this.products = this.products.clone();
+            this.stockCounts = this.stockCounts.clone();
+            this.sales = this.sales.clone();
+            this.registrationOrder = this.registrationOrder.clone();
+            this.columnsShared = false;
+        }
+    }
+
+    private int slotOf(String barCode) {
+        return this.slots.get(barCode);
+    }
+
+    private int allocateSlot() {
+        ownColumns();
+        if (this.freeSlotCount > 0) {
+            return this.freeSlots[--this.freeSlotCount];
+        }
+        if (this.slotsUsed == this.products.length) {
+            int capacity = this.products.length * 2;
+            this.products = Arrays.copyOf(this.products, capacity);
+            this.stockCounts = Arrays.copyOf(this.stockCounts, capacity);
+            this.sales = Arrays.copyOf(this.sales, capacity);
+            this.registrationOrder = Arrays.copyOf(this.registrationOrder, capacity);
+            this.freeSlots = Arrays.copyOf(this.freeSlots, capacity);
+        }
+        return this.slotsUsed++;
+    }
+
+    private void sell(int slot, int quantity) {
+        ownColumns();
+        this.stockCounts[slot] -= quantity;
+        this.sales[slot] += quantity;
+        this.totalStockCount -= quantity;
+        offerLeader(slot);
+        this.listeners.productSold(this.products[slot].getBarCode(), quantity, this.stockCounts[slot]);
+    }
+
+    /**
+     * Makes the slot the best seller if it ranks above the current one
+     * Nothing is kept while the best seller is unknown because it was unregistered, until a scan finds it again
+     */
+    private void offerLeader(int slot) {
+        if (this.leaderKnown && (this.leader < 0 || ranksAbove(slot, this.leader))) {
+            this.leader = slot;
+        }
+    }
+
+    /**
+     * @return true if the product in slot a has more sales than the one in slot b, or as many and was registered first
+     */
+    private boolean ranksAbove(int a, int b) {
+        if (this.sales[a] != this.sales[b]) {
+            return this.sales[a] > this.sales[b];
+        }
+        return this.registrationOrder[a] < this.registrationOrder[b];
+    }
+
+    /**
+     * Heap helpers keeping the lowest ranked slot at the root.
+     */
+    private void siftUp(int[] heap, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!ranksAbove(heap[parent], heap[index])) {
+                return;
+            }
+            swap(heap, parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int size) {
+        int index = 0;
+        while (true) {
+            int lowest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && ranksAbove(heap[lowest], heap[left])) {
+                lowest = left;
+            }
+            if (right < size && ranksAbove(heap[lowest], heap[right])) {
+                lowest = right;
+            }
+            if (lowest == index) {
+                return;
+            }
+            swap(heap, index, lowest);
+            index = lowest;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int temp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = temp;
+    }
+
+    /**
+     * A stock record backed by a slot of the shop's columns.
+     */
+    private final class StockRecordView implements IStockRecord {
+
+        private final int slot;
+        private final IProduct product;
+
+        StockRecordView(int slot, IProduct product) {
+            this.slot = slot;
+            this.product = product;
+        }
+
+        private boolean isLive() {
+            return products[this.slot] == this.product;
+        }
+
+        @Override
+        public IProduct getProduct() {
+            return this.product;
+        }
+
+        @Override
+        public int getStockCount() {
+            return isLive() ? stockCounts[this.slot] : 0;
+        }
+
+        @Override
+        public int getNumberOfSales() {
+            return isLive() ? sales[this.slot] : 0;
+        }
+
+        @Override
+        public void addStock() {
+            addStock(1);
+        }
+
+        @Override
+        public void buyProduct() throws StockUnavailableException {
+            buyProduct(1);
+        }
+
+        @Override
+        public void addStock(int quantity) {
+            if (isLive()) {
+                tryAddStock(this.product.getBarCode(), quantity);
+            }
+        }
+
+        @Override
+        public void buyProduct(int quantity) throws StockUnavailableException {
+            if (isLive()) {
+                tryBuy(this.product.getBarCode(), quantity);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,673 @@
+package impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import exceptions.StockUnavailableException;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IShopSnapshot;
+import interfaces.IStockRecord;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
+
+/**
+ * This class represents a shop that can be used by many tills at once.
+ * Stock records are held in a ConcurrentHashMap so lookups never block, and each purchase is a single
+ * compare-and-set on a {@link ConcurrentStockRecord}, so no lock is taken anywhere on the purchase path.
+ * The best seller is tracked as purchases happen by a {@link MostPopularTracker}.
+ * Snapshots are taken without stopping purchases using a {@link SnapshotEpoch}; only registering and unregistering
+ * wait while a snapshot is read out.
+ *
+ */
+public class ConcurrentShop implements IShop, Checkpointable {
+
+    /**
+     * Orders stock records by most sales first, then by earliest registered.
+     */
+    static final Comparator<ConcurrentStockRecord> POPULARITY = (a, b) -> {
+        int sales = Integer.compare(b.getNumberOfSales(), a.getNumberOfSales());
+        return sales != 0 ? sales : Long.compare(a.getSequence(), b.getSequence());
+    };
+
+    private final ConcurrentHashMap<String, ConcurrentStockRecord> stockRecords;
+    private final AtomicInteger numOfProducts;
+    private final LongAdder totalStockCount;
+    private final AtomicLong nextSequence;
+    private final MostPopularTracker mostPopular;
+    private final ShopListeners listeners;
+    private final SnapshotEpoch epochs;
+    private final ReentrantReadWriteLock structure;
+
+    /**
+     * Constructor for a concurrent shop with no products
+     */
+    public ConcurrentShop() {
+        this(0, 0);
+    }
+
+    /**
+     * Constructor for a concurrent shop sized up front for its catalog and number of tills
+     * @param expectedProducts the number of products expected, or zero for the default size
+     * @param concurrencyLevel the number of tills expected to update the shop at once, or zero for the default
+     */
+    public ConcurrentShop(int expectedProducts, int concurrencyLevel) {
+        this.stockRecords = new ConcurrentHashMap<>(Shop.capacityFor(expectedProducts), 0.75f, Math.max(concurrencyLevel, 1));
+        this.numOfProducts = new AtomicInteger();
+        this.totalStockCount = new LongAdder();
+        this.nextSequence = new AtomicLong();
+        this.mostPopular = new MostPopularTracker();
+        this.listeners = new ShopListeners();
+        this.epochs = new SnapshotEpoch();
+        this.structure = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Method that registers a product to the shop
+     * The stock record is only added if no record is already held for the barcode, checked and added in one step
+     * @param product the product to be registered to the shop
+     * @throws BarCodeAlreadyInUseException if the bar code matches a product already registered
+     */
+    @Override
+    public void registerProduct(IProduct product) throws BarCodeAlreadyInUseException {
+        try {
+            if (product == null) {
+                this.listeners.operationFailed(ShopOperation.REGISTER, null, ShopResult.INVALID_ARGUMENT);
+                return;
+            }
+            ConcurrentStockRecord record = new ConcurrentStockRecord(product, this.nextSequence.getAndIncrement());
+            this.structure.readLock().lock();
+            try {
+                if (this.stockRecords.putIfAbsent(product.getBarCode(), record) != null) {
+                    throw new BarCodeAlreadyInUseException();
+                }
+            } finally {
+                this.structure.readLock().unlock();
+            }
+            this.numOfProducts.incrementAndGet();
+            this.mostPopular.offer(record, this.stockRecords.values());
+            this.listeners.productRegistered(product);
+        } catch (BarCodeAlreadyInUseException e) {
+            this.listeners.operationFailed(ShopOperation.REGISTER, product.getBarCode(), ShopResult.BAR_CODE_IN_USE);
+        }
+    }
+
+    /**
+     * Registers a product from a snapshot with its stock and sales already set
+     * @param product the product to register
+     * @param stockCount the stock count of the product
+     * @param sales the number of sales of the product
+     * @return false if the barcode is already registered
+     */
+    @Override
+    public boolean restore(IProduct product, int stockCount, int sales) {
+        ConcurrentStockRecord record = new ConcurrentStockRecord(product, this.nextSequence.getAndIncrement(), stockCount, sales);
+        this.structure.readLock().lock();
+        try {
+            if (this.stockRecords.putIfAbsent(product.getBarCode(), record) != null) {
+                return false;
+            }
+        } finally {
+            this.structure.readLock().unlock();
+        }
+        this.numOfProducts.incrementAndGet();
+        this.totalStockCount.add(stockCount);
+        this.mostPopular.offer(record, this.stockRecords.values());
+        this.listeners.productRegistered(product);
+        if (stockCount > 0) {
+            this.listeners.stockAdded(product.getBarCode(), stockCount, stockCount);
+        }
+        return true;
+    }
+
+    /**
+     * Takes a snapshot of every stock record at one instant without stopping purchases
+     * Registering and unregistering wait until the records have been read
+     * @return the snapshot
+     */
+    @Override
+    public IShopSnapshot snapshot() {
+        this.structure.writeLock().lock();
+        try {
+            return snapshot(this.stockRecords.values(), this.epochs);
+        } finally {
+            this.structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every product in registration order while tills carry on buying
+     * @param visitor the visitor to give each product to
+     * @throws IOException if the visitor fails to write a product
+     */
+    @Override
+    public void checkpoint(RecordVisitor visitor) throws IOException {
+        checkpoint(this.stockRecords.values(), visitor);
+    }
+
+    /**
+     * This method removes a product from the shop
+     * The record is retired before it is removed so a till still holding it can't sell from it afterwards
+     * @param product the product to be removed from the shops registered products
+     * @throws ProductNotRegisteredException if the product to be unregistered isn't registered in the shop
+     */
+    @Override
+    public void unregisterProduct(IProduct product) throws ProductNotRegisteredException {
+        try {
+            if (product == null) {
+                this.listeners.operationFailed(ShopOperation.UNREGISTER, null, ShopResult.INVALID_ARGUMENT);
+                return;
+            }
+            ConcurrentStockRecord record = this.stockRecords.get(product.getBarCode());
+            int remainingStock;
+            this.structure.readLock().lock();
+            try {
+                if (record == null || record.getProduct() != product || !this.stockRecords.remove(product.getBarCode(), record)) {
+                    throw new ProductNotRegisteredException();
+                }
+                remainingStock = record.retire();
+            } finally {
+                this.structure.readLock().unlock();
+            }
+            this.numOfProducts.decrementAndGet();
+            this.totalStockCount.add(-remainingStock);
+            this.mostPopular.removed(record, this.stockRecords.values());
+            this.listeners.productUnregistered(product, remainingStock);
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.UNREGISTER, product.getBarCode(), ShopResult.NOT_REGISTERED);
+        }
+    }
+
+    /**
+     * This method increments the amount of stock for the product with the barcode
+     * @param barCode a string of the barcode to have its stock incremented
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode) throws ProductNotRegisteredException {
+        addStock(barCode, 1);
+    }
+
+    /**
+     * This method allows a product to be bought
+     * @param barCode the barcode of the product to be bought
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has no stock
+     */
+    @Override
+    public void buyProduct(String barCode) throws StockUnavailableException, ProductNotRegisteredException {
+        buyProduct(barCode, 1);
+    }
+
+    /**
+     * This method increases the amount of stock for the product with the barcode by the quantity in one compare-and-set
+     * If the barcode provided doesn't match the listeners are told the operation failed
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items of stock to add
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode, int quantity) throws ProductNotRegisteredException {
+        tryAddStock(barCode, quantity);
+    }
+
+    /**
+     * This method allows several of a product to be bought at once
+     * The stock check and the purchase of the whole quantity are one compare-and-set on the stock record
+     * If the product does not exist, or there is less stock than the quantity, nothing is bought and the listeners are told the operation failed
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has less stock than the quantity
+     */
+    @Override
+    public void buyProduct(String barCode, int quantity) throws StockUnavailableException, ProductNotRegisteredException {
+        tryBuy(barCode, quantity);
+    }
+
+    /**
+     * This method adds stock without the cost of an exception when it fails
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items of stock to add
+     * @return the result of adding the stock
+     */
+    @Override
+    public ShopResult tryAddStock(String barCode, int quantity) {
+        if (barCode == null || quantity < 1) {
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, ShopResult.INVALID_ARGUMENT);
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        ConcurrentStockRecord record = this.stockRecords.get(barCode);
+        int stockCount = record == null ? -1
+                : this.totalStockCount.sum() > Integer.MAX_VALUE - quantity ? ConcurrentStockRecord.OVERFLOW
+                : stock(record, quantity, this.epochs);
+        if (stockCount < 0) {
+            ShopResult result = stockCount == ConcurrentStockRecord.OVERFLOW ? ShopResult.INVALID_ARGUMENT : ShopResult.NOT_REGISTERED;
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, result);
+            return result;
+        }
+        this.totalStockCount.add(quantity);
+        this.listeners.stockAdded(barCode, quantity, stockCount);
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * This method buys a product without the cost of an exception when it fails
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @return the result of the purchase
+     */
+    @Override
+    public ShopResult tryBuy(String barCode, int quantity) {
+        ShopResult result = ShopResult.SUCCESS;
+        ConcurrentStockRecord record = null;
+        int stockCount = -1;
+        if (barCode == null || quantity < 1) {
+            result = ShopResult.INVALID_ARGUMENT;
+        } else if ((record = this.stockRecords.get(barCode)) == null) {
+            result = ShopResult.NOT_REGISTERED;
+        } else if ((stockCount = sell(record, quantity, this.epochs)) < 0) {
+            result = stockCount == ConcurrentStockRecord.OVERFLOW ? ShopResult.INVALID_ARGUMENT
+                    : record.isRetired() ? ShopResult.NOT_REGISTERED : ShopResult.STOCK_UNAVAILABLE;
+        }
+        if (result != ShopResult.SUCCESS) {
+            this.listeners.operationFailed(ShopOperation.BUY, barCode, result);
+            return result;
+        }
+        this.totalStockCount.add(-quantity);
+        this.mostPopular.offer(record, this.stockRecords.values());
+        this.listeners.productSold(barCode, quantity, stockCount);
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * Method that buys a whole basket of products
+     * No lock is taken, each line is bought with its own compare-and-set and if a later line fails the lines already
+     * bought are refunded, so the basket is bought in full or not at all. Another till may briefly see the stock of
+     * a refunded line as taken.
+     * @param basket the quantity to buy for each barcode
+     * @return true if the whole basket was bought
+     * @throws StockUnavailableException if a product in the basket has less stock than its quantity
+     * @throws ProductNotRegisteredException if a product in the basket isn't registered in the shop
+     */
+    @Override
+    public boolean checkout(Map<String, Integer> basket) throws StockUnavailableException, ProductNotRegisteredException {
+        String barCode = null;
+        try {
+            if (basket == null) {
+                this.listeners.operationFailed(ShopOperation.CHECKOUT, null, ShopResult.INVALID_ARGUMENT);
+                return false;
+            }
+            ConcurrentStockRecord[] records = new ConcurrentStockRecord[basket.size()];
+            int[] quantities = new int[basket.size()];
+            int line = 0;
+            for (Map.Entry<String, Integer> entry : basket.entrySet()) {
+                barCode = entry.getKey();
+                if (barCode == null || entry.getValue() == null || entry.getValue() < 1) {
+                    this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                    return false;
+                }
+                records[line] = this.stockRecords.get(barCode);
+                if (records[line] == null) {
+                    throw new ProductNotRegisteredException();
+                }
+                quantities[line] = entry.getValue();
+                line++;
+            }
+            int[] stockCounts = new int[records.length];
+            int failed = buyAll(records, quantities, stockCounts, this.totalStockCount, this.epochs);
+            if (failed >= 0) {
+                barCode = records[failed].getProduct().getBarCode();
+                if (stockCounts[failed] == ConcurrentStockRecord.OVERFLOW) {
+                    this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                    return false;
+                }
+                if (records[failed].isRetired()) {
+                    throw new ProductNotRegisteredException();
+                }
+                throw new StockUnavailableException();
+            }
+            for (int i = 0; i < records.length; i++) {
+                this.mostPopular.offer(records[i], this.stockRecords.values());
+                this.listeners.productSold(records[i].getProduct().getBarCode(), quantities[i], stockCounts[i]);
+            }
+            return true;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.NOT_REGISTERED);
+        } catch (StockUnavailableException e) {
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.STOCK_UNAVAILABLE);
+        }
+        return false;
+    }
+
+    /**
+     * Method for getting the total number of products
+     * @return the total number of products in the shop
+     */
+    @Override
+    public int getNumberOfProducts() {
+        return this.numOfProducts.get();
+    }
+
+    /**
+     * Method for getting the total amount of stock in the shop
+     * Stock that would take the total past Integer.MAX_VALUE is refused, but tills adding stock at the same moment
+     * can pass that check together, so a total beyond it reads as Integer.MAX_VALUE
+     * @return the total amount of stock of all products in the shop
+     */
+    @Override
+    public int getTotalStockCount() {
+        return (int) Math.min(this.totalStockCount.sum(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Method for getting the amount of stock for a particular product
+     * @param barCode the barcode of the product to get the stock count for
+     * @return the stock count for the product
+     * @throws ProductNotRegisteredException if the product to get the stock count for isn't a registered product
+     */
+    @Override
+    public int getStockCount(String barCode) throws ProductNotRegisteredException {
+        try {
+            if (barCode == null) {
+                this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+                return 0;
+            }
+            int stockCount = lookupStock(barCode);
+            if (stockCount == NOT_REGISTERED) {
+                throw new ProductNotRegisteredException();
+            }
+            return stockCount;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
+        }
+        return 0;
+    }
+
+    /**
+     * Method that gets the sales for a product
+     * @param barCode the barcode of the product to get sales for
+     * @return the number of sales for the product
+     * @throws ProductNotRegisteredException if the product to get number of sales of isn't a registered product
+     */
+    @Override
+    public int getNumberOfSales(String barCode) throws ProductNotRegisteredException {
+        try {
+            if (barCode == null) {
+                this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+                return 0;
+            }
+            int numberOfSales = lookupSales(barCode);
+            if (numberOfSales == NOT_REGISTERED) {
+                throw new ProductNotRegisteredException();
+            }
+            return numberOfSales;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
+        }
+        return 0;
+    }
+
+    /**
+     * Method for getting the amount of stock for a particular product without an exception when it isn't registered
+     * @param barCode the barcode of the product to get the stock count for
+     * @return the stock count for the product, or NOT_REGISTERED
+     */
+    @Override
+    public int lookupStock(String barCode) {
+        ConcurrentStockRecord record = barCode == null ? null : this.stockRecords.get(barCode);
+        return record == null ? NOT_REGISTERED : record.getStockCount();
+    }
+
+    /**
+     * Method for getting the sales of a particular product without an exception when it isn't registered
+     * @param barCode the barcode of the product to get sales for
+     * @return the number of sales for the product, or NOT_REGISTERED
+     */
+    @Override
+    public int lookupSales(String barCode) {
+        ConcurrentStockRecord record = barCode == null ? null : this.stockRecords.get(barCode);
+        return record == null ? NOT_REGISTERED : record.getNumberOfSales();
+    }
+
+    /**
+     * Method that gets the product that has sold the most
+     * @return the product with the most sales, or null if there are no products in the shop
+     * @throws ProductNotRegisteredException if there are no products registered in the shop
+     */
+    @Override
+    public IProduct getMostPopular() throws ProductNotRegisteredException {
+        try {
+            IStockRecord record = this.mostPopular.get();
+            if (record == null) {
+                throw new ProductNotRegisteredException();
+            }
+            return record.getProduct();
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.NOT_REGISTERED);
+        }
+        return null;
+    }
+
+    /**
+     * Method that gets the best selling products
+     * Keeping a sorted index would put a lock on the purchase path, so the records are scanned into a heap of size k instead
+     * @param k the number of products to return
+     * @return the k products with the most sales, most sales first
+     */
+    @Override
+    public List<IProduct> getTopSellers(int k) {
+        return topSellers(this.stockRecords.values(), k);
+    }
+
+    /**
+     * Method that adds a listener to be told about changes to the shop and failed operations
+     * Listeners are called on the till thread that made the change
+     * @param listener the listener to add
+     */
+    @Override
+    public void addListener(ShopListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Method that removes a listener from the shop
+     * @param listener the listener to remove
+     */
+    @Override
+    public void removeListener(ShopListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Buys the quantity of each record, refunding the records already bought from if any of them fails
+     * The whole basket is bought in one snapshot epoch, so a snapshot sees either all of it or none of it
+     * @param records the stock records of each basket line
+     * @param quantities the quantity of each basket line
+     * @param stockCounts filled with the stock count of each record straight after it was bought from, and for the
+     * line that couldn't be bought with what {@link ConcurrentStockRecord#tryBuy(int)} returned
+     * @param totalStockCount the shop's running total, only reduced once every line has been bought
+     * @param epochs the shop's snapshot epochs
+     * @return the index of the line that couldn't be bought, or -1 if every line was bought
+     */
+    static int buyAll(ConcurrentStockRecord[] records, int[] quantities, int[] stockCounts, LongAdder totalStockCount,
+            SnapshotEpoch epochs) {
+        long epoch = epochs.enter();
+        try {
+            for (int i = 0; i < records.length; i++) {
+                records[i].beforeChange(epoch);
+                stockCounts[i] = records[i].tryBuy(quantities[i]);
+                if (stockCounts[i] < 0) {
+                    for (int j = 0; j < i; j++) {
+                        totalStockCount.add(-records[j].refund(quantities[j]));
+                    }
+                    return i;
+                }
+            }
+        } finally {
+            epochs.exit(epoch);
+        }
+        for (int i = 0; i < records.length; i++) {
+            totalStockCount.add(-quantities[i]);
+        }
+        return -1;
+    }
+
+    /**
+     * Adds stock to a record inside a snapshot epoch
+     * @param record the stock record
+     * @param quantity the number of items to add
+     * @param epochs the shop's snapshot epochs
+     * @return the new stock count, or -1 if the record has been retired
+     */
+    static int stock(ConcurrentStockRecord record, int quantity, SnapshotEpoch epochs) {
+        long epoch = epochs.enter();
+        try {
+            record.beforeChange(epoch);
+            return record.tryAddStock(quantity);
+        } finally {
+            epochs.exit(epoch);
+        }
+    }
+
+    /**
+     * Buys from a record inside a snapshot epoch
+     * @param record the stock record
+     * @param quantity the number of items to buy
+     * @param epochs the shop's snapshot epochs
+     * @return the new stock count, or -1 if there isn't enough stock or the record has been retired
+     */
+    static int sell(ConcurrentStockRecord record, int quantity, SnapshotEpoch epochs) {
+        long epoch = epochs.enter();
+        try {
+            record.beforeChange(epoch);
+            return record.tryBuy(quantity);
+        } finally {
+            epochs.exit(epoch);
+        }
+    }
+
+    /**
+     * Reads every record as it was when a new snapshot epoch began
+     * The caller must stop records being added or removed until this returns
+     * @param records the stock records of the shop
+     * @param epochs the shop's snapshot epochs
+     * @return the snapshot
+     */
+    static IShopSnapshot snapshot(Iterable<ConcurrentStockRecord> records, SnapshotEpoch epochs) {
+        long epoch = epochs.advance();
+        IProduct[] products = new IProduct[16];
+        int[] stockCounts = new int[16];
+        int[] sales = new int[16];
+        long[] order = new long[16];
+        int count = 0;
+        for (ConcurrentStockRecord record : records) {
+            long state = record.getStateAt(epoch);
+            if (state < 0) {
+                continue;
+            }
+            if (count == products.length) {
+                products = Arrays.copyOf(products, count * 2);
+                stockCounts = Arrays.copyOf(stockCounts, count * 2);
+                sales = Arrays.copyOf(sales, count * 2);
+                order = Arrays.copyOf(order, count * 2);
+            }
+            products[count] = record.getProduct();
+            stockCounts[count] = ConcurrentStockRecord.stockOf(state);
+            sales[count] = ConcurrentStockRecord.salesOf(state);
+            order[count] = record.getSequence();
+            count++;
+        }
+        return new ShopSnapshot(products, stockCounts, sales, order, count);
+    }
+
+    /**
+     * Visits records in registration order, reading the stock and sales of each in one step and skipping retired records
+     * @param records the records to visit
+     * @param visitor the visitor to give each product to
+     * @throws IOException if the visitor fails to write a product
+     */
+    static void checkpoint(Iterable<ConcurrentStockRecord> records, RecordVisitor visitor) throws IOException {
+        List<ConcurrentStockRecord> ordered = new ArrayList<>();
+        for (ConcurrentStockRecord record : records) {
+            ordered.add(record);
+        }
+        ordered.sort(Comparator.comparingLong(ConcurrentStockRecord::getSequence));
+        for (ConcurrentStockRecord record : ordered) {
+            long state = record.getState();
+            if (state >= 0) {
+                visitor.visit(record.getProduct(), ConcurrentStockRecord.stockOf(state), ConcurrentStockRecord.salesOf(state));
+            }
+        }
+    }
+
+    /**
+     * Selects the k best sellers from some stock records with a bounded heap in O(n log k)
+     * Each record's sales are read once as it is offered, so purchases made while the heap is built can't reorder
+     * products already in it; removed records are skipped
+     * @param records the stock records to choose from
+     * @param k the number of products to return
+     * @return the k products with the most sales, most sales first
+     */
+    static List<IProduct> topSellers(Iterable<ConcurrentStockRecord> records, int k) {
+        if (k < 1) {
+            return new ArrayList<>();
+        }
+        PriorityQueue<Seller> heap = new PriorityQueue<>(Seller.WORST_FIRST);
+        for (ConcurrentStockRecord record : records) {
+            long state = record.getState();
+            if (state < 0) {
+                continue;
+            }
+            heap.offer(new Seller(record.getProduct(), ConcurrentStockRecord.salesOf(state), record.getSequence()));
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }
+        List<IProduct> products = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            products.add(heap.poll().product);
+        }
+        Collections.reverse(products);
+        return products;
+    }
+
+    /**
+     * A product with its sales as they were read, so it keeps its place in a heap while the record goes on selling.
+     */
+    private static final class Seller {
+
+        /**
+         * Orders sellers by fewest sales first, then by latest registered.
+         */
+        static final Comparator<Seller> WORST_FIRST = (a, b) -> {
+            int sales = Integer.compare(a.sales, b.sales);
+            return sales != 0 ? sales : Long.compare(b.sequence, a.sequence);
+        };
+
+        private final IProduct product;
+        private final int sales;
+        private final long sequence;
+
+        Seller(IProduct product, int sales, long sequence) {
+            this.product = product;
+            this.sales = sales;
+            this.sequence = sequence;
+        }
+    }
+
+}
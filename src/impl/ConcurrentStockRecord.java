@@ -0,0 +1,292 @@
+package impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import exceptions.StockUnavailableException;
+import interfaces.IProduct;
+import interfaces.IStockRecord;
+
+/**
+ * This class represents a stock record that can be updated by many threads at once without locking.
+ * The stock count and number of sales are packed into a single long so a purchase moves both with one compare-and-set,
+ * which means stock can never go negative and a sale can never be lost.
+ * The top bit marks a record that has been removed from its shop, after which it can't be stocked or bought from.
+ * Stock that would take the stock count past {@link Integer#MAX_VALUE}, and sales that would take the number of sales
+ * past it and into the top bit, are refused.
+ * For snapshots the record also keeps what it held before the first change in the latest {@link SnapshotEpoch}.
+ *
+ */
+public class ConcurrentStockRecord implements IStockRecord {
+
+    private static final long STOCK_MASK = 0xFFFFFFFFL;
+    private static final long ONE_SALE = 1L << 32;
+    private static final long SALES_MASK = 0x7FFFFFFFL;
+    private static final long RETIRED = Long.MIN_VALUE;
+    /**
+     * Returned by {@link #tryAddStock(int)} and {@link #tryBuy(int)} when the stock count or the number of sales
+     * would no longer fit in an int.
+     */
+    static final int OVERFLOW = -2;
+
+    private static final AtomicLongFieldUpdater<ConcurrentStockRecord> SAVED_EPOCH =
+            AtomicLongFieldUpdater.newUpdater(ConcurrentStockRecord.class, "savedEpoch");
+
+    private final IProduct product;
+    private final long sequence;
+    private final AtomicLong state;
+    private volatile long savedEpoch;
+    private volatile long prior;
+    private volatile long priorEpoch;
+
+    /**
+     * Stock record constructor that instantiates a record with no stock and no sales
+     * @param product the product to make the stock record for
+     */
+    public ConcurrentStockRecord(IProduct product) {
+        this(product, 0);
+    }
+
+    /**
+     * Stock record constructor used by shops that need to know the order records were registered in
+     * @param product the product to make the stock record for
+     * @param sequence the registration order of this record in its shop
+     */
+    ConcurrentStockRecord(IProduct product, long sequence) {
+        this.product = product;
+        this.sequence = sequence;
+        this.state = new AtomicLong(0);
+    }
+
+    /**
+     * Stock record constructor used when a shop is restored from a snapshot
+     * @param product the product to make the stock record for
+     * @param sequence the registration order of this record in its shop
+     * @param stockCount the stock count to start with
+     * @param sales the number of sales to start with
+     */
+    ConcurrentStockRecord(IProduct product, long sequence, int stockCount, int sales) {
+        this.product = product;
+        this.sequence = sequence;
+        this.state = new AtomicLong((stockCount & STOCK_MASK) | ((sales & SALES_MASK) << 32));
+    }
+
+    /**
+     * @return the product of the stock record
+     */
+    @Override
+    public IProduct getProduct() {
+        return this.product;
+    }
+
+    /**
+     * @return the stock count of the product
+     */
+    @Override
+    public int getStockCount() {
+        return stockOf(this.state.get());
+    }
+
+    /**
+     * @return the number of sales of the product
+     */
+    @Override
+    public int getNumberOfSales() {
+        return salesOf(this.state.get());
+    }
+
+    /**
+     * Increments the amount of stock for this product
+     */
+    @Override
+    public void addStock() {
+        tryAddStock(1);
+    }
+
+    /**
+     * Increases the amount of stock for this product by the quantity in one compare-and-set
+     * Nothing is added once the record has been removed from its shop
+     * @param quantity the number of items of stock to add
+     * @throws IllegalArgumentException if the quantity is below one or would take the stock count past Integer.MAX_VALUE
+     */
+    @Override
+    public void addStock(int quantity) {
+        if (quantity < 1 || tryAddStock(quantity) == OVERFLOW) {
+            throw new IllegalArgumentException("Stock to add must be at least one and fit in the stock count");
+        }
+    }
+
+    /**
+     * This method is for the purchase of a singular amount of this product
+     * If there is no stock of this product left nothing is bought and the exception is thrown
+     * @throws StockUnavailableException if the product trying to be bought has no stock
+     */
+    @Override
+    public void buyProduct() throws StockUnavailableException {
+        buyProduct(1);
+    }
+
+    /**
+     * This method is for the purchase of several of this product in one compare-and-set
+     * If there isn't enough stock for the whole quantity nothing is bought and the exception is thrown
+     * @param quantity the number of items to buy
+     * @throws StockUnavailableException if there are fewer than quantity items in stock, or the record has been
+     * removed from its shop
+     * @throws IllegalArgumentException if the quantity is below one or would take the sales past Integer.MAX_VALUE
+     */
+    @Override
+    public void buyProduct(int quantity) throws StockUnavailableException {
+        int stockCount = quantity < 1 ? OVERFLOW : tryBuy(quantity);
+        if (stockCount == OVERFLOW) {
+            throw new IllegalArgumentException("Quantity to buy must be at least one and fit in the number of sales");
+        }
+        if (stockCount < 0) {
+            throw new StockUnavailableException();
+        }
+    }
+
+    /**
+     * Adds stock unless the record has been removed from its shop
+     * @param quantity the number of items of stock to add, must be positive
+     * @return the stock count straight after the stock was added, -1 if the record has been removed, or
+     * {@link #OVERFLOW} if the stock count would pass {@link Integer#MAX_VALUE}
+     */
+    int tryAddStock(int quantity) {
+        long current;
+        do {
+            current = this.state.get();
+            if (current < 0) {
+                return -1;
+            }
+            if (stockOf(current) > Integer.MAX_VALUE - quantity) {
+                return OVERFLOW;
+            }
+        } while (!this.state.compareAndSet(current, current + quantity));
+        return stockOf(current) + quantity;
+    }
+
+    /**
+     * Buys stock, taking the quantity from the stock count and adding it to the sales in a single compare-and-set
+     * @param quantity the number of items to buy, must be positive
+     * @return the stock count straight after the purchase, -1 if there wasn't enough stock or the record has been
+     * removed, or {@link #OVERFLOW} if the number of sales would pass {@link Integer#MAX_VALUE}
+     */
+    int tryBuy(int quantity) {
+        long current;
+        do {
+            current = this.state.get();
+            if (current < 0 || stockOf(current) < quantity) {
+                return -1;
+            }
+            if (salesOf(current) > Integer.MAX_VALUE - quantity) {
+                return OVERFLOW;
+            }
+        } while (!this.state.compareAndSet(current, current - quantity + quantity * ONE_SALE));
+        return stockOf(current) - quantity;
+    }
+
+    /**
+     * Gives back stock from a purchase that has to be undone, taking the quantity off the sales in the same compare-and-set
+     * The stock is returned even if the record has since been removed from its shop, but if stock added since the
+     * purchase leaves no room for all of it the stock count stops at {@link Integer#MAX_VALUE}
+     * @param quantity the number of items that were bought
+     * @return the number of items that don't count towards the shop's stock: all of them if the record had been
+     * removed from its shop, otherwise any that didn't fit
+     */
+    int refund(int quantity) {
+        long current;
+        int returned;
+        do {
+            current = this.state.get();
+            returned = Math.min(quantity, Integer.MAX_VALUE - stockOf(current));
+        } while (!this.state.compareAndSet(current, current + returned - quantity * ONE_SALE));
+        return current < 0 ? quantity : quantity - returned;
+    }
+
+    /**
+     * Marks the record as removed from its shop so no further stock or sales can be applied
+     * @return the stock count at the moment of removal, or -1 if the record was already removed
+     */
+    int retire() {
+        long current;
+        do {
+            current = this.state.get();
+            if (current < 0) {
+                return -1;
+            }
+        } while (!this.state.compareAndSet(current, current | RETIRED));
+        return stockOf(current);
+    }
+
+    /**
+     * @return true if the record has been removed from its shop
+     */
+    boolean isRetired() {
+        return this.state.get() < 0;
+    }
+
+    /**
+     * @return the registration order of this record in its shop
+     */
+    long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Reads the stock count, number of sales and retired flag together
+     * @return the packed state, negative if the record has been retired
+     */
+    long getState() {
+        return this.state.get();
+    }
+
+    /**
+     * Saves what the record holds if this is the first change to it in the epoch
+     * Must be called inside the epoch, before the record is changed
+     * @param epoch the epoch the change runs in
+     */
+    void beforeChange(long epoch) {
+        long saved;
+        while ((saved = this.savedEpoch) < epoch) {
+            long current = this.state.get();
+            if (SAVED_EPOCH.compareAndSet(this, saved, epoch)) {
+                this.prior = current;
+                this.priorEpoch = epoch;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the stock count, number of sales and retired flag as they were when the epoch began
+     * @param epoch the epoch started by the snapshot reading the record
+     * @return the packed state at the start of the epoch
+     */
+    long getStateAt(long epoch) {
+        long current = this.state.get();
+        if (this.savedEpoch < epoch) {
+            return current;
+        }
+        while (this.priorEpoch < epoch) {
+            Thread.yield();
+        }
+        return this.prior;
+    }
+
+    /**
+     * @param state a state read by {@link #getState()}
+     * @return the stock count held in the state
+     */
+    static int stockOf(long state) {
+        return (int) (state & STOCK_MASK);
+    }
+
+    /**
+     * @param state a state read by {@link #getState()}
+     * @return the number of sales held in the state
+     */
+    static int salesOf(long state) {
+        return (int) ((state >>> 32) & SALES_MASK);
+    }
+
+}
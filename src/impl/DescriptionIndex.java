@@ -0,0 +1,453 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IStockRecord;
+import interfaces.ShopListener;
+
+/**
+ * This class is a listener that keeps an inverted index of a shop's product descriptions, so products can be found
+ * by the words in their descriptions without reading every product.
+ * Descriptions are split into lower case words of letters and digits. Every product gets a document number in the
+ * order it was indexed, and each word keeps the numbers of the products using it as a posting list of variable length
+ * deltas, usually one byte a product. Unregistered products are left in their lists and skipped until a list is half
+ * dead, when it is rewritten, so unregistering costs one step per word of the description. Once half the document
+ * numbers belong to unregistered products the live products are renumbered in the same order and every list is
+ * rewritten, so the index never holds more than about twice as many document numbers as products.
+ * <p>
+ * A query matches products whose descriptions contain every word of the query; a word ending in {@code *} matches
+ * any word starting with the rest of it. Matches are ranked by the rarity of the words they matched, summed over the
+ * query and divided by the square root of the number of words in the description, so rare words and short, specific
+ * descriptions come first; ties go to the product indexed first.
+ *
+ */
+public class DescriptionIndex implements ShopListener {
+
+    private static final int MIN_DOCUMENTS = 16;
+
+    private final ReentrantReadWriteLock lock;
+    private final TreeMap<String, Postings> terms;
+    private final HashMap<String, Integer> documents;
+    private IProduct[] products;
+    private int[] lengths;
+    private int nextDocument;
+    private int liveDocuments;
+
+    /**
+     * Constructor for an empty index
+     */
+    public DescriptionIndex() {
+        this.lock = new ReentrantReadWriteLock();
+        this.terms = new TreeMap<>();
+        this.documents = new HashMap<>();
+        this.products = new IProduct[MIN_DOCUMENTS];
+        this.lengths = new int[MIN_DOCUMENTS];
+        this.nextDocument = 0;
+        this.liveDocuments = 0;
+    }
+
+    /**
+     * Starts indexing a shop, including the products it already has
+     * @param shop the shop to index
+     */
+    public void attach(IShop shop) {
+        shop.addListener(this);
+        for (IStockRecord record : shop.snapshot().getStockRecords()) {
+            this.lock.writeLock().lock();
+            try {
+                if (!this.documents.containsKey(record.getProduct().getBarCode())) {
+                    add(record.getProduct());
+                }
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Finds the products whose descriptions contain every word of the query, best match first
+     * @param query the words to find, where a word ending in * matches any word it starts
+     * @param limit the most products to return
+     * @return the matching products, ranked
+     */
+    public List<IProduct> search(String query, int limit) {
+        List<String> words = query == null ? Collections.emptyList() : tokenize(query, true);
+        if (words.isEmpty() || limit < 1) {
+            return new ArrayList<>();
+        }
+        this.lock.readLock().lock();
+        try {
+            BitSet matches = null;
+            for (String word : words) {
+                BitSet wordMatches = new BitSet(this.nextDocument);
+                for (Postings postings : expand(word)) {
+                    postings.forEach(this.products, wordMatches::set);
+                }
+                if (matches == null) {
+                    matches = wordMatches;
+                } else {
+                    matches.and(wordMatches);
+                }
+                if (matches.isEmpty()) {
+                    return new ArrayList<>();
+                }
+            }
+            return rank(words, matches, limit);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void productRegistered(IProduct product) {
+        this.lock.writeLock().lock();
+        try {
+            add(product);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void productUnregistered(IProduct product, int stockCount) {
+        this.lock.writeLock().lock();
+        try {
+            Integer document = this.documents.remove(product.getBarCode());
+            if (document != null) {
+                remove(document);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes a product under a new document number, which must be called holding the write lock
+     */
+    private void add(IProduct product) {
+        Integer replaced = this.documents.remove(product.getBarCode());
+        if (replaced != null) {
+            remove(replaced);
+        }
+        int document = this.nextDocument++;
+        if (document == this.products.length) {
+            this.products = Arrays.copyOf(this.products, document * 2);
+            this.lengths = Arrays.copyOf(this.lengths, document * 2);
+        }
+        this.documents.put(product.getBarCode(), document);
+        this.products[document] = product;
+        this.lengths[document] = product.getDescription() == null ? 0 : tokenize(product.getDescription(), false).size();
+        this.liveDocuments++;
+        for (String word : distinctWords(product.getDescription())) {
+            this.terms.computeIfAbsent(word, key -> new Postings()).add(document);
+        }
+    }
+
+    /**
+     * Marks a product's document as gone in the lists of its words, which must be called holding the write lock
+     */
+    private void remove(int document) {
+        IProduct indexed = this.products[document];
+        this.products[document] = null;
+        this.liveDocuments--;
+        for (String word : distinctWords(indexed.getDescription())) {
+            Postings postings = this.terms.get(word);
+            if (postings != null && postings.kill(this.products)) {
+                this.terms.remove(word);
+            }
+        }
+        if (this.nextDocument > MIN_DOCUMENTS && this.liveDocuments * 2 < this.nextDocument) {
+            renumber();
+        }
+    }
+
+    /**
+     * Gives the registered products the lowest document numbers, keeping their order, which must be called holding
+     * the write lock
+     */
+    private void renumber() {
+        int[] renumbered = new int[this.nextDocument];
+        int next = 0;
+        for (int document = 0; document < this.nextDocument; document++) {
+            if (this.products[document] != null) {
+                renumbered[document] = next++;
+            }
+        }
+        for (Postings postings : this.terms.values()) {
+            postings.renumber(this.products, renumbered);
+        }
+        int capacity = Math.max(MIN_DOCUMENTS, Integer.highestOneBit(Math.max(1, next)) * 2);
+        IProduct[] products = new IProduct[capacity];
+        int[] lengths = new int[capacity];
+        for (int document = 0; document < this.nextDocument; document++) {
+            if (this.products[document] != null) {
+                products[renumbered[document]] = this.products[document];
+                lengths[renumbered[document]] = this.lengths[document];
+            }
+        }
+        for (Map.Entry<String, Integer> entry : this.documents.entrySet()) {
+            entry.setValue(renumbered[entry.getValue()]);
+        }
+        this.products = products;
+        this.lengths = lengths;
+        this.nextDocument = next;
+    }
+
+    /**
+     * Gets the posting lists of the words a query word matches, which must be called holding the lock
+     */
+    private Iterable<Postings> expand(String word) {
+        if (!word.endsWith("*")) {
+            Postings postings = this.terms.get(word);
+            return postings == null ? Collections.emptyList() : Collections.singletonList(postings);
+        }
+        String prefix = word.substring(0, word.length() - 1);
+        return this.terms.subMap(prefix, prefix + Character.MAX_VALUE).values();
+    }
+
+    /**
+     * Scores every match by the rarest indexed word it has for each query word, over the root of its length
+     * The matches are numbered in document order, so each posting list is merged against them in one pass
+     */
+    private List<IProduct> rank(List<String> words, BitSet matches, int limit) {
+        int[] documents = matches.stream().toArray();
+        double[] scores = new double[documents.length];
+        double[] wordScores = new double[documents.length];
+        for (String word : words) {
+            Arrays.fill(wordScores, 0);
+            for (Postings postings : expand(word)) {
+                double weight = Math.log(1 + (double) this.liveDocuments / Math.max(1, postings.live()));
+                int[] match = new int[1];
+                postings.forEach(this.products, document -> {
+                    while (match[0] < documents.length && documents[match[0]] < document) {
+                        match[0]++;
+                    }
+                    if (match[0] < documents.length && documents[match[0]] == document) {
+                        wordScores[match[0]] = Math.max(wordScores[match[0]], weight);
+                    }
+                });
+            }
+            for (int match = 0; match < documents.length; match++) {
+                scores[match] += wordScores[match];
+            }
+        }
+        for (int match = 0; match < documents.length; match++) {
+            scores[match] /= Math.sqrt(Math.max(1, this.lengths[documents[match]]));
+        }
+        int[] heap = new int[Math.min(limit, documents.length)];
+        int size = 0;
+        for (int match = 0; match < documents.length; match++) {
+            if (size < heap.length) {
+                heap[size] = match;
+                siftUp(heap, size++, scores);
+            } else if (better(match, heap[0], scores)) {
+                heap[0] = match;
+                siftDown(heap, size, scores);
+            }
+        }
+        IProduct[] ranked = new IProduct[size];
+        while (size > 0) {
+            ranked[--size] = this.products[documents[heap[0]]];
+            heap[0] = heap[size];
+            siftDown(heap, size, scores);
+        }
+        return new ArrayList<>(Arrays.asList(ranked));
+    }
+
+    /**
+     * Orders matches by score, then by document number, which is their order in the match list
+     */
+    private static boolean better(int a, int b, double[] scores) {
+        return scores[a] != scores[b] ? scores[a] > scores[b] : a < b;
+    }
+
+    /**
+     * Moves a match up a heap that keeps the worst match it holds at the top
+     */
+    private static void siftUp(int[] heap, int index, double[] scores) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!better(heap[parent], heap[index], scores)) {
+                return;
+            }
+            int swap = heap[parent];
+            heap[parent] = heap[index];
+            heap[index] = swap;
+            index = parent;
+        }
+    }
+
+    /**
+     * Moves the top match of the heap down until the worst match is at the top again
+     */
+    private static void siftDown(int[] heap, int size, double[] scores) {
+        int index = 0;
+        while (true) {
+            int worst = index;
+            for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) {
+                if (better(heap[worst], heap[child], scores)) {
+                    worst = child;
+                }
+            }
+            if (worst == index) {
+                return;
+            }
+            int swap = heap[worst];
+            heap[worst] = heap[index];
+            heap[index] = swap;
+            index = worst;
+        }
+    }
+
+    private static List<String> distinctWords(String description) {
+        if (description == null) {
+            return Collections.emptyList();
+        }
+        List<String> words = tokenize(description, false);
+        List<String> distinct = new ArrayList<>(words.size());
+        for (String word : words) {
+            if (!distinct.contains(word)) {
+                distinct.add(word);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Splits text into lower case words of letters and digits, keeping a trailing * on query words
+     */
+    private static List<String> tokenize(String text, boolean query) {
+        List<String> words = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            char c = i < lower.length() ? lower.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                boolean prefix = query && c == '*';
+                words.add(lower.substring(start, prefix ? i + 1 : i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * The document numbers of the products using a word, in increasing order, as variable length deltas.
+     */
+    private static final class Postings {
+
+        private byte[] bytes;
+        private int length;
+        private int count;
+        private int dead;
+        private int last;
+
+        Postings() {
+            this.bytes = new byte[4];
+            this.length = 0;
+            this.count = 0;
+            this.dead = 0;
+            this.last = 0;
+        }
+
+        void add(int document) {
+            int delta = document - this.last;
+            if (this.length + 5 > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.length + 5));
+            }
+            while ((delta & ~0x7F) != 0) {
+                this.bytes[this.length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            this.bytes[this.length++] = (byte) delta;
+            this.last = document;
+            this.count++;
+        }
+
+        /**
+         * @return the number of products in the list that are still registered
+         */
+        int live() {
+            return this.count - this.dead;
+        }
+
+        /**
+         * Gives every product in the list that is still registered to the consumer, in document order
+         */
+        void forEach(IProduct[] products, IntConsumer consumer) {
+            int document = 0;
+            int position = 0;
+            while (position < this.length) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = this.bytes[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                document += delta;
+                if (products[document] != null) {
+                    consumer.accept(document);
+                }
+            }
+        }
+
+        /**
+         * Rewrites the list with the new numbers of the products still registered, which keep their order
+         */
+        void renumber(IProduct[] products, int[] renumbered) {
+            BitSet live = new BitSet();
+            forEach(products, live::set);
+            this.bytes = new byte[Math.max(4, this.length)];
+            this.length = 0;
+            this.count = 0;
+            this.dead = 0;
+            this.last = 0;
+            for (int document = live.nextSetBit(0); document >= 0; document = live.nextSetBit(document + 1)) {
+                add(renumbered[document]);
+            }
+        }
+
+        /**
+         * Counts one of the products as gone, rewriting the list without them once half are gone
+         * @return true if every product in the list is gone
+         */
+        boolean kill(IProduct[] products) {
+            this.dead++;
+            if (this.dead == this.count) {
+                return true;
+            }
+            if (this.dead * 2 > this.count) {
+                BitSet live = new BitSet();
+                forEach(products, live::set);
+                this.bytes = new byte[Math.max(4, this.length / 2)];
+                this.length = 0;
+                this.count = 0;
+                this.dead = 0;
+                this.last = 0;
+                for (int document = live.nextSetBit(0); document >= 0; document = live.nextSetBit(document + 1)) {
+                    add(document);
+                }
+            }
+            return false;
+        }
+    }
+
+}
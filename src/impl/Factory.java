@@ -1,9 +1,14 @@
 package impl;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 import interfaces.IFactory;
 import interfaces.IProduct;
 import interfaces.IShop;
 import interfaces.IStockRecord;
+import interfaces.ShopConfig;
+import interfaces.ShopEngine;
 
 
 /**
@@ -13,9 +18,7 @@ import interfaces.IStockRecord;
 public final class Factory implements IFactory {
 
     private static IFactory factoryInstance = null;
-    private IProduct product;
-    private IStockRecord stockRecord;
-    private IShop shop;
+    private volatile ProductInterner interner;
 
     private Factory() {
 
@@ -36,15 +39,15 @@ public final class Factory implements IFactory {
 
     /**
      * Method that creates a product object that stores a barcode and a description
+     * While interning is on, the shared product for the barcode and description is returned if it is still in use
      * @return the product object
      * @param barCode
      * @param description
      */
     @Override
     public IProduct makeProduct(String barCode, String description) {
-        // TODO Auto-generated method stub
-        product = new Product(barCode, description);
-        return product;
+        ProductInterner current = this.interner;
+        return current == null ? new Product(barCode, description) : current.intern(barCode, description);
     }
 
     /**
@@ -55,8 +58,7 @@ public final class Factory implements IFactory {
     @Override
     public IStockRecord makeStockRecord(IProduct product) {
         // TODO Auto-generated method stub
-        stockRecord = new StockRecord(product);
-        return stockRecord;
+        return new StockRecord(product);
     }
 
     /**
@@ -66,8 +68,78 @@ public final class Factory implements IFactory {
     @Override
     public IShop makeShop() {
         // TODO Auto-generated method stub
-        shop = new Shop();
-        return shop;
+        return new Shop();
+    }
+
+    /**
+     * Method that creates a blank shop partitioned into shards by barcode hash
+     * @return the sharded shop object
+     * @param shardCount the number of independently locked shards
+     */
+    @Override
+    public IShop makeShardedShop(int shardCount) {
+        return new ShardedShop(shardCount);
+    }
+
+    /**
+     * Method that creates a blank shop backed by the engine in the config, sized as it says
+     * If the config names a journal the shop is wrapped in a {@link JournaledShop}, which replays the journal first
+     * @return the shop object
+     * @param config the settings for the shop
+     * @throws IllegalArgumentException if the config tracks best sellers for an engine other than the simple one
+     * @throws UncheckedIOException if the journal can't be opened or read
+     */
+    @Override
+    public IShop makeShop(ShopConfig config) {
+        if (config.getTrackedSellers() > 0 && config.getEngine() != ShopEngine.SIMPLE) {
+            throw new IllegalArgumentException("Only the simple engine can track a fixed number of best sellers, not "
+                    + config.getEngine());
+        }
+        int expected = config.getExpectedProducts();
+        int concurrency = config.getConcurrencyLevel();
+        IShop engine;
+        switch (config.getEngine()) {
+            case CONCURRENT:
+                engine = new ConcurrentShop(expected, concurrency);
+                break;
+            case SHARDED:
+                engine = new ShardedShop(concurrency == 0 ? ShardedShop.DEFAULT_SHARD_COUNT : concurrency, expected);
+                break;
+            case COLUMNAR:
+                engine = expected == 0 ? new ColumnarShop() : new ColumnarShop(expected);
+                break;
+            default:
+                engine = new Shop(expected, config.getTrackedSellers());
+                break;
+        }
+        if (config.getJournal() == null) {
+            return engine;
+        }
+        try {
+            return new JournaledShop(engine, config.getJournal(), config.getFsyncPolicy());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Method that turns interning of products on or off
+     * Turning it on starts with an empty cache, turning it off drops the cache
+     * @param interning whether products should be interned
+     */
+    @Override
+    public void setInterning(boolean interning) {
+        if (interning != isInterning()) {
+            this.interner = interning ? new ProductInterner() : null;
+        }
+    }
+
+    /**
+     * @return whether products are being interned
+     */
+    @Override
+    public boolean isInterning() {
+        return this.interner != null;
     }
 
 }
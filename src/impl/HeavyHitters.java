@@ -0,0 +1,157 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import interfaces.IProduct;
+import interfaces.IStockRecord;
+
+/**
+ * This class ranks only the best sellers of a shop, in a fixed number of counters however large the catalog grows.
+ * It works like a Space-Saving table: a product is offered to the table each time it sells, and when the table is full
+ * it takes the counter of the least sold product it holds. Because every stock record already counts its own sales
+ * exactly, a counter holds the record's exact count rather than Space-Saving's overestimate, and a product only takes
+ * a counter if it has sold more than the product it would replace.
+ * <p>
+ * Error bounds, where N is the number of items the shop has ever sold and m is the number of counters:
+ * <ul>
+ * <li>the ranked counts are always exact, and no product with more than N / m sales is ever left out;</li>
+ * <li>until a ranked product is unregistered the table holds exactly the m best sellers; after that, its counter goes
+ * to the next product to sell, so a product that hasn't sold since can be missed until it sells again.</li>
+ * </ul>
+ * Products with no sales aren't ranked. Products with the same number of sales are ordered by when they took their
+ * counter rather than by when they were registered. The table isn't thread safe, callers are expected to guard it.
+ *
+ */
+final class HeavyHitters implements SalesRanking {
+
+    private final int capacity;
+    private final TreeSet<Counter> ranking;
+    private final HashMap<IStockRecord, Counter> counters;
+    private long nextSequence;
+
+    /**
+     * Constructor that creates an empty table
+     * @param capacity the number of best sellers to track
+     * @throws IllegalArgumentException if the capacity isn't positive
+     */
+    HeavyHitters(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.ranking = new TreeSet<>();
+        this.counters = new HashMap<>(Shop.capacityFor(capacity));
+        this.nextSequence = 0;
+    }
+
+    /**
+     * Offers a stock record that already has sales, such as one restored from a snapshot
+     * @param record the stock record to add
+     */
+    @Override
+    public void add(IStockRecord record) {
+        if (record.getNumberOfSales() > 0) {
+            offer(record);
+        }
+    }
+
+    /**
+     * Frees the counter of a stock record, if it holds one
+     * @param record the stock record to remove
+     */
+    @Override
+    public void remove(IStockRecord record) {
+        Counter counter = this.counters.remove(record);
+        if (counter != null) {
+            this.ranking.remove(counter);
+        }
+    }
+
+    /**
+     * Offers a stock record to the table after it sold
+     * @param record the stock record that was sold from
+     * @param quantity the number of items just sold, which isn't needed as the record's own count is exact
+     */
+    @Override
+    public void update(IStockRecord record, int quantity) {
+        offer(record);
+    }
+
+    /**
+     * @return the stock record with the most sales, or null if nothing has sold
+     */
+    @Override
+    public IStockRecord first() {
+        return this.ranking.isEmpty() ? null : this.ranking.first().record;
+    }
+
+    /**
+     * Gets the products of the k best selling stock records, best seller first
+     * @param k the number of products to return, of which at most the table's capacity are known
+     * @return a list of at most k products
+     */
+    @Override
+    public List<IProduct> top(int k) {
+        List<IProduct> products = new ArrayList<>(Math.max(0, Math.min(k, this.ranking.size())));
+        Iterator<Counter> iterator = this.ranking.iterator();
+        while (products.size() < k && iterator.hasNext()) {
+            products.add(iterator.next().record.getProduct());
+        }
+        return products;
+    }
+
+    private void offer(IStockRecord record) {
+        int sales = record.getNumberOfSales();
+        Counter counter = this.counters.get(record);
+        if (counter != null) {
+            if (counter.sales != sales) {
+                this.ranking.remove(counter);
+                replace(new Counter(record, counter.sequence, sales));
+            }
+            return;
+        }
+        if (this.counters.size() >= this.capacity) {
+            Counter least = this.ranking.last();
+            if (sales <= least.sales) {
+                return;
+            }
+            this.ranking.pollLast();
+            this.counters.remove(least.record);
+        }
+        replace(new Counter(record, this.nextSequence++, sales));
+    }
+
+    private void replace(Counter counter) {
+        this.counters.put(counter.record, counter);
+        this.ranking.add(counter);
+    }
+
+    /**
+     * A counter held by a product, the number of sales is captured so the ordering can't change while it is in the tree.
+     */
+    private static final class Counter implements Comparable<Counter> {
+
+        private final IStockRecord record;
+        private final long sequence;
+        private final int sales;
+
+        Counter(IStockRecord record, long sequence, int sales) {
+            this.record = record;
+            this.sequence = sequence;
+            this.sales = sales;
+        }
+
+        @Override
+        public int compareTo(Counter other) {
+            if (this.sales != other.sales) {
+                return Integer.compare(other.sales, this.sales);
+            }
+            return Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+}
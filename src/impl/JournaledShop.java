@@ -0,0 +1,778 @@
+package impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import exceptions.StockUnavailableException;
+import interfaces.FsyncPolicy;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IShopSnapshot;
+import interfaces.IStockRecord;
+import interfaces.ShopListener;
+import interfaces.ShopResult;
+
+/**
+ * This class is a shop that keeps its state on disk by writing every change to a journal before it is acknowledged.
+ * Changes are made to another shop and, when they succeed, appended to a binary log file. Tills writing at the
+ * same time have their records written to the file together in one group commit, so one fsync covers many sales.
+ * Opening a shop on an existing journal replays it to rebuild the stock levels and sales counts, dropping a torn
+ * record left at the end by a crash. Every record starts with its length and a checksum of its payload, and the
+ * header has a checksum of its own, so a damaged length is told apart from a record cut short by the end of the file.
+ * A record that fails a checksum or can't be decoded anywhere before the end means the journal is damaged, and fails
+ * the open rather than losing the changes after it.
+ * Strings are written as an int byte length and their UTF-8 bytes.
+ * Changes are applied one at a time in journal order; lookups go straight to the wrapped shop.
+ * {@link #checkpoint()} rewrites the journal as one record per product holding its stock and sales, followed by the
+ * changes made since, so a restart doesn't replay the whole history.
+ *
+ */
+public class JournaledShop implements IShop, AutoCloseable {
+
+    /**
+     * The longest time in milliseconds written changes wait to be forced under {@link FsyncPolicy#INTERVAL}.
+     * A commit forces the file once this long has passed since the last force, and a background thread forces
+     * changes that no later commit has, so a burst followed by silence is still forced.
+     */
+    public static final long SYNC_INTERVAL_MILLIS = 100;
+
+    private static final byte REGISTER = 1;
+    private static final byte UNREGISTER = 2;
+    private static final byte ADD_STOCK = 3;
+    private static final byte BUY = 4;
+    private static final byte CHECKOUT = 5;
+    private static final byte RESTORE = 6;
+
+    private static final int HEADER_BYTES = 12;
+
+    private final IShop delegate;
+    private final Path journal;
+    private final FsyncPolicy policy;
+    private final ConcurrentHashMap<String, IProduct> products;
+    private final Object commitLock;
+    private final Object checkpointLock;
+    private final ScheduledExecutorService syncer;
+    private final CRC32 crc;
+    private final ByteBuffer header;
+    private final ByteArrayOutputStream payload;
+    private final DataOutputStream payloadOut;
+    private ByteArrayOutputStream pending;
+    private DataOutputStream out;
+    private FileChannel channel;
+    private long appendedRecords;
+    private volatile long writtenRecords;
+    private long forcedRecords;
+    private long lastForce;
+
+    /**
+     * Constructor that forces every change to disk
+     * @param delegate the empty shop to keep the state in
+     * @param journal the journal file, created if it doesn't exist
+     * @throws IOException if the journal can't be opened or read
+     */
+    public JournaledShop(IShop delegate, Path journal) throws IOException {
+        this(delegate, journal, FsyncPolicy.ALWAYS);
+    }
+
+    /**
+     * Constructor that opens the journal and replays it into the shop
+     * @param delegate the empty shop to keep the state in
+     * @param journal the journal file, created if it doesn't exist
+     * @param policy how often the journal is forced to disk
+     * @throws IOException if the journal can't be opened or read
+     */
+    public JournaledShop(IShop delegate, Path journal, FsyncPolicy policy) throws IOException {
+        this.delegate = delegate;
+        this.journal = journal;
+        this.policy = policy;
+        this.products = new ConcurrentHashMap<>();
+        this.commitLock = new Object();
+        this.checkpointLock = new Object();
+        this.crc = new CRC32();
+        this.header = ByteBuffer.allocate(HEADER_BYTES);
+        this.payload = new ByteArrayOutputStream();
+        this.payloadOut = new DataOutputStream(this.payload);
+        this.pending = new ByteArrayOutputStream();
+        this.out = new DataOutputStream(this.pending);
+        this.channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = replay();
+            this.channel.truncate(end);
+            this.channel.position(end);
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.lastForce = System.currentTimeMillis();
+        if (policy == FsyncPolicy.INTERVAL) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.syncer.scheduleWithFixedDelay(this::forceWritten, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    /**
+     * Gets the registered product with the given barcode, which is the instance to unregister after a restart
+     * @param barCode the bar code of the product
+     * @return the registered product, or null if no product with the barcode is registered
+     */
+    public IProduct getProduct(String barCode) {
+        return barCode == null ? null : this.products.get(barCode);
+    }
+
+    /**
+     * Registers the product and journals it if the wrapped shop accepted it
+     * @param product the product to be registered to the shop
+     * @throws BarCodeAlreadyInUseException if the bar code matches a product already registered
+     */
+    @Override
+    public void registerProduct(IProduct product) throws BarCodeAlreadyInUseException {
+        long record = 0;
+        synchronized (this) {
+            boolean wasFree = product != null && this.delegate.lookupStock(product.getBarCode()) == NOT_REGISTERED;
+            this.delegate.registerProduct(product);
+            if (wasFree && this.delegate.lookupStock(product.getBarCode()) != NOT_REGISTERED) {
+                this.products.put(product.getBarCode(), product);
+                record = append(REGISTER, product.getBarCode(), product.getDescription(), 0);
+            }
+        }
+        commit(record);
+    }
+
+    /**
+     * Unregisters the product and journals it if the wrapped shop removed it
+     * @param product the product to be removed from the shops registered products
+     * @throws ProductNotRegisteredException if the product to be unregistered isn't registered in the shop
+     */
+    @Override
+    public void unregisterProduct(IProduct product) throws ProductNotRegisteredException {
+        long record = 0;
+        synchronized (this) {
+            boolean wasRegistered = product != null && this.delegate.lookupStock(product.getBarCode()) != NOT_REGISTERED;
+            this.delegate.unregisterProduct(product);
+            if (wasRegistered && this.delegate.lookupStock(product.getBarCode()) == NOT_REGISTERED) {
+                this.products.remove(product.getBarCode());
+                record = append(UNREGISTER, product.getBarCode(), null, 0);
+            }
+        }
+        commit(record);
+    }
+
+    /**
+     * Adds one item of stock for the product with the barcode
+     * @param barCode a string of the barcode to have its stock incremented
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode) throws ProductNotRegisteredException {
+        addStock(barCode, 1);
+    }
+
+    /**
+     * Buys one item of the product with the barcode
+     * @param barCode the barcode of the product to be bought
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has no stock
+     */
+    @Override
+    public void buyProduct(String barCode) throws StockUnavailableException, ProductNotRegisteredException {
+        buyProduct(barCode, 1);
+    }
+
+    /**
+     * Adds several items of stock for the product with the barcode
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items to add
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode, int quantity) throws ProductNotRegisteredException {
+        tryAddStock(barCode, quantity);
+    }
+
+    /**
+     * Buys several items of the product with the barcode, all or none
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has fewer than quantity items of stock
+     */
+    @Override
+    public void buyProduct(String barCode, int quantity) throws StockUnavailableException, ProductNotRegisteredException {
+        tryBuy(barCode, quantity);
+    }
+
+    /**
+     * Buys the whole basket from the wrapped shop and journals it as one record so it is replayed all or nothing
+     * @param basket the quantity to buy for each bar code
+     * @return true if the whole basket was bought
+     * @throws StockUnavailableException if a product in the basket has less stock than its quantity
+     * @throws ProductNotRegisteredException if a product in the basket is not registered for sale in the shop
+     */
+    @Override
+    public boolean checkout(Map<String, Integer> basket) throws StockUnavailableException, ProductNotRegisteredException {
+        long record = 0;
+        boolean bought;
+        synchronized (this) {
+            bought = this.delegate.checkout(basket);
+            if (bought) {
+                record = appendCheckout(basket);
+            }
+        }
+        commit(record);
+        return bought;
+    }
+
+    /**
+     * Adds stock in the wrapped shop and journals it if it succeeded
+     * @param barCode the barcode of the product
+     * @param quantity the number of items to add
+     * @return SUCCESS, NOT_REGISTERED or INVALID_ARGUMENT
+     */
+    @Override
+    public ShopResult tryAddStock(String barCode, int quantity) {
+        long record = 0;
+        ShopResult result;
+        synchronized (this) {
+            result = this.delegate.tryAddStock(barCode, quantity);
+            if (result == ShopResult.SUCCESS) {
+                record = append(ADD_STOCK, barCode, null, quantity);
+            }
+        }
+        commit(record);
+        return result;
+    }
+
+    /**
+     * Buys from the wrapped shop and journals it if it succeeded
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @return SUCCESS, NOT_REGISTERED, STOCK_UNAVAILABLE or INVALID_ARGUMENT
+     */
+    @Override
+    public ShopResult tryBuy(String barCode, int quantity) {
+        long record = 0;
+        ShopResult result;
+        synchronized (this) {
+            result = this.delegate.tryBuy(barCode, quantity);
+            if (result == ShopResult.SUCCESS) {
+                record = append(BUY, barCode, null, quantity);
+            }
+        }
+        commit(record);
+        return result;
+    }
+
+    @Override
+    public int lookupStock(String barCode) {
+        return this.delegate.lookupStock(barCode);
+    }
+
+    @Override
+    public int lookupSales(String barCode) {
+        return this.delegate.lookupSales(barCode);
+    }
+
+    @Override
+    public void addListener(ShopListener listener) {
+        this.delegate.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(ShopListener listener) {
+        this.delegate.removeListener(listener);
+    }
+
+    @Override
+    public IShopSnapshot snapshot() {
+        return this.delegate.snapshot();
+    }
+
+    @Override
+    public int getNumberOfProducts() {
+        return this.delegate.getNumberOfProducts();
+    }
+
+    @Override
+    public int getTotalStockCount() {
+        return this.delegate.getTotalStockCount();
+    }
+
+    @Override
+    public int getStockCount(String barCode) throws ProductNotRegisteredException {
+        return this.delegate.getStockCount(barCode);
+    }
+
+    @Override
+    public int getNumberOfSales(String barCode) throws ProductNotRegisteredException {
+        return this.delegate.getNumberOfSales(barCode);
+    }
+
+    @Override
+    public IProduct getMostPopular() throws ProductNotRegisteredException {
+        return this.delegate.getMostPopular();
+    }
+
+    @Override
+    public List<IProduct> getTopSellers(int k) {
+        return this.delegate.getTopSellers(k);
+    }
+
+    /**
+     * Writes and forces every change made so far, whatever the fsync policy
+     */
+    public void flush() {
+        long record;
+        synchronized (this) {
+            record = this.appendedRecords;
+        }
+        synchronized (this.commitLock) {
+            writeThrough(record);
+            force();
+        }
+    }
+
+    /**
+     * Rewrites the journal as a record of each product's stock and sales, in registration order, followed by the
+     * changes made since, so a restart restores one record per product rather than replaying the whole history
+     * The products are read from the wrapped shop's snapshot at the point the journal was cut, and written while
+     * tills keep changing the shop; changes only wait to be written while the few made in the meantime are copied
+     * to the new journal. The new journal is forced and then moved over the old one, so a crash leaves one or the other.
+     * @return the number of products written
+     * @throws IOException if the new journal can't be written, leaving the old one in use
+     */
+    public int checkpoint() throws IOException {
+        synchronized (this.checkpointLock) {
+            IShopSnapshot snapshot;
+            long cut;
+            synchronized (this.commitLock) {
+                synchronized (this) {
+                    writeThrough(this.appendedRecords);
+                    snapshot = this.delegate.snapshot();
+                }
+                cut = this.channel.position();
+            }
+            Path temporary = this.journal.resolveSibling(this.journal.getFileName() + ".tmp");
+            FileChannel rewritten = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                int count = writeRestores(snapshot, rewritten);
+                synchronized (this.commitLock) {
+                    long record;
+                    synchronized (this) {
+                        record = this.appendedRecords;
+                    }
+                    writeThrough(record);
+                    long end = this.channel.position();
+                    for (long at = cut; at < end; ) {
+                        at += this.channel.transferTo(at, end - at, rewritten);
+                    }
+                    rewritten.force(true);
+                    Files.move(temporary, this.journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    FileChannel replaced = this.channel;
+                    this.channel = rewritten;
+                    this.forcedRecords = this.writtenRecords;
+                    this.lastForce = System.currentTimeMillis();
+                    replaced.close();
+                }
+                SnapshotFile.forceDirectory(this.journal.toAbsolutePath().getParent());
+                return count;
+            } catch (IOException | RuntimeException e) {
+                if (this.channel != rewritten) {
+                    rewritten.close();
+                    Files.deleteIfExists(temporary);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes a restore record for every product of the snapshot to the start of a new journal
+     */
+    private static int writeRestores(IShopSnapshot snapshot, FileChannel file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file), 1 << 16));
+        List<IStockRecord> records = snapshot.getStockRecords();
+        for (IStockRecord record : records) {
+            IProduct product = record.getProduct();
+            payload.reset();
+            payloadOut.writeByte(RESTORE);
+            writeString(payloadOut, product.getBarCode());
+            writeString(payloadOut, product.getDescription() == null ? "" : product.getDescription());
+            payloadOut.writeBoolean(product.getDescription() != null);
+            payloadOut.writeInt(record.getStockCount());
+            payloadOut.writeInt(record.getNumberOfSales());
+            frame(payload, crc, header, out);
+        }
+        out.flush();
+        return records.size();
+    }
+
+    /**
+     * Flushes the journal and closes the file
+     */
+    @Override
+    public void close() {
+        if (this.syncer != null) {
+            this.syncer.shutdownNow();
+        }
+        synchronized (this.checkpointLock) {
+            flush();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Adds a record to the pending batch, must be called holding the shop's lock
+     * @return the number of the record, counting from one
+     */
+    private long append(byte type, String barCode, String description, int quantity) {
+        try {
+            this.payload.reset();
+            this.payloadOut.writeByte(type);
+            writeString(this.payloadOut, barCode);
+            if (type == REGISTER) {
+                writeString(this.payloadOut, description == null ? "" : description);
+                this.payloadOut.writeBoolean(description != null);
+            } else if (type != UNREGISTER) {
+                this.payloadOut.writeInt(quantity);
+            }
+            return seal();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long appendCheckout(Map<String, Integer> basket) {
+        try {
+            this.payload.reset();
+            this.payloadOut.writeByte(CHECKOUT);
+            this.payloadOut.writeInt(basket.size());
+            for (Map.Entry<String, Integer> line : basket.entrySet()) {
+                writeString(this.payloadOut, line.getKey());
+                this.payloadOut.writeInt(line.getValue());
+            }
+            return seal();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Moves the record just encoded into the pending batch behind its length and checksums
+     */
+    private long seal() throws IOException {
+        this.payloadOut.flush();
+        frame(this.payload, this.crc, this.header, this.out);
+        return ++this.appendedRecords;
+    }
+
+    /**
+     * Writes an encoded record behind its length, the checksum of its payload and the checksum of those two
+     */
+    private static void frame(ByteArrayOutputStream payload, CRC32 crc, ByteBuffer header, DataOutputStream out) throws IOException {
+        crc.reset();
+        crc.update(payload.toByteArray());
+        header.clear();
+        header.putInt(payload.size());
+        header.putInt((int) crc.getValue());
+        crc.reset();
+        crc.update(header.array(), 0, HEADER_BYTES - 4);
+        header.putInt((int) crc.getValue());
+        out.write(header.array());
+        payload.writeTo(out);
+    }
+
+    /**
+     * Waits until the record is in the file, forced if the policy says so. The first caller to arrive writes the
+     * whole pending batch for everyone queued behind it.
+     */
+    private void commit(long record) {
+        if (record == 0) {
+            return;
+        }
+        synchronized (this.commitLock) {
+            if (this.writtenRecords < record) {
+                writeThrough(record);
+                if (this.policy == FsyncPolicy.ALWAYS
+                        || this.policy == FsyncPolicy.INTERVAL && System.currentTimeMillis() - this.lastForce >= SYNC_INTERVAL_MILLIS) {
+                    force();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending batch to the file, must be called holding the commit lock
+     */
+    private void writeThrough(long record) {
+        if (this.writtenRecords >= record) {
+            return;
+        }
+        ByteBuffer batch;
+        long last;
+        synchronized (this) {
+            batch = ByteBuffer.wrap(this.pending.toByteArray());
+            last = this.appendedRecords;
+            this.pending = new ByteArrayOutputStream(Math.max(32, batch.capacity()));
+            this.out = new DataOutputStream(this.pending);
+        }
+        try {
+            while (batch.hasRemaining()) {
+                this.channel.write(batch);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.writtenRecords = last;
+    }
+
+    /**
+     * Forces the file, which must be called holding the commit lock
+     */
+    private void force() {
+        long written = this.writtenRecords;
+        try {
+            this.channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.forcedRecords = written;
+        this.lastForce = System.currentTimeMillis();
+    }
+
+    /**
+     * Forces records that have been written but not forced, run by the background thread under {@link FsyncPolicy#INTERVAL}
+     * A failure is left for the next commit or flush to report
+     */
+    private void forceWritten() {
+        synchronized (this.commitLock) {
+            if (this.forcedRecords < this.writtenRecords && this.channel.isOpen()) {
+                try {
+                    force();
+                } catch (UncheckedIOException e) {
+                    // the next commit that forces, or flush, fails with it
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies every whole record in the journal to the wrapped shop
+     * @return the file position after the last whole record
+     * @throws IOException if a record before the end is corrupt or can't be decoded
+     */
+    private long replay() throws IOException {
+        JournalReader reader = new JournalReader(this.channel);
+        ByteBuffer record;
+        while ((record = reader.next()) != null) {
+            try {
+                apply(record);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Malformed journal record at position " + reader.position());
+            }
+            reader.advance();
+        }
+        return reader.position();
+    }
+
+    private void apply(ByteBuffer record) throws IOException {
+        try {
+            byte type = record.get();
+            if (type == CHECKOUT) {
+                int lines = record.getInt();
+                Map<String, Integer> basket = new LinkedHashMap<>();
+                for (int i = 0; i < lines; i++) {
+                    String barCode = readString(record);
+                    basket.put(barCode, record.getInt());
+                }
+                this.delegate.checkout(basket);
+                return;
+            }
+            String barCode = readString(record);
+            switch (type) {
+                case REGISTER:
+                    String description = readString(record);
+                    IProduct product = Factory.getInstance().makeProduct(barCode, record.get() != 0 ? description : null);
+                    this.delegate.registerProduct(product);
+                    this.products.put(barCode, product);
+                    break;
+                case RESTORE:
+                    String restoredDescription = readString(record);
+                    IProduct restored = Factory.getInstance().makeProduct(barCode, record.get() != 0 ? restoredDescription : null);
+                    int stockCount = record.getInt();
+                    int sales = record.getInt();
+                    if (this.delegate instanceof Checkpointable ? ((Checkpointable) this.delegate).restore(restored, stockCount, sales)
+                            : SnapshotFile.replay(this.delegate, restored, stockCount, sales)) {
+                        this.products.put(barCode, restored);
+                    }
+                    break;
+                case UNREGISTER:
+                    IProduct registered = this.products.remove(barCode);
+                    if (registered != null) {
+                        this.delegate.unregisterProduct(registered);
+                    }
+                    break;
+                case ADD_STOCK:
+                    this.delegate.tryAddStock(barCode, record.getInt());
+                    break;
+                case BUY:
+                    this.delegate.tryBuy(barCode, record.getInt());
+                    break;
+                default:
+                    throw new IOException("Unknown journal record type " + type);
+            }
+        } catch (BarCodeAlreadyInUseException | ProductNotRegisteredException | StockUnavailableException e) {
+            // the wrapped shop reports these to its listeners rather than throwing them
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0 || length > record.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads checksummed records from the start of a journal file.
+     */
+    private static final class JournalReader {
+
+        private final FileChannel channel;
+        private final CRC32 crc;
+        private long position;
+        private int length;
+
+        JournalReader(FileChannel channel) {
+            this.channel = channel;
+            this.crc = new CRC32();
+            this.position = 0;
+        }
+
+        /**
+         * @return the position of the record last returned by {@link #next()}, or the end of the whole records once
+         * it returns null
+         */
+        long position() {
+            return this.position;
+        }
+
+        /**
+         * Moves past the record last returned by {@link #next()}
+         */
+        void advance() {
+            this.position += HEADER_BYTES + this.length;
+        }
+
+        /**
+         * @return the payload of the next record, or null at the end of the file or at a torn record ending it
+         * @throws IOException if a record that isn't the last fails a checksum
+         */
+        ByteBuffer next() throws IOException {
+            long size = this.channel.size();
+            if (size - this.position < HEADER_BYTES) {
+                return null;
+            }
+            ByteBuffer header = read(this.position, HEADER_BYTES);
+            this.length = header.getInt();
+            int checksum = header.getInt();
+            this.crc.reset();
+            this.crc.update(header.array(), 0, HEADER_BYTES - 4);
+            if ((int) this.crc.getValue() != header.getInt()) {
+                if (zeroFrom(this.position, size)) {
+                    return null;
+                }
+                throw new IOException("Corrupt journal record header at position " + this.position);
+            }
+            if (this.length < 1) {
+                throw new IOException("Corrupt journal record header at position " + this.position);
+            }
+            if (this.length > size - this.position - HEADER_BYTES) {
+                return null;
+            }
+            ByteBuffer payload = read(this.position + HEADER_BYTES, this.length);
+            this.crc.reset();
+            this.crc.update(payload.array(), 0, this.length);
+            if ((int) this.crc.getValue() != checksum) {
+                if (this.position + HEADER_BYTES + this.length == size) {
+                    return null;
+                }
+                throw new IOException("Corrupt journal record at position " + this.position);
+            }
+            return payload;
+        }
+
+        /**
+         * @return whether the file holds only zeros from the position to its end, as a crash can leave after a torn write
+         */
+        private boolean zeroFrom(long at, long size) throws IOException {
+            for (long chunk = at; chunk < size; chunk += 65536) {
+                ByteBuffer bytes = read(chunk, (int) Math.min(65536, size - chunk));
+                while (bytes.hasRemaining()) {
+                    if (bytes.get() != 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private ByteBuffer read(long at, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (this.channel.read(buffer, at + buffer.position()) < 0) {
+                    throw new EOFException("Journal shrank while it was read");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package impl;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class tracks the best selling record of a concurrent shop without locking.
+ * The best seller is held as an immutable snapshot of the record and its sales, and every purchase offers its record:
+ * the best seller's own purchases replace the snapshot with a newer one, and any other record is compared with the
+ * best seller's live sales and installed only if it ranks higher. Because each change of the best seller's sales
+ * replaces the snapshot, an offer decided against older sales fails its compare-and-set and is decided again, so
+ * the tracked record is always the best seller once the purchases in flight have been offered.
+ * When the best seller is removed it stays tracked until the remaining records have been scanned for its successor,
+ * so the tracker is never empty while the shop has products.
+ *
+ */
+class MostPopularTracker {
+
+    private final AtomicReference<Leader> mostPopular;
+
+    /**
+     * Constructor for a tracker with no best seller
+     */
+    MostPopularTracker() {
+        this.mostPopular = new AtomicReference<>();
+    }
+
+    /**
+     * @return the best selling record, or null if no records have been offered
+     */
+    ConcurrentStockRecord get() {
+        Leader leader = this.mostPopular.get();
+        return leader == null ? null : leader.record;
+    }
+
+    /**
+     * Replaces the best seller with the given record if it now ranks higher
+     * @param record a record that has just been registered or sold from
+     * @param remaining the records still in the shop, used if the record turns out to have been removed
+     */
+    void offer(ConcurrentStockRecord record, Iterable<ConcurrentStockRecord> remaining) {
+        while (true) {
+            Leader current = this.mostPopular.get();
+            int sales = record.getNumberOfSales();
+            if (current != null && current.record == record) {
+                if (sales <= current.sales) {
+                    return;
+                }
+            } else if (current != null && !current.record.isRetired()
+                    && ConcurrentShop.POPULARITY.compare(current.record, record) <= 0) {
+                return;
+            }
+            if (this.mostPopular.compareAndSet(current, new Leader(record, sales))) {
+                break;
+            }
+        }
+        if (record.isRetired()) {
+            removed(record, remaining);
+        }
+    }
+
+    /**
+     * Finds the best seller among the remaining records if the given record was the best seller
+     * The removed record stays tracked until its successor is installed
+     * @param retired a record that has been removed from the shop
+     * @param remaining the records still in the shop
+     */
+    void removed(ConcurrentStockRecord retired, Iterable<ConcurrentStockRecord> remaining) {
+        Leader current = this.mostPopular.get();
+        if (current == null || current.record != retired) {
+            return;
+        }
+        ConcurrentStockRecord best = null;
+        for (ConcurrentStockRecord candidate : remaining) {
+            if (!candidate.isRetired() && (best == null || ConcurrentShop.POPULARITY.compare(candidate, best) < 0)) {
+                best = candidate;
+            }
+        }
+        while (true) {
+            current = this.mostPopular.get();
+            if (current != null && !current.record.isRetired()) {
+                // a record sold during the scan took over, so the scan's best must beat it
+                if (best != null) {
+                    offer(best, remaining);
+                }
+                return;
+            }
+            if (this.mostPopular.compareAndSet(current, best == null ? null : new Leader(best, best.getNumberOfSales()))) {
+                if (best != null && best.isRetired()) {
+                    removed(best, remaining);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * The best seller with the sales it had when it was installed or last sold.
+     */
+    private static final class Leader {
+
+        private final ConcurrentStockRecord record;
+        private final int sales;
+
+        Leader(ConcurrentStockRecord record, int sales) {
+            this.record = record;
+            this.sales = sales;
+        }
+    }
+
+}
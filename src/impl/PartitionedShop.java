@@ -0,0 +1,910 @@
+package impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import exceptions.StockUnavailableException;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IShopSnapshot;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
+
+/**
+ * This class is a shop whose catalog is spread over several {@link ShopServer} nodes, usually separate processes,
+ * so it can hold more products than one heap. Each barcode lives on exactly one node, chosen by consistent hashing:
+ * every node owns {@link #VIRTUAL_NODES} points on a ring of 64 bit hashes and a barcode belongs to the node owning
+ * the next point after the barcode's hash. Adding a node only moves the barcodes that now fall just before its
+ * points, about one in every n + 1 of them, straight from their old nodes to the new one; the old nodes pick them
+ * out themselves, so the catalog never passes through the client.
+ * Calls about one barcode go to its node; calls about the whole shop, such as the totals and the best sellers,
+ * are written to every node before any reply is read, so the nodes answer at the same time, and the replies are
+ * merged. A node's best sellers are exact for that node and every barcode lives on one node, so merging each
+ * node's top k gives the exact top k.
+ * A basket whose products all live on one node is bought all or nothing by that node. A basket spread over several
+ * nodes is refused, since a sale can't be taken back from a node once it is made and another client could take the
+ * stock of one node's lines while another node is buying; {@link #getNode(String)} lets a till split its baskets.
+ * Each node has one connection, used by one call at a time. A {@link ShopServer} serves one client at a time, so
+ * this client is the only one changing its nodes: nothing else can change the products being moved while a node
+ * joins, and the listeners hear about every change. A second client on the same nodes waits until this one is closed.
+ * A node that can't be reached, or fails or sends a bad reply partway through a call, fails the call with
+ * an {@link UncheckedIOException}. The connection of every node whose reply was left unread is closed, so that reply
+ * can't be taken as the answer to a later request, and the next call to the node connects again.
+ *
+ */
+public class PartitionedShop implements IShop, AutoCloseable {
+
+    /**
+     * The number of points each node owns on the hash ring.
+     */
+    public static final int VIRTUAL_NODES = 128;
+
+    private static final ShopResult[] RESULTS = ShopResult.values();
+
+    /**
+     * The most products moved in one exchange, so a node's replies can't fill the socket while requests are still written.
+     */
+    private static final int MOVE_PAGE = 1024;
+
+    private final ReentrantReadWriteLock membership;
+    private final List<Node> nodes;
+    private final ShopListeners listeners;
+    private Ring ring;
+    private Join pending;
+
+    /**
+     * Constructor that connects to every node
+     * @param addresses the addresses of the nodes, which should all be empty or hold the barcodes the ring gives them
+     * @throws IOException if a node can't be connected to
+     * @throws IllegalArgumentException if there are no nodes
+     */
+    public PartitionedShop(List<InetSocketAddress> addresses) throws IOException {
+        if (addresses == null || addresses.isEmpty()) {
+            throw new IllegalArgumentException("A partitioned shop needs at least one node");
+        }
+        this.membership = new ReentrantReadWriteLock();
+        this.nodes = new ArrayList<>(addresses.size());
+        this.listeners = new ShopListeners();
+        try {
+            for (InetSocketAddress address : addresses) {
+                this.nodes.add(new Node(address));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        this.ring = new Ring(this.nodes);
+    }
+
+    /**
+     * Adds a node to the shop and moves the products that now belong to it from the other nodes
+     * Each old node picks out the products that move and sends them a page at a time, so they never all pass through
+     * this client at once. They are copied to the new node first; if a copy fails, the new node's copies are dropped
+     * and the shop is left as it was. Once every copy has succeeded the old nodes drop their copies, and only then
+     * does the new node join the ring. If a node fails while dropping, the join is left unfinished and every other
+     * call fails until this method is called again with the same address, which finishes it; dropping a product
+     * that is already gone does nothing, so it is safe to repeat. Every other call waits until the products have moved.
+     * @param address the address of the new node, which must be empty
+     * @return the number of products moved to the new node
+     * @throws IOException if the node can't be connected to, or a node fails while products are being moved
+     * @throws IllegalArgumentException if the new node already holds products
+     * @throws IllegalStateException if another node's join hasn't been finished
+     */
+    public int addNode(InetSocketAddress address) throws IOException {
+        this.membership.writeLock().lock();
+        try {
+            if (this.pending != null) {
+                if (!this.pending.node.address.equals(address)) {
+                    throw new IllegalStateException("Node " + this.pending.node.address + " hasn't finished joining");
+                }
+                return finishJoin();
+            }
+            Node added = new Node(address);
+            int joining = this.nodes.size();
+            List<Node> joined = new ArrayList<>(this.nodes);
+            joined.add(added);
+            Ring ring = new Ring(joined);
+            int moved;
+            try {
+                if (added.call(out -> out.writeByte(ShopProtocol.TOTALS), in -> new int[] {in.readInt(), in.readInt()})[0] != 0) {
+                    throw new IllegalArgumentException("A joining node must be empty");
+                }
+                moved = copyMoving(added, joining, ring);
+            } catch (IOException | RuntimeException e) {
+                if (!(e instanceof IllegalArgumentException)) {
+                    try {
+                        added.call(out -> ring.write(out, ShopProtocol.DROP_MOVING, joining), DataInputStream::readInt);
+                    } catch (UncheckedIOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+                added.close();
+                if (e instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e).getCause();
+                }
+                throw e;
+            }
+            this.pending = new Join(added, ring, moved);
+            return finishJoin();
+        } finally {
+            this.membership.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the moved products from the old nodes, then puts the joining node in the ring, which must be called
+     * holding the membership write lock
+     * @return the number of products moved to the joining node
+     * @throws IOException if a node fails while dropping, leaving the join to be finished by calling this again
+     */
+    private int finishJoin() throws IOException {
+        Join join = this.pending;
+        int joining = this.nodes.size();
+        try {
+            for (Node node : this.nodes) {
+                node.call(out -> join.ring.write(out, ShopProtocol.DROP_MOVING, joining), DataInputStream::readInt);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        this.nodes.add(join.node);
+        this.ring = join.ring;
+        this.pending = null;
+        return join.moved;
+    }
+
+    /**
+     * Copies the products the ring gives to the joining node from every other node, a page at a time
+     * @return the number of products copied
+     * @throws IOException if the joining node refuses a product
+     */
+    private int copyMoving(Node added, int joining, Ring ring) throws IOException {
+        int copied = 0;
+        for (int index = 0; index < joining; index++) {
+            Node node = this.nodes.get(index);
+            List<Row> page = node.call(out -> {
+                ring.write(out, ShopProtocol.MOVING, joining);
+                out.writeInt(MOVE_PAGE);
+            }, PartitionedShop::readRows);
+            while (true) {
+                List<Row> copying = page;
+                int restored = added.call(out -> {
+                    for (Row row : copying) {
+                        out.writeByte(ShopProtocol.RESTORE);
+                        ShopProtocol.writeString(out, row.product.getBarCode());
+                        ShopProtocol.writeString(out, row.product.getDescription());
+                        out.writeInt(row.stockCount);
+                        out.writeInt(row.sales);
+                    }
+                }, in -> {
+                    int succeeded = 0;
+                    for (int i = 0; i < copying.size(); i++) {
+                        succeeded += readResult(in) == ShopResult.SUCCESS ? 1 : 0;
+                    }
+                    return succeeded;
+                });
+                if (restored != copying.size()) {
+                    throw new IOException("Node " + added.address + " refused products moved from " + node.address);
+                }
+                copied += restored;
+                if (page.size() < MOVE_PAGE) {
+                    break;
+                }
+                page = node.call(out -> {
+                    out.writeByte(ShopProtocol.MOVING_NEXT);
+                    out.writeInt(MOVE_PAGE);
+                }, PartitionedShop::readRows);
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Gets the node a barcode belongs to, so a basket can be split into the parts each node can buy whole
+     * @param barCode the barcode
+     * @return the address of the node that holds or would hold the barcode
+     */
+    public InetSocketAddress getNode(String barCode) {
+        return withNodes(() -> nodeFor(barCode).address);
+    }
+
+    /**
+     * @return the addresses of the nodes, in the order they joined
+     */
+    public List<InetSocketAddress> getNodes() {
+        return withNodes(() -> {
+            List<InetSocketAddress> addresses = new ArrayList<>(this.nodes.size());
+            for (Node node : this.nodes) {
+                addresses.add(node.address);
+            }
+            return addresses;
+        });
+    }
+
+    /**
+     * Registers the product on the node its barcode belongs to
+     * @param product the product to be registered to the shop
+     * @throws BarCodeAlreadyInUseException if the bar code matches a product already registered
+     */
+    @Override
+    public void registerProduct(IProduct product) throws BarCodeAlreadyInUseException {
+        if (product == null || product.getBarCode() == null) {
+            this.listeners.operationFailed(ShopOperation.REGISTER, null, ShopResult.INVALID_ARGUMENT);
+            return;
+        }
+        ShopResult result = withNodes(() -> nodeFor(product.getBarCode()).call(
+                out -> writeProduct(out, ShopProtocol.REGISTER, product), in -> {
+                    ShopResult registered = readResult(in);
+                    in.readInt();
+                    return registered;
+                }));
+        if (result == ShopResult.SUCCESS) {
+            this.listeners.productRegistered(product);
+        } else {
+            this.listeners.operationFailed(ShopOperation.REGISTER, product.getBarCode(), result);
+        }
+    }
+
+    /**
+     * Unregisters the product from the node its barcode belongs to
+     * The node holds its own copy of the product, so any product with the same barcode and description matches
+     * @param product the product to be removed from the shops registered products
+     * @throws ProductNotRegisteredException if the product to be unregistered isn't registered in the shop
+     */
+    @Override
+    public void unregisterProduct(IProduct product) throws ProductNotRegisteredException {
+        if (product == null || product.getBarCode() == null) {
+            this.listeners.operationFailed(ShopOperation.UNREGISTER, null, ShopResult.INVALID_ARGUMENT);
+            return;
+        }
+        int[] stockCount = new int[1];
+        ShopResult result = withNodes(() -> nodeFor(product.getBarCode()).call(
+                out -> writeProduct(out, ShopProtocol.UNREGISTER, product), in -> {
+                    ShopResult unregistered = readResult(in);
+                    stockCount[0] = in.readInt();
+                    return unregistered;
+                }));
+        if (result == ShopResult.SUCCESS) {
+            this.listeners.productUnregistered(product, stockCount[0]);
+        } else {
+            this.listeners.operationFailed(ShopOperation.UNREGISTER, product.getBarCode(), result);
+        }
+    }
+
+    /**
+     * Adds one item of stock for the product with the barcode
+     * @param barCode a string of the barcode to have its stock incremented
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode) throws ProductNotRegisteredException {
+        tryAddStock(barCode, 1);
+    }
+
+    /**
+     * Buys one item of the product with the barcode
+     * @param barCode the barcode of the product to be bought
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has no stock
+     */
+    @Override
+    public void buyProduct(String barCode) throws StockUnavailableException, ProductNotRegisteredException {
+        tryBuy(barCode, 1);
+    }
+
+    /**
+     * Adds several items of stock for the product with the barcode
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items to add
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode, int quantity) throws ProductNotRegisteredException {
+        tryAddStock(barCode, quantity);
+    }
+
+    /**
+     * Buys several items of the product with the barcode, all or none
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has fewer than quantity items of stock
+     */
+    @Override
+    public void buyProduct(String barCode, int quantity) throws StockUnavailableException, ProductNotRegisteredException {
+        tryBuy(barCode, quantity);
+    }
+
+    /**
+     * Buys a basket, in one request to the node that holds it
+     * A basket whose products live on more than one node is refused as an invalid argument
+     * @param basket the quantity to buy for each bar code
+     * @return true if the whole basket was bought
+     * @throws StockUnavailableException if a product in the basket has less stock than its quantity
+     * @throws ProductNotRegisteredException if a product in the basket is not registered for sale in the shop
+     */
+    @Override
+    public boolean checkout(Map<String, Integer> basket) throws StockUnavailableException, ProductNotRegisteredException {
+        if (basket == null) {
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, null, ShopResult.INVALID_ARGUMENT);
+            return false;
+        }
+        for (Map.Entry<String, Integer> entry : basket.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null || entry.getValue() < 1) {
+                this.listeners.operationFailed(ShopOperation.CHECKOUT, entry.getKey(), ShopResult.INVALID_ARGUMENT);
+                return false;
+            }
+        }
+        return withNodes(() -> checkoutOn(basket));
+    }
+
+    /**
+     * Adds stock on the node the barcode belongs to
+     * @param barCode the barcode of the product
+     * @param quantity the number of items to add
+     * @return SUCCESS, NOT_REGISTERED or INVALID_ARGUMENT
+     */
+    @Override
+    public ShopResult tryAddStock(String barCode, int quantity) {
+        return change(ShopOperation.ADD_STOCK, ShopProtocol.ADD_STOCK, barCode, quantity);
+    }
+
+    /**
+     * Buys from the node the barcode belongs to
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @return SUCCESS, NOT_REGISTERED, STOCK_UNAVAILABLE or INVALID_ARGUMENT
+     */
+    @Override
+    public ShopResult tryBuy(String barCode, int quantity) {
+        return change(ShopOperation.BUY, ShopProtocol.BUY, barCode, quantity);
+    }
+
+    @Override
+    public int lookupStock(String barCode) {
+        return lookup(ShopProtocol.LOOKUP_STOCK, barCode);
+    }
+
+    @Override
+    public int lookupSales(String barCode) {
+        return lookup(ShopProtocol.LOOKUP_SALES, barCode);
+    }
+
+    @Override
+    public void addListener(ShopListener listener) {
+        this.listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(ShopListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Takes a snapshot of every node at once
+     * Each node's products are in registration order, node after node; the nodes may be read at slightly different times
+     * @return the snapshot
+     */
+    @Override
+    public IShopSnapshot snapshot() {
+        List<List<Row>> parts = withNodes(() -> scatter(out -> out.writeByte(ShopProtocol.RECORDS), PartitionedShop::readRows));
+        int length = 0;
+        for (List<Row> part : parts) {
+            length += part.size();
+        }
+        IProduct[] products = new IProduct[length];
+        int[] stockCounts = new int[length];
+        int[] sales = new int[length];
+        int position = 0;
+        for (List<Row> part : parts) {
+            for (Row row : part) {
+                products[position] = row.product;
+                stockCounts[position] = row.stockCount;
+                sales[position] = row.sales;
+                position++;
+            }
+        }
+        return new ShopSnapshot(products, stockCounts, sales, null, length);
+    }
+
+    @Override
+    public int getNumberOfProducts() {
+        return totals()[0];
+    }
+
+    @Override
+    public int getTotalStockCount() {
+        return totals()[1];
+    }
+
+    /**
+     * Method that gets the stock count of the product with the barcode
+     * @param barCode the barcode of the product
+     * @return the stock count, or zero if the product isn't registered
+     * @throws ProductNotRegisteredException if the product isn't registered in the shop
+     */
+    @Override
+    public int getStockCount(String barCode) throws ProductNotRegisteredException {
+        return registeredCount(ShopProtocol.LOOKUP_STOCK, barCode);
+    }
+
+    /**
+     * Method that gets the number of sales of the product with the barcode
+     * @param barCode the barcode of the product
+     * @return the number of sales, or zero if the product isn't registered
+     * @throws ProductNotRegisteredException if the product isn't registered in the shop
+     */
+    @Override
+    public int getNumberOfSales(String barCode) throws ProductNotRegisteredException {
+        return registeredCount(ShopProtocol.LOOKUP_SALES, barCode);
+    }
+
+    /**
+     * Method that gets the product that has sold the most, asking every node for its own best seller
+     * Ties go to the node that joined first
+     * @return the product with the most sales, or null if there are no products in the shop
+     * @throws ProductNotRegisteredException if there are no products registered in the shop
+     */
+    @Override
+    public IProduct getMostPopular() throws ProductNotRegisteredException {
+        List<IProduct> top = getTopSellers(1);
+        if (top.isEmpty()) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.NOT_REGISTERED);
+            return null;
+        }
+        return top.get(0);
+    }
+
+    /**
+     * Method that gets the best selling products, merging the top k of every node
+     * Ties go to the node that joined first, then to the order the node ranks them in
+     * @param k the number of products to return
+     * @return the k products with the most sales, most sales first
+     */
+    @Override
+    public List<IProduct> getTopSellers(int k) {
+        if (k < 1) {
+            return new ArrayList<>();
+        }
+        List<List<Row>> parts = withNodes(() -> scatter(out -> {
+            out.writeByte(ShopProtocol.TOP);
+            out.writeInt(k);
+        }, in -> {
+            int count = in.readInt();
+            List<Row> rows = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String barCode = ShopProtocol.readString(in);
+                String description = ShopProtocol.readString(in);
+                rows.add(new Row(Factory.getInstance().makeProduct(barCode, description), 0, in.readInt()));
+            }
+            return rows;
+        }));
+        // each part is already best first, so repeatedly take the best head
+        int[] heads = new int[parts.size()];
+        List<IProduct> products = new ArrayList<>(k);
+        while (products.size() < k) {
+            int best = -1;
+            for (int part = 0; part < parts.size(); part++) {
+                if (heads[part] < parts.get(part).size()
+                        && (best < 0 || parts.get(part).get(heads[part]).sales > parts.get(best).get(heads[best]).sales)) {
+                    best = part;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            products.add(parts.get(best).get(heads[best]++).product);
+        }
+        return products;
+    }
+
+    /**
+     * Closes the connection to every node, leaving the nodes running
+     */
+    @Override
+    public void close() {
+        IOException failure = null;
+        for (Node node : this.nodes) {
+            try {
+                node.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    private ShopResult change(ShopOperation operation, byte request, String barCode, int quantity) {
+        if (barCode == null || quantity < 1) {
+            this.listeners.operationFailed(operation, barCode, ShopResult.INVALID_ARGUMENT);
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        int[] stockCount = new int[1];
+        ShopResult result = withNodes(() -> nodeFor(barCode).call(out -> {
+            out.writeByte(request);
+            ShopProtocol.writeString(out, barCode);
+            out.writeInt(quantity);
+        }, in -> {
+            ShopResult changed = readResult(in);
+            stockCount[0] = in.readInt();
+            return changed;
+        }));
+        if (result != ShopResult.SUCCESS) {
+            this.listeners.operationFailed(operation, barCode, result);
+        } else if (operation == ShopOperation.ADD_STOCK) {
+            this.listeners.stockAdded(barCode, quantity, stockCount[0]);
+        } else {
+            this.listeners.productSold(barCode, quantity, stockCount[0]);
+        }
+        return result;
+    }
+
+    private int lookup(byte request, String barCode) {
+        if (barCode == null) {
+            return NOT_REGISTERED;
+        }
+        return withNodes(() -> nodeFor(barCode).call(out -> {
+            out.writeByte(request);
+            ShopProtocol.writeString(out, barCode);
+        }, DataInputStream::readInt));
+    }
+
+    private int registeredCount(byte request, String barCode) {
+        if (barCode == null) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+            return 0;
+        }
+        int count = lookup(request, barCode);
+        if (count == NOT_REGISTERED) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
+            return 0;
+        }
+        return count;
+    }
+
+    private int[] totals() {
+        List<int[]> parts = withNodes(() -> scatter(out -> out.writeByte(ShopProtocol.TOTALS),
+                in -> new int[] {in.readInt(), in.readInt()}));
+        int[] totals = new int[2];
+        for (int[] part : parts) {
+            totals[0] += part[0];
+            totals[1] += part[1];
+        }
+        return totals;
+    }
+
+    /**
+     * Buys the basket from the one node holding it, which must be called holding the membership lock
+     */
+    private boolean checkoutOn(Map<String, Integer> basket) {
+        Node node = null;
+        for (String barCode : basket.keySet()) {
+            Node owner = nodeFor(barCode);
+            if (node != null && owner != node) {
+                this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                return false;
+            }
+            node = owner;
+        }
+        if (node == null) {
+            return true;
+        }
+        Object reply = node.call(out -> {
+            out.writeByte(ShopProtocol.CHECKOUT);
+            out.writeInt(basket.size());
+            for (Map.Entry<String, Integer> entry : basket.entrySet()) {
+                ShopProtocol.writeString(out, entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }, in -> {
+            ShopResult result = readResult(in);
+            if (result != ShopResult.SUCCESS) {
+                return new Object[] {result, ShopProtocol.readString(in)};
+            }
+            int[] counts = new int[basket.size()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = in.readInt();
+            }
+            return counts;
+        });
+        if (reply instanceof Object[]) {
+            Object[] failure = (Object[]) reply;
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, (String) failure[1], (ShopResult) failure[0]);
+            return false;
+        }
+        int[] counts = (int[]) reply;
+        int line = 0;
+        for (Map.Entry<String, Integer> entry : basket.entrySet()) {
+            this.listeners.productSold(entry.getKey(), entry.getValue(), counts[line++]);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the request to every node before reading any reply, which must be called holding the membership lock
+     */
+    private <R> List<R> scatter(Request request, Reply<R> reply) {
+        lockAll(this.nodes);
+        try {
+            return exchange(this.nodes, request, reply);
+        } finally {
+            unlockAll(this.nodes);
+        }
+    }
+
+    /**
+     * Writes the request to each node, then reads each reply, which must be called holding every node's lock
+     * If a node fails, every node that was sent the request but whose reply wasn't read is disconnected
+     */
+    private static <R> List<R> exchange(List<Node> targets, Request request, Reply<R> reply) {
+        int written = 0;
+        int read = 0;
+        try {
+            for (; written < targets.size(); written++) {
+                Node node = targets.get(written);
+                node.connect();
+                request.write(node.out);
+                node.out.flush();
+            }
+            List<R> replies = new ArrayList<>(targets.size());
+            for (; read < targets.size(); read++) {
+                replies.add(reply.read(targets.get(read).in));
+            }
+            return replies;
+        } catch (IOException | RuntimeException e) {
+            Node failed = targets.get(written < targets.size() ? written : read);
+            for (int i = read; i < Math.min(written + 1, targets.size()); i++) {
+                targets.get(i).disconnect();
+            }
+            throw failed.failure(e);
+        }
+    }
+
+    private static void lockAll(List<Node> targets) {
+        for (Node node : targets) {
+            node.lock.lock();
+        }
+    }
+
+    private static void unlockAll(List<Node> targets) {
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            targets.get(i).lock.unlock();
+        }
+    }
+
+    private <R> R withNodes(Supplier<R> call) {
+        this.membership.readLock().lock();
+        try {
+            if (this.pending != null) {
+                throw new UncheckedIOException(new IOException("Node " + this.pending.node.address
+                        + " hasn't finished joining, add it again to finish"));
+            }
+            return call.get();
+        } finally {
+            this.membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the node a barcode belongs to, which must be called holding the membership lock
+     */
+    private Node nodeFor(String barCode) {
+        return this.nodes.get(this.ring.owners[ShopProtocol.pointOf(this.ring.points, barCode)]);
+    }
+
+    private static void writeProduct(DataOutputStream out, byte request, IProduct product) throws IOException {
+        out.writeByte(request);
+        ShopProtocol.writeString(out, product.getBarCode());
+        ShopProtocol.writeString(out, product.getDescription());
+    }
+
+    private static ShopResult readResult(DataInputStream in) throws IOException {
+        return RESULTS[in.readUnsignedByte()];
+    }
+
+    private static List<Row> readRows(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Row> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String barCode = ShopProtocol.readString(in);
+            String description = ShopProtocol.readString(in);
+            rows.add(new Row(Factory.getInstance().makeProduct(barCode, description), in.readInt(), in.readInt()));
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * Writes a request to a node.
+     */
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads a node's reply to a request.
+     */
+    private interface Reply<R> {
+        R read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * A product with its stock count and sales as a node reported them.
+     */
+    private static final class Row {
+
+        private final IProduct product;
+        private final int stockCount;
+        private final int sales;
+
+        Row(IProduct product, int stockCount, int sales) {
+            this.product = product;
+            this.stockCount = stockCount;
+            this.sales = sales;
+        }
+    }
+
+    /**
+     * A node that has been sent its products but isn't in the ring yet, because the old nodes haven't all dropped theirs.
+     */
+    private static final class Join {
+
+        private final Node node;
+        private final Ring ring;
+        private final int moved;
+
+        Join(Node node, Ring ring, int moved) {
+            this.node = node;
+            this.ring = ring;
+            this.moved = moved;
+        }
+    }
+
+    /**
+     * The connection to one node, used by one call at a time. A connection that fails partway through a call is
+     * closed, and the next call connects again.
+     */
+    private static final class Node {
+
+        private final InetSocketAddress address;
+        private final ReentrantLock lock;
+        private volatile Socket socket;
+        private volatile boolean closed;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Node(InetSocketAddress address) throws IOException {
+            this.address = address;
+            this.lock = new ReentrantLock();
+            connect();
+        }
+
+        /**
+         * Connects to the node unless it is already connected, which must be called holding the lock
+         */
+        void connect() throws IOException {
+            if (this.closed) {
+                throw new IOException("The connection was closed");
+            }
+            if (this.socket != null) {
+                return;
+            }
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(this.address);
+                this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            this.socket = socket;
+        }
+
+        /**
+         * Closes the connection after a failure, so a request and its reply can never be out of step, which must be
+         * called holding the lock
+         */
+        void disconnect() {
+            Socket socket = this.socket;
+            this.socket = null;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // the connection is being dropped anyway
+                }
+            }
+        }
+
+        /**
+         * Closes the connection for good
+         */
+        void close() throws IOException {
+            this.closed = true;
+            Socket socket = this.socket;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+
+        UncheckedIOException failure(Exception cause) {
+            return cause instanceof IOException ? new UncheckedIOException("Shop node " + this.address + " failed", (IOException) cause)
+                    : new UncheckedIOException("Shop node " + this.address + " sent a bad reply", new IOException(cause));
+        }
+
+        <R> R call(Request request, Reply<R> reply) {
+            this.lock.lock();
+            try {
+                connect();
+                request.write(this.out);
+                this.out.flush();
+                return reply.read(this.in);
+            } catch (IOException | RuntimeException e) {
+                disconnect();
+                throw failure(e);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The points of every node on the hash ring, sorted, with the index of the node owning each.
+     */
+    private static final class Ring {
+
+        private final long[] points;
+        private final int[] owners;
+
+        Ring(List<Node> members) {
+            TreeMap<Long, Integer> sorted = new TreeMap<>();
+            for (int index = 0; index < members.size(); index++) {
+                InetSocketAddress address = members.get(index).address;
+                for (int point = 0; point < VIRTUAL_NODES; point++) {
+                    sorted.put(ShopProtocol.hash(address.getHostString() + ":" + address.getPort() + "#" + point), index);
+                }
+            }
+            this.points = new long[sorted.size()];
+            this.owners = new int[sorted.size()];
+            int position = 0;
+            for (Map.Entry<Long, Integer> entry : sorted.entrySet()) {
+                this.points[position] = entry.getKey();
+                this.owners[position] = entry.getValue();
+                position++;
+            }
+        }
+
+        /**
+         * Writes a request carrying the ring, marking the points of the joining node
+         */
+        void write(DataOutputStream out, byte request, int joining) throws IOException {
+            out.writeByte(request);
+            out.writeInt(this.points.length);
+            for (int point = 0; point < this.points.length; point++) {
+                out.writeLong(this.points[point]);
+                out.writeBoolean(this.owners[point] == joining);
+            }
+        }
+    }
+
+}
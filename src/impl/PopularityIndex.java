@@ -0,0 +1,133 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import interfaces.IProduct;
+import interfaces.IStockRecord;
+
+/**
+ * This class keeps the stock records of a shop ordered by their number of sales.
+ * Records with the same number of sales are ordered by when they were added, so earlier records rank higher.
+ * The index isn't thread safe, callers are expected to guard it.
+ *
+ */
+class PopularityIndex implements SalesRanking {
+
+    private TreeSet<Entry> ranking;
+    private HashMap<IStockRecord, Entry> entries;
+    private Entry top;
+    private long nextSequence;
+
+    /**
+     * Constructor that creates an empty index
+     */
+    PopularityIndex() {
+        this(0);
+    }
+
+    /**
+     * Constructor that creates an empty index sized for the number of records it is expected to hold
+     * @param expectedRecords the number of records expected, or zero for the default size
+     */
+    PopularityIndex(int expectedRecords) {
+        this.ranking = new TreeSet<>();
+        this.entries = new HashMap<>(Shop.capacityFor(expectedRecords));
+        this.top = null;
+        this.nextSequence = 0;
+    }
+
+    /**
+     * Adds a stock record to the index, ranked by its current number of sales
+     * @param record the stock record to add
+     */
+    @Override
+    public void add(IStockRecord record) {
+        Entry entry = new Entry(record, this.nextSequence++, record.getNumberOfSales());
+        this.entries.put(record, entry);
+        this.ranking.add(entry);
+        this.top = this.ranking.first();
+    }
+
+    /**
+     * Removes a stock record from the index
+     * @param record the stock record to remove
+     */
+    @Override
+    public void remove(IStockRecord record) {
+        Entry entry = this.entries.remove(record);
+        if (entry != null) {
+            this.ranking.remove(entry);
+            this.top = this.ranking.isEmpty() ? null : this.ranking.first();
+        }
+    }
+
+    /**
+     * Re-ranks a stock record after its number of sales has changed
+     * The record keeps its original position among records with the same number of sales
+     * @param record the stock record that was sold from
+     * @param quantity the number of items just sold, which isn't needed as the record's own count is exact
+     */
+    @Override
+    public void update(IStockRecord record, int quantity) {
+        Entry entry = this.entries.get(record);
+        if (entry == null || entry.sales == record.getNumberOfSales()) {
+            return;
+        }
+        this.ranking.remove(entry);
+        Entry updated = new Entry(record, entry.sequence, record.getNumberOfSales());
+        this.entries.put(record, updated);
+        this.ranking.add(updated);
+        this.top = this.ranking.first();
+    }
+
+    /**
+     * @return the stock record with the most sales, or null if the index is empty
+     */
+    @Override
+    public IStockRecord first() {
+        return this.top == null ? null : this.top.record;
+    }
+
+    /**
+     * Gets the products of the k best selling stock records, best seller first
+     * @param k the number of products to return
+     * @return a list of at most k products
+     */
+    @Override
+    public List<IProduct> top(int k) {
+        List<IProduct> products = new ArrayList<>(Math.max(0, Math.min(k, this.ranking.size())));
+        Iterator<Entry> iterator = this.ranking.iterator();
+        while (products.size() < k && iterator.hasNext()) {
+            products.add(iterator.next().record.getProduct());
+        }
+        return products;
+    }
+
+    /**
+     * A position in the ranking, the number of sales is captured so the ordering can't change while it is in the tree.
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        private final IStockRecord record;
+        private final long sequence;
+        private final int sales;
+
+        Entry(IStockRecord record, long sequence, int sales) {
+            this.record = record;
+            this.sequence = sequence;
+            this.sales = sales;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (this.sales != other.sales) {
+                return Integer.compare(other.sales, this.sales);
+            }
+            return Long.compare(this.sequence, other.sequence);
+        }
+    }
+}
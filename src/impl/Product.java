@@ -4,12 +4,13 @@ import interfaces.IProduct;
 
 /**
  * This class represents products that can be stocked and sold in a shop.
+ * Products are immutable, so one instance can be shared by every shop that sells it.
  *
  */
 public class Product implements IProduct {
 
-    private String barcode;
-    private String description;
+    private final String barcode;
+    private final String description;
 
     /**
      * Product constructor that instantiates the barcode and description of the product
@@ -0,0 +1,110 @@
+package impl;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import interfaces.IProduct;
+
+/**
+ * This class hands out one shared product per barcode and description.
+ * It is a map from barcode and description to a weak reference to the product, so a product nothing else refers to
+ * can still be garbage collected, while a product that is in use is never dropped, whatever it collides with.
+ * The entries of collected products are removed as later products are interned, so the map only holds products in use.
+ * It is safe to use from many threads; two threads racing to intern the same product agree on one of them.
+ *
+ */
+final class ProductInterner {
+
+    private final ConcurrentHashMap<Key, Entry> entries;
+    private final ReferenceQueue<IProduct> collected;
+
+    /**
+     * Constructor for an empty table, which grows with the products interned
+     */
+    ProductInterner() {
+        this.entries = new ConcurrentHashMap<>();
+        this.collected = new ReferenceQueue<>();
+    }
+
+    /**
+     * Gets the shared product with the given barcode and description, making it if it isn't held
+     * @param barCode the barcode of the product
+     * @param description the description of the product
+     * @return the shared product
+     */
+    IProduct intern(String barCode, String description) {
+        expunge();
+        Key key = new Key(barCode, description);
+        IProduct product = null;
+        while (true) {
+            Entry entry = this.entries.get(key);
+            IProduct held = entry == null ? null : entry.get();
+            if (held != null) {
+                return held;
+            }
+            if (product == null) {
+                product = new Product(barCode, description);
+            }
+            Entry fresh = new Entry(product, key, this.collected);
+            if (entry == null ? this.entries.putIfAbsent(key, fresh) == null : this.entries.replace(key, entry, fresh)) {
+                return product;
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of products that have been garbage collected
+     */
+    private void expunge() {
+        Entry entry;
+        while ((entry = (Entry) this.collected.poll()) != null) {
+            this.entries.remove(entry.key, entry);
+        }
+    }
+
+    /**
+     * A barcode and description pair.
+     */
+    private static final class Key {
+
+        private final String barCode;
+        private final String description;
+        private final int hash;
+
+        Key(String barCode, String description) {
+            this.barCode = barCode;
+            this.description = description;
+            this.hash = Objects.hashCode(barCode) * 31 + Objects.hashCode(description);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return Objects.equals(this.barCode, key.barCode) && Objects.equals(this.description, key.description);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * A weak reference to a product that remembers its key, so it can be removed once the product is collected.
+     */
+    private static final class Entry extends WeakReference<IProduct> {
+
+        private final Key key;
+
+        Entry(IProduct product, Key key, ReferenceQueue<IProduct> queue) {
+            super(product, queue);
+            this.key = key;
+        }
+    }
+
+}
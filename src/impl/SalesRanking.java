@@ -0,0 +1,46 @@
+package impl;
+
+import java.util.List;
+
+import interfaces.IProduct;
+import interfaces.IStockRecord;
+
+/**
+ * This interface ranks the stock records of a shop by their number of sales, so the best sellers can be read without
+ * walking the catalog. A ranking isn't thread safe, callers are expected to guard it.
+ *
+ */
+interface SalesRanking {
+
+    /**
+     * Adds a newly registered stock record to the ranking
+     * @param record the stock record to add
+     */
+    void add(IStockRecord record);
+
+    /**
+     * Removes an unregistered stock record from the ranking
+     * @param record the stock record to remove
+     */
+    void remove(IStockRecord record);
+
+    /**
+     * Re-ranks a stock record after some of it was sold
+     * @param record the stock record that was sold from, with its number of sales already updated
+     * @param quantity the number of items just sold
+     */
+    void update(IStockRecord record, int quantity);
+
+    /**
+     * @return the stock record with the most sales, or null if the ranking holds none
+     */
+    IStockRecord first();
+
+    /**
+     * Gets the products of the k best selling stock records, best seller first
+     * @param k the number of products to return
+     * @return a list of at most k products
+     */
+    List<IProduct> top(int k);
+
+}
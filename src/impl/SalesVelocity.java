@@ -0,0 +1,205 @@
+package impl;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IStockRecord;
+import interfaces.ShopListener;
+
+/**
+ * This class is a listener that tracks how fast each product of a shop is selling right now, rather than over all time.
+ * Every product has three rings of time buckets: the last minute in 5 second buckets, the last hour in 5 minute
+ * buckets and the last day in 1 hour buckets. A sale adds its quantity to the current bucket of each ring, and
+ * buckets that have gone out of their window are cleared as the rings move on, so nothing is allocated per sale.
+ * A window is answered from the finest ring that covers it, to the nearest bucket.
+ *
+ */
+public class SalesVelocity implements ShopListener {
+
+    /**
+     * The longest window that can be asked about.
+     */
+    public static final Duration MAX_WINDOW = Duration.ofDays(1);
+
+    private static final long[] BUCKET_MILLIS = {5_000L, 300_000L, 3_600_000L};
+    private static final int[] BUCKETS = {12, 12, 24};
+    private static final int[] FIRST_BUCKET = {0, 12, 24};
+    private static final int TOTAL_BUCKETS = 48;
+
+    private final Clock clock;
+    private final ConcurrentHashMap<String, Velocity> velocities;
+    private final AtomicLong nextSequence;
+
+    /**
+     * Constructor that tells the time by the system clock
+     */
+    public SalesVelocity() {
+        this(Clock.systemUTC());
+    }
+
+    /**
+     * Constructor that tells the time by the given clock
+     * @param clock the clock sales are timed by
+     */
+    public SalesVelocity(Clock clock) {
+        this.clock = clock;
+        this.velocities = new ConcurrentHashMap<>();
+        this.nextSequence = new AtomicLong();
+    }
+
+    /**
+     * Starts tracking a shop, including the products it already has
+     * @param shop the shop to track
+     */
+    public void attach(IShop shop) {
+        shop.addListener(this);
+        for (IStockRecord record : shop.snapshot().getStockRecords()) {
+            this.velocities.putIfAbsent(record.getProduct().getBarCode(),
+                    new Velocity(record.getProduct(), this.nextSequence.getAndIncrement()));
+        }
+    }
+
+    @Override
+    public void productRegistered(IProduct product) {
+        this.velocities.put(product.getBarCode(), new Velocity(product, this.nextSequence.getAndIncrement()));
+    }
+
+    @Override
+    public void productUnregistered(IProduct product, int stockCount) {
+        this.velocities.remove(product.getBarCode());
+    }
+
+    @Override
+    public void productSold(String barCode, int quantity, int stockCount) {
+        Velocity velocity = this.velocities.get(barCode);
+        if (velocity != null) {
+            velocity.record(this.clock.millis(), quantity);
+        }
+    }
+
+    /**
+     * Gets the number of items of a product sold within the window
+     * @param barCode the bar code of the product
+     * @param window how far back to count, up to a day
+     * @return the number sold, or {@link IShop#NOT_REGISTERED} if the product isn't tracked
+     * @throws IllegalArgumentException if the window isn't positive or is longer than a day
+     */
+    public int getSales(String barCode, Duration window) {
+        int ring = ringFor(window);
+        Velocity velocity = barCode == null ? null : this.velocities.get(barCode);
+        return velocity == null ? IShop.NOT_REGISTERED : (int) velocity.sum(this.clock.millis(), ring, bucketsFor(window, ring));
+    }
+
+    /**
+     * Gets how fast a product has sold within the window
+     * @param barCode the bar code of the product
+     * @param window how far back to count, up to a day
+     * @return the number sold per second, or {@link IShop#NOT_REGISTERED} if the product isn't tracked
+     * @throws IllegalArgumentException if the window isn't positive or is longer than a day
+     */
+    public double getSalesRate(String barCode, Duration window) {
+        int sales = getSales(barCode, window);
+        return sales == IShop.NOT_REGISTERED ? IShop.NOT_REGISTERED : sales * 1000.0 / window.toMillis();
+    }
+
+    /**
+     * Gets the product that sold the most items within the window
+     * Products that sold as many are ordered by when they were first tracked, earliest first
+     * @param window how far back to count, up to a day
+     * @return the best seller of the window, or null if nothing sold within it
+     * @throws IllegalArgumentException if the window isn't positive or is longer than a day
+     */
+    public IProduct getMostPopular(Duration window) {
+        int ring = ringFor(window);
+        int buckets = bucketsFor(window, ring);
+        long now = this.clock.millis();
+        Velocity best = null;
+        long bestSales = 0;
+        for (Velocity velocity : this.velocities.values()) {
+            long sales = velocity.sum(now, ring, buckets);
+            if (sales > bestSales || (sales == bestSales && best != null && velocity.sequence < best.sequence)) {
+                best = velocity;
+                bestSales = sales;
+            }
+        }
+        return best == null ? null : best.product;
+    }
+
+    private static int ringFor(Duration window) {
+        if (window == null || window.isNegative() || window.isZero() || window.compareTo(MAX_WINDOW) > 0) {
+            throw new IllegalArgumentException("Window must be positive and at most a day");
+        }
+        long millis = window.toMillis();
+        for (int ring = 0; ring < BUCKETS.length - 1; ring++) {
+            if (millis <= BUCKET_MILLIS[ring] * BUCKETS[ring]) {
+                return ring;
+            }
+        }
+        return BUCKETS.length - 1;
+    }
+
+    private static int bucketsFor(Duration window, int ring) {
+        long buckets = (window.toMillis() + BUCKET_MILLIS[ring] - 1) / BUCKET_MILLIS[ring];
+        return (int) Math.min(buckets, BUCKETS[ring]);
+    }
+
+    /**
+     * The rings of time buckets of one product.
+     */
+    private static final class Velocity {
+
+        private final IProduct product;
+        private final long sequence;
+        private final long[] counts;
+        private final long[] currentTick;
+
+        Velocity(IProduct product, long sequence) {
+            this.product = product;
+            this.sequence = sequence;
+            this.counts = new long[TOTAL_BUCKETS];
+            this.currentTick = new long[BUCKETS.length];
+        }
+
+        synchronized void record(long now, int quantity) {
+            for (int ring = 0; ring < BUCKETS.length; ring++) {
+                long tick = now / BUCKET_MILLIS[ring];
+                advance(ring, tick);
+                if (this.currentTick[ring] - tick < BUCKETS[ring]) {
+                    this.counts[FIRST_BUCKET[ring] + (int) Math.floorMod(tick, (long) BUCKETS[ring])] += quantity;
+                }
+            }
+        }
+
+        /**
+         * @return the sales in the latest buckets of the ring, the current bucket included
+         */
+        synchronized long sum(long now, int ring, int buckets) {
+            long tick = now / BUCKET_MILLIS[ring];
+            advance(ring, tick);
+            long total = 0;
+            for (int i = 0; i < buckets; i++) {
+                total += this.counts[FIRST_BUCKET[ring] + (int) Math.floorMod(tick - i, (long) BUCKETS[ring])];
+            }
+            return total;
+        }
+
+        /**
+         * Moves the ring on to the tick, clearing the buckets it passes over
+         */
+        private void advance(int ring, long tick) {
+            long passed = tick - this.currentTick[ring];
+            if (passed <= 0) {
+                return;
+            }
+            for (long i = 1; i <= Math.min(passed, BUCKETS[ring]); i++) {
+                this.counts[FIRST_BUCKET[ring] + (int) Math.floorMod(this.currentTick[ring] + i, (long) BUCKETS[ring])] = 0;
+            }
+            this.currentTick[ring] = tick;
+        }
+    }
+
+}
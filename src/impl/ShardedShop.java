@@ -0,0 +1,580 @@
+package impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import exceptions.StockUnavailableException;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IShopSnapshot;
+import interfaces.IStockRecord;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
+
+/**
+ * This class represents a shop whose stock records are partitioned into shards by barcode hash.
+ * Each shard has its own read-write lock, registering or unregistering a product only write locks the shard
+ * holding its barcode, so purchases in every other shard carry on. Purchases only read lock their shard and
+ * then update a {@link ConcurrentStockRecord} with a single compare-and-set.
+ * Totals are kept across all shards so cross shard queries don't have to visit them.
+ * Snapshots are taken the same way as in {@link ConcurrentShop}, without stopping purchases.
+ *
+ */
+public class ShardedShop implements IShop, Checkpointable {
+
+    /**
+     * The number of shards used when none is given.
+     */
+    public static final int DEFAULT_SHARD_COUNT = 16;
+
+    private final Shard[] shards;
+    private final AtomicInteger numOfProducts;
+    private final LongAdder totalStockCount;
+    private final AtomicLong nextSequence;
+    private final MostPopularTracker mostPopular;
+    private final ShopListeners listeners;
+    private final SnapshotEpoch epochs;
+    private final ReentrantReadWriteLock structure;
+    private final Iterable<ConcurrentStockRecord> allRecords;
+
+    /**
+     * Constructor for a sharded shop with the default number of shards
+     */
+    public ShardedShop() {
+        this(DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * Constructor for a sharded shop with no products
+     * @param shardCount the number of independently locked shards
+     * @throws IllegalArgumentException if the shard count is less than one
+     */
+    public ShardedShop(int shardCount) {
+        this(shardCount, 0);
+    }
+
+    /**
+     * Constructor for a sharded shop with each shard sized up front for its share of the catalog
+     * @param shardCount the number of shards to partition the products into
+     * @param expectedProducts the number of products expected, or zero for the default size
+     * @throws IllegalArgumentException if the shard count is less than one
+     */
+    public ShardedShop(int shardCount, int expectedProducts) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least one");
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new Shard(Shop.capacityFor(expectedProducts / shardCount));
+        }
+        this.numOfProducts = new AtomicInteger();
+        this.totalStockCount = new LongAdder();
+        this.nextSequence = new AtomicLong();
+        this.mostPopular = new MostPopularTracker();
+        this.listeners = new ShopListeners();
+        this.epochs = new SnapshotEpoch();
+        this.structure = new ReentrantReadWriteLock();
+        this.allRecords = () -> records().iterator();
+    }
+
+    /**
+     * @return the number of shards the stock records are partitioned into
+     */
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    /**
+     * Method that registers a product to the shop
+     * Only the shard holding the products barcode is locked while the record is added
+     * @param product the product to be registered to the shop
+     * @throws BarCodeAlreadyInUseException if the bar code matches a product already registered
+     */
+    @Override
+    public void registerProduct(IProduct product) throws BarCodeAlreadyInUseException {
+        try {
+            if (product == null) {
+                this.listeners.operationFailed(ShopOperation.REGISTER, null, ShopResult.INVALID_ARGUMENT);
+                return;
+            }
+            Shard shard = shardFor(product.getBarCode());
+            ConcurrentStockRecord record = new ConcurrentStockRecord(product, this.nextSequence.getAndIncrement());
+            this.structure.readLock().lock();
+            shard.lock.writeLock().lock();
+            try {
+                if (shard.records.putIfAbsent(product.getBarCode(), record) != null) {
+                    throw new BarCodeAlreadyInUseException();
+                }
+            } finally {
+                shard.lock.writeLock().unlock();
+                this.structure.readLock().unlock();
+            }
+            this.numOfProducts.incrementAndGet();
+            this.mostPopular.offer(record, this.allRecords);
+            this.listeners.productRegistered(product);
+        } catch (BarCodeAlreadyInUseException e) {
+            this.listeners.operationFailed(ShopOperation.REGISTER, product.getBarCode(), ShopResult.BAR_CODE_IN_USE);
+        }
+    }
+
+    /**
+     * Registers a product from a snapshot with its stock and sales already set
+     * @param product the product to register
+     * @param stockCount the stock count of the product
+     * @param sales the number of sales of the product
+     * @return false if the barcode is already registered
+     */
+    @Override
+    public boolean restore(IProduct product, int stockCount, int sales) {
+        Shard shard = shardFor(product.getBarCode());
+        ConcurrentStockRecord record = new ConcurrentStockRecord(product, this.nextSequence.getAndIncrement(), stockCount, sales);
+        this.structure.readLock().lock();
+        shard.lock.writeLock().lock();
+        try {
+            if (shard.records.putIfAbsent(product.getBarCode(), record) != null) {
+                return false;
+            }
+        } finally {
+            shard.lock.writeLock().unlock();
+            this.structure.readLock().unlock();
+        }
+        this.numOfProducts.incrementAndGet();
+        this.totalStockCount.add(stockCount);
+        this.mostPopular.offer(record, this.allRecords);
+        this.listeners.productRegistered(product);
+        if (stockCount > 0) {
+            this.listeners.stockAdded(product.getBarCode(), stockCount, stockCount);
+        }
+        return true;
+    }
+
+    /**
+     * Takes a snapshot of every stock record at one instant without stopping purchases
+     * Registering and unregistering wait until the records have been read
+     * @return the snapshot
+     */
+    @Override
+    public IShopSnapshot snapshot() {
+        this.structure.writeLock().lock();
+        try {
+            return ConcurrentShop.snapshot(records(), this.epochs);
+        } finally {
+            this.structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every product in registration order while tills carry on buying, read locking one shard at a time
+     * @param visitor the visitor to give each product to
+     * @throws IOException if the visitor fails to write a product
+     */
+    @Override
+    public void checkpoint(RecordVisitor visitor) throws IOException {
+        ConcurrentShop.checkpoint(records(), visitor);
+    }
+
+    /**
+     * This method removes a product from the shop
+     * Only the shard holding the products barcode is locked while the record is removed and retired
+     * @param product the product to be removed from the shops registered products
+     * @throws ProductNotRegisteredException if the product to be unregistered isn't registered in the shop
+     */
+    @Override
+    public void unregisterProduct(IProduct product) throws ProductNotRegisteredException {
+        try {
+            if (product == null) {
+                this.listeners.operationFailed(ShopOperation.UNREGISTER, null, ShopResult.INVALID_ARGUMENT);
+                return;
+            }
+            Shard shard = shardFor(product.getBarCode());
+            ConcurrentStockRecord record;
+            int remainingStock;
+            this.structure.readLock().lock();
+            shard.lock.writeLock().lock();
+            try {
+                record = shard.records.get(product.getBarCode());
+                if (record == null || record.getProduct() != product) {
+                    throw new ProductNotRegisteredException();
+                }
+                shard.records.remove(product.getBarCode());
+                remainingStock = record.retire();
+            } finally {
+                shard.lock.writeLock().unlock();
+                this.structure.readLock().unlock();
+            }
+            this.numOfProducts.decrementAndGet();
+            this.totalStockCount.add(-remainingStock);
+            this.mostPopular.removed(record, this.allRecords);
+            this.listeners.productUnregistered(product, remainingStock);
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.UNREGISTER, product.getBarCode(), ShopResult.NOT_REGISTERED);
+        }
+    }
+
+    /**
+     * This method increments the amount of stock for the product with the barcode
+     * @param barCode a string of the barcode to have its stock incremented
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode) throws ProductNotRegisteredException {
+        addStock(barCode, 1);
+    }
+
+    /**
+     * This method allows a product to be bought
+     * @param barCode the barcode of the product to be bought
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has no stock
+     */
+    @Override
+    public void buyProduct(String barCode) throws StockUnavailableException, ProductNotRegisteredException {
+        buyProduct(barCode, 1);
+    }
+
+    /**
+     * This method increases the amount of stock for the product with the barcode by the quantity in one compare-and-set
+     * If the barcode provided doesn't match the listeners are told the operation failed
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items of stock to add
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode, int quantity) throws ProductNotRegisteredException {
+        tryAddStock(barCode, quantity);
+    }
+
+    /**
+     * This method allows several of a product to be bought at once
+     * The stock check and the purchase of the whole quantity are one compare-and-set on the stock record
+     * If the product does not exist, or there is less stock than the quantity, nothing is bought and the listeners are told the operation failed
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has less stock than the quantity
+     */
+    @Override
+    public void buyProduct(String barCode, int quantity) throws StockUnavailableException, ProductNotRegisteredException {
+        tryBuy(barCode, quantity);
+    }
+
+    /**
+     * This method adds stock without the cost of an exception when it fails
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items of stock to add
+     * @return the result of adding the stock
+     */
+    @Override
+    public ShopResult tryAddStock(String barCode, int quantity) {
+        if (barCode == null || quantity < 1) {
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, ShopResult.INVALID_ARGUMENT);
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        ConcurrentStockRecord record = find(barCode);
+        int stockCount = record == null ? -1
+                : this.totalStockCount.sum() > Integer.MAX_VALUE - quantity ? ConcurrentStockRecord.OVERFLOW
+                : ConcurrentShop.stock(record, quantity, this.epochs);
+        if (stockCount < 0) {
+            ShopResult result = stockCount == ConcurrentStockRecord.OVERFLOW ? ShopResult.INVALID_ARGUMENT : ShopResult.NOT_REGISTERED;
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, result);
+            return result;
+        }
+        this.totalStockCount.add(quantity);
+        this.listeners.stockAdded(barCode, quantity, stockCount);
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * This method buys a product without the cost of an exception when it fails
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @return the result of the purchase
+     */
+    @Override
+    public ShopResult tryBuy(String barCode, int quantity) {
+        ShopResult result = ShopResult.SUCCESS;
+        ConcurrentStockRecord record = null;
+        int stockCount = -1;
+        if (barCode == null || quantity < 1) {
+            result = ShopResult.INVALID_ARGUMENT;
+        } else if ((record = find(barCode)) == null) {
+            result = ShopResult.NOT_REGISTERED;
+        } else if ((stockCount = ConcurrentShop.sell(record, quantity, this.epochs)) < 0) {
+            result = stockCount == ConcurrentStockRecord.OVERFLOW ? ShopResult.INVALID_ARGUMENT
+                    : record.isRetired() ? ShopResult.NOT_REGISTERED : ShopResult.STOCK_UNAVAILABLE;
+        }
+        if (result != ShopResult.SUCCESS) {
+            this.listeners.operationFailed(ShopOperation.BUY, barCode, result);
+            return result;
+        }
+        this.totalStockCount.add(-quantity);
+        this.mostPopular.offer(record, this.allRecords);
+        this.listeners.productSold(barCode, quantity, stockCount);
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * Method that buys a whole basket of products
+     * No lock is taken, each line is bought with its own compare-and-set and if a later line fails the lines already
+     * bought are refunded, so the basket is bought in full or not at all. Another till may briefly see the stock of
+     * a refunded line as taken.
+     * @param basket the quantity to buy for each barcode
+     * @return true if the whole basket was bought
+     * @throws StockUnavailableException if a product in the basket has less stock than its quantity
+     * @throws ProductNotRegisteredException if a product in the basket isn't registered in the shop
+     */
+    @Override
+    public boolean checkout(Map<String, Integer> basket) throws StockUnavailableException, ProductNotRegisteredException {
+        String barCode = null;
+        try {
+            if (basket == null) {
+                this.listeners.operationFailed(ShopOperation.CHECKOUT, null, ShopResult.INVALID_ARGUMENT);
+                return false;
+            }
+            ConcurrentStockRecord[] records = new ConcurrentStockRecord[basket.size()];
+            int[] quantities = new int[basket.size()];
+            int line = 0;
+            for (Map.Entry<String, Integer> entry : basket.entrySet()) {
+                barCode = entry.getKey();
+                if (barCode == null || entry.getValue() == null || entry.getValue() < 1) {
+                    this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                    return false;
+                }
+                records[line] = find(barCode);
+                if (records[line] == null) {
+                    throw new ProductNotRegisteredException();
+                }
+                quantities[line] = entry.getValue();
+                line++;
+            }
+            int[] stockCounts = new int[records.length];
+            int failed = ConcurrentShop.buyAll(records, quantities, stockCounts, this.totalStockCount, this.epochs);
+            if (failed >= 0) {
+                barCode = records[failed].getProduct().getBarCode();
+                if (stockCounts[failed] == ConcurrentStockRecord.OVERFLOW) {
+                    this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                    return false;
+                }
+                if (records[failed].isRetired()) {
+                    throw new ProductNotRegisteredException();
+                }
+                throw new StockUnavailableException();
+            }
+            for (int i = 0; i < records.length; i++) {
+                this.mostPopular.offer(records[i], this.allRecords);
+                this.listeners.productSold(records[i].getProduct().getBarCode(), quantities[i], stockCounts[i]);
+            }
+            return true;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.NOT_REGISTERED);
+        } catch (StockUnavailableException e) {
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.STOCK_UNAVAILABLE);
+        }
+        return false;
+    }
+
+    /**
+     * Method for getting the total number of products
+     * @return the total number of products across all shards
+     */
+    @Override
+    public int getNumberOfProducts() {
+        return this.numOfProducts.get();
+    }
+
+    /**
+     * Method for getting the total amount of stock in the shop
+     * Stock that would take the total past Integer.MAX_VALUE is refused, but tills adding stock at the same moment
+     * can pass that check together, so a total beyond it reads as Integer.MAX_VALUE
+     * @return the total amount of stock across all shards
+     */
+    @Override
+    public int getTotalStockCount() {
+        return (int) Math.min(this.totalStockCount.sum(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Method for getting the amount of stock for a particular product
+     * @param barCode the barcode of the product to get the stock count for
+     * @return the stock count for the product
+     * @throws ProductNotRegisteredException if the product to get the stock count for isn't a registered product
+     */
+    @Override
+    public int getStockCount(String barCode) throws ProductNotRegisteredException {
+        try {
+            if (barCode == null) {
+                this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+                return 0;
+            }
+            int stockCount = lookupStock(barCode);
+            if (stockCount == NOT_REGISTERED) {
+                throw new ProductNotRegisteredException();
+            }
+            return stockCount;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
+        }
+        return 0;
+    }
+
+    /**
+     * Method that gets the sales for a product
+     * @param barCode the barcode of the product to get sales for
+     * @return the number of sales for the product
+     * @throws ProductNotRegisteredException if the product to get number of sales of isn't a registered product
+     */
+    @Override
+    public int getNumberOfSales(String barCode) throws ProductNotRegisteredException {
+        try {
+            if (barCode == null) {
+                this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+                return 0;
+            }
+            int numberOfSales = lookupSales(barCode);
+            if (numberOfSales == NOT_REGISTERED) {
+                throw new ProductNotRegisteredException();
+            }
+            return numberOfSales;
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
+        }
+        return 0;
+    }
+
+    /**
+     * Method for getting the amount of stock for a particular product without an exception when it isn't registered
+     * @param barCode the barcode of the product to get the stock count for
+     * @return the stock count for the product, or NOT_REGISTERED
+     */
+    @Override
+    public int lookupStock(String barCode) {
+        ConcurrentStockRecord record = barCode == null ? null : find(barCode);
+        return record == null ? NOT_REGISTERED : record.getStockCount();
+    }
+
+    /**
+     * Method for getting the sales of a particular product without an exception when it isn't registered
+     * @param barCode the barcode of the product to get sales for
+     * @return the number of sales for the product, or NOT_REGISTERED
+     */
+    @Override
+    public int lookupSales(String barCode) {
+        ConcurrentStockRecord record = barCode == null ? null : find(barCode);
+        return record == null ? NOT_REGISTERED : record.getNumberOfSales();
+    }
+
+    /**
+     * Method that gets the product that has sold the most across all shards
+     * @return the product with the most sales, or null if there are no products in the shop
+     * @throws ProductNotRegisteredException if there are no products registered in the shop
+     */
+    @Override
+    public IProduct getMostPopular() throws ProductNotRegisteredException {
+        try {
+            IStockRecord record = this.mostPopular.get();
+            if (record == null) {
+                throw new ProductNotRegisteredException();
+            }
+            return record.getProduct();
+        } catch (ProductNotRegisteredException e) {
+            this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.NOT_REGISTERED);
+        }
+        return null;
+    }
+
+    /**
+     * Method that gets the best selling products across all shards
+     * @param k the number of products to return
+     * @return the k products with the most sales, most sales first
+     */
+    @Override
+    public List<IProduct> getTopSellers(int k) {
+        return ConcurrentShop.topSellers(this.allRecords, k);
+    }
+
+    /**
+     * Method that adds a listener to be told about changes to the shop and failed operations
+     * Listeners are called on the till thread that made the change
+     * @param listener the listener to add
+     */
+    @Override
+    public void addListener(ShopListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Method that removes a listener from the shop
+     * @param listener the listener to remove
+     */
+    @Override
+    public void removeListener(ShopListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Finds the stock record for a barcode, holding its shard's read lock only for the lookup
+     * @param barCode the barcode to look up
+     * @return the stock record, or null if the barcode isn't registered
+     */
+    private ConcurrentStockRecord find(String barCode) {
+        Shard shard = shardFor(barCode);
+        shard.lock.readLock().lock();
+        try {
+            return shard.records.get(barCode);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the stock records out of every shard, read locking one shard at a time
+     * @return the stock records of all shards
+     */
+    private List<ConcurrentStockRecord> records() {
+        List<ConcurrentStockRecord> records = new ArrayList<>(this.numOfProducts.get());
+        for (Shard shard : this.shards) {
+            shard.lock.readLock().lock();
+            try {
+                records.addAll(shard.records.values());
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Picks the shard for a barcode, spreading the hash so shard counts that aren't prime still get an even split
+     * @param barCode the barcode of a product
+     * @return the shard that holds or would hold the barcode
+     */
+    private Shard shardFor(String barCode) {
+        int hash = barCode == null ? 0 : barCode.hashCode();
+        hash ^= hash >>> 16;
+        return this.shards[Math.floorMod(hash * 0x9E3779B9, this.shards.length)];
+    }
+
+    /**
+     * A partition of the shop's stock records with its own lock.
+     */
+    private static final class Shard {
+
+        private final HashMap<String, ConcurrentStockRecord> records;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Shard(int capacity) {
+            this.records = new HashMap<>(capacity);
+        }
+    }
+
+}
@@ -1,97 +1,160 @@
 package impl;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import exceptions.BarCodeAlreadyInUseException;
 import exceptions.ProductNotRegisteredException;
 import exceptions.StockUnavailableException;
 import interfaces.IProduct;
 import interfaces.IShop;
+import interfaces.IShopSnapshot;
 import interfaces.IStockRecord;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
 
 /**
  * This class represents a simple shop which can stock and sell products.
+ * Stock records are indexed by barcode so every lookup is a single hash probe rather than a scan of the catalog.
+ * A popularity index ranks the records by number of sales, ties going to the earliest registered product.
+ * A shop for a very large catalog can rank only its best sellers instead, in a fixed number of counters.
+ * The number of products and the total stock count are kept up to date on every change so reading them doesn't walk the catalog.
+ * Changes and failed operations are published to the shop's listeners rather than written to the console.
  *
  */
-public class Shop implements IShop {
+public class Shop implements IShop, Checkpointable {
 
     private int numOfProducts;
-    private ArrayList<IStockRecord> stockRecords;
+    private int totalStockCount;
+    private LinkedHashMap<String, IStockRecord> stockRecords;
+    private SalesRanking popularity;
+    private ShopListeners listeners;
     
     /**
      * Constructor for shop object that creates an empty shop with no products
      */
     public Shop() {
+        this(0);
+    }
+
+    /**
+     * Constructor for an empty shop sized up front for the number of products it is expected to hold
+     * @param expectedProducts the number of products expected, or zero for the default size
+     */
+    public Shop(int expectedProducts) {
+        this(expectedProducts, 0);
+    }
+
+    /**
+     * Constructor for an empty shop that ranks only its best sellers, so ranking costs a fixed amount of memory
+     * The ranking is then approximate, with the error bounds described by {@link HeavyHitters}
+     * @param expectedProducts the number of products expected, or zero for the default size
+     * @param trackedSellers the number of best sellers to rank, or zero to rank every product exactly
+     */
+    public Shop(int expectedProducts, int trackedSellers) {
         this.numOfProducts = 0;
-        this.stockRecords = new ArrayList<>();
+        this.totalStockCount = 0;
+        this.stockRecords = new LinkedHashMap<>(capacityFor(expectedProducts));
+        this.popularity = trackedSellers > 0 ? new HeavyHitters(trackedSellers) : new PopularityIndex(expectedProducts);
+        this.listeners = new ShopListeners();
     }
 
 
     /**
      * Method that registers a product to the shop
      * If the products barcode is unique it will be added to the shop and a stock record will be created for the product
-     * If the barcode is already in use the exception will be thrown and handled
+     * If the barcode is already in use the exception will be thrown and handled by telling the listeners
      * @param product the product to be registered to the shop
      * @throws BarCodeAlreadyInUseException if the bar code matches a product already registered
      */
     @Override
     public void registerProduct(IProduct product) throws BarCodeAlreadyInUseException {
-        // TODO Auto-generated method stub
-
-        boolean duplicate = false;
         try {
             if (product == null) {
-                System.err.println("Null value for product");
+                this.listeners.operationFailed(ShopOperation.REGISTER, null, ShopResult.INVALID_ARGUMENT);
                 return;
             }
-            for (int i = 0; i < stockRecords.size(); i++) {
-                if (stockRecords.get(i).getProduct().getBarCode().equals(product.getBarCode())) { 
-                    duplicate = true;
-                }
-            }
-            if (duplicate) {
+            if (this.stockRecords.containsKey(product.getBarCode())) {
                 throw new BarCodeAlreadyInUseException();
             } else {
-                this.stockRecords.add(Factory.getInstance().makeStockRecord(product));
+                IStockRecord record = Factory.getInstance().makeStockRecord(product);
+                this.stockRecords.put(product.getBarCode(), record);
+                this.popularity.add(record);
                 this.numOfProducts++;
+                this.listeners.productRegistered(product);
             }
         } catch (BarCodeAlreadyInUseException e) {
-            System.err.println("Product with barcode already added");
+            this.listeners.operationFailed(ShopOperation.REGISTER, product.getBarCode(), ShopResult.BAR_CODE_IN_USE);
         }
         
     }
 
+    /**
+     * Registers a product from a snapshot with its stock and sales already set
+     * @param product the product to register
+     * @param stockCount the stock count of the product
+     * @param sales the number of sales of the product
+     * @return false if the barcode is already registered
+     */
+    @Override
+    public boolean restore(IProduct product, int stockCount, int sales) {
+        if (this.stockRecords.containsKey(product.getBarCode())) {
+            return false;
+        }
+        IStockRecord record = new StockRecord(product, stockCount, sales);
+        this.stockRecords.put(product.getBarCode(), record);
+        this.popularity.add(record);
+        this.numOfProducts++;
+        this.totalStockCount += stockCount;
+        this.listeners.productRegistered(product);
+        if (stockCount > 0) {
+            this.listeners.stockAdded(product.getBarCode(), stockCount, stockCount);
+        }
+        return true;
+    }
+
+    /**
+     * Visits every product in registration order
+     * @param visitor the visitor to give each product to
+     * @throws IOException if the visitor fails to write a product
+     */
+    @Override
+    public void checkpoint(RecordVisitor visitor) throws IOException {
+        for (IStockRecord record : this.stockRecords.values()) {
+            visitor.visit(record.getProduct(), record.getStockCount(), record.getNumberOfSales());
+        }
+    }
+
     /**
      * This method removes a product from the shop
-     * The product is checked to make sure it exists in the shop
-     * If the product exists it is removed from the shop list of stock records
-     * The exception will be thrown if an unknown product is attempted to be removed
+     * The stock record for the products barcode is looked up and must hold this exact product
+     * If the product exists it is removed from the shop list of stock records and its stock no longer counts towards the total
+     * The exception will be thrown if an unknown product is attempted to be removed and handled by telling the listeners
      * @param product the product to be removed from the shops registered products
      * @throws ProductNotRegisteredException if the product to be unregistered isn't registered in the shop
      */
     @Override
     public void unregisterProduct(IProduct product) throws ProductNotRegisteredException {
-        // TODO Auto-generated method stub
-       
-        boolean exists = false;
         try {
             if (product == null) {
-                System.err.println("Null value for product");
+                this.listeners.operationFailed(ShopOperation.UNREGISTER, null, ShopResult.INVALID_ARGUMENT);
                 return;
             }
-            for (int i = 0; i < this.stockRecords.size(); i++) {
-                if (stockRecords.get(i).getProduct() == product) {
-                    exists = true;
-                }
-            }
-            if (!exists) {
+            IStockRecord record = this.stockRecords.get(product.getBarCode());
+            if (record == null || record.getProduct() != product) {
                 throw new ProductNotRegisteredException();
             } else {
-                this.stockRecords.removeIf(n -> n.getProduct() == product);
+                this.stockRecords.remove(product.getBarCode());
+                this.popularity.remove(record);
                 this.numOfProducts--;
+                this.totalStockCount -= record.getStockCount();
+                this.listeners.productUnregistered(product, record.getStockCount());
             }
         } catch (ProductNotRegisteredException e) {
-            System.err.println("Product trying to be removed isn't registered");
+            this.listeners.operationFailed(ShopOperation.UNREGISTER, product.getBarCode(), ShopResult.NOT_REGISTERED);
         }
         
     }
@@ -105,27 +168,7 @@ public class Shop implements IShop {
      */
     @Override
     public void addStock(String barCode) throws ProductNotRegisteredException {
-        // TODO Auto-generated method stub
-        boolean exists = false;
-        try {
-            if(barCode == null) {
-                System.err.println("Barcode has null value");
-                return;
-            }
-            for (int i = 0; i < this.stockRecords.size(); i++) {
-                if (barCode.equals(this.stockRecords.get(i).getProduct().getBarCode())) {
-                    this.stockRecords.get(i).addStock();
-                    exists = true;
-                }
-            }
-            if (!exists) {
-                throw new ProductNotRegisteredException();
-            }
-        } catch (ProductNotRegisteredException e) {
-            System.err.print("Product doesn't exist");
-        }
-        
-
+        addStock(barCode, 1);
     }
 
     /**
@@ -140,39 +183,173 @@ public class Shop implements IShop {
      */
     @Override
     public void buyProduct(String barCode) throws StockUnavailableException, ProductNotRegisteredException {
-        // TODO Auto-generated method stub
-        boolean exists = false;
-        boolean available = false;
+        buyProduct(barCode, 1);
+    }
+
+    /**
+     * This method increases the amount of stock for the product with the barcode by the quantity
+     * The stock record is looked up once and updated once however large the quantity is
+     * If the barcode provided doesn't match the listeners are told the operation failed
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items of stock to add
+     * @throws ProductNotRegisteredException if the product to add stock to isn't registered in the shop
+     */
+    @Override
+    public void addStock(String barCode, int quantity) throws ProductNotRegisteredException {
+        tryAddStock(barCode, quantity);
+    }
 
+    /**
+     * This method allows several of a product to be bought at once
+     * If the product does not exist, or there is less stock than the quantity, nothing is bought and the listeners are told the operation failed
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @throws ProductNotRegisteredException if the product to be bought isn't registered in the shop
+     * @throws StockUnavailableException if the product to be bought has less stock than the quantity
+     */
+    @Override
+    public void buyProduct(String barCode, int quantity) throws StockUnavailableException, ProductNotRegisteredException {
+        tryBuy(barCode, quantity);
+    }
+
+    /**
+     * This method adds stock without the cost of an exception when it fails
+     * Stock that would take the product's stock count or the shop's total past Integer.MAX_VALUE isn't added
+     * @param barCode a string of the barcode to have its stock increased
+     * @param quantity the number of items of stock to add
+     * @return the result of adding the stock
+     */
+    @Override
+    public ShopResult tryAddStock(String barCode, int quantity) {
+        if (barCode == null || quantity < 1) {
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, ShopResult.INVALID_ARGUMENT);
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        IStockRecord record = this.stockRecords.get(barCode);
+        if (record == null) {
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, ShopResult.NOT_REGISTERED);
+            return ShopResult.NOT_REGISTERED;
+        }
+        if (record.getStockCount() > Integer.MAX_VALUE - quantity || this.totalStockCount > Integer.MAX_VALUE - quantity) {
+            this.listeners.operationFailed(ShopOperation.ADD_STOCK, barCode, ShopResult.INVALID_ARGUMENT);
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        record.addStock(quantity);
+        this.totalStockCount += quantity;
+        this.listeners.stockAdded(barCode, quantity, record.getStockCount());
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * This method buys a product without the cost of an exception when it fails
+     * If there is less stock than the quantity, or the number of sales would pass Integer.MAX_VALUE, then nothing is bought
+     * @param barCode the barcode of the product to be bought
+     * @param quantity the number of items to buy
+     * @return the result of the purchase
+     */
+    @Override
+    public ShopResult tryBuy(String barCode, int quantity) {
+        ShopResult result = ShopResult.SUCCESS;
+        IStockRecord record = null;
+        if (barCode == null || quantity < 1) {
+            result = ShopResult.INVALID_ARGUMENT;
+        } else if ((record = this.stockRecords.get(barCode)) == null) {
+            result = ShopResult.NOT_REGISTERED;
+        } else if (record.getStockCount() < quantity) {
+            result = ShopResult.STOCK_UNAVAILABLE;
+        } else if (record.getNumberOfSales() > Integer.MAX_VALUE - quantity) {
+            result = ShopResult.INVALID_ARGUMENT;
+        }
+        if (result != ShopResult.SUCCESS) {
+            this.listeners.operationFailed(ShopOperation.BUY, barCode, result);
+            return result;
+        }
         try {
-            if(barCode == null) {
-                System.err.println("Barcode has null value");
-                return;
+            record.buyProduct(quantity);
+        } catch (StockUnavailableException e) {
+            return ShopResult.STOCK_UNAVAILABLE;
+        }
+        this.totalStockCount -= quantity;
+        this.popularity.update(record, quantity);
+        this.listeners.productSold(barCode, quantity, record.getStockCount());
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * Method that buys a whole basket of products
+     * Every line is looked up and checked for registration and stock before any stock is taken
+     * Only once the whole basket is known to be available is each record bought from, so a failed line changes nothing
+     * @param basket the quantity to buy for each barcode
+     * @return true if the whole basket was bought
+     * @throws StockUnavailableException if a product in the basket has less stock than its quantity
+     * @throws ProductNotRegisteredException if a product in the basket isn't registered in the shop
+     */
+    @Override
+    public boolean checkout(Map<String, Integer> basket) throws StockUnavailableException, ProductNotRegisteredException {
+        String barCode = null;
+        try {
+            if (basket == null) {
+                this.listeners.operationFailed(ShopOperation.CHECKOUT, null, ShopResult.INVALID_ARGUMENT);
+                return false;
             }
-            for (int i = 0; i < this.stockRecords.size(); i++) {
-                if (barCode.equals(this.stockRecords.get(i).getProduct().getBarCode())) {
-                    exists = true;
-                    if (this.stockRecords.get(i).getStockCount() < 1) {
-                        throw new StockUnavailableException();
-                    } else {
-                        available = true;
-                        this.stockRecords.get(i).buyProduct();
-                    }
+            IStockRecord[] records = new IStockRecord[basket.size()];
+            int[] quantities = new int[basket.size()];
+            int line = 0;
+            for (Map.Entry<String, Integer> entry : basket.entrySet()) {
+                barCode = entry.getKey();
+                if (barCode == null || entry.getValue() == null || entry.getValue() < 1) {
+                    this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                    return false;
                 }
+                IStockRecord record = this.stockRecords.get(barCode);
+                if (record == null) {
+                    throw new ProductNotRegisteredException();
+                }
+                if (record.getStockCount() < entry.getValue()) {
+                    throw new StockUnavailableException();
+                }
+                if (record.getNumberOfSales() > Integer.MAX_VALUE - entry.getValue()) {
+                    this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.INVALID_ARGUMENT);
+                    return false;
+                }
+                records[line] = record;
+                quantities[line] = entry.getValue();
+                line++;
             }
-
-            if (!exists) {
-                throw new ProductNotRegisteredException();
-            }
-            if (!available) {
-                throw new StockUnavailableException(); 
+            for (int i = 0; i < records.length; i++) {
+                records[i].buyProduct(quantities[i]);
+                this.totalStockCount -= quantities[i];
+                this.popularity.update(records[i], quantities[i]);
+                this.listeners.productSold(records[i].getProduct().getBarCode(), quantities[i], records[i].getStockCount());
             }
-            
+            return true;
         } catch (ProductNotRegisteredException e) {
-            System.err.println("Product does not exist");
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.NOT_REGISTERED);
         } catch (StockUnavailableException e) {
-            System.err.println("There is no stock of this product");
+            this.listeners.operationFailed(ShopOperation.CHECKOUT, barCode, ShopResult.STOCK_UNAVAILABLE);
         }
+        return false;
+    }
+
+    /**
+     * Takes a snapshot by copying every stock record in registration order
+     * The shop isn't thread safe, so nothing changes while the records are copied
+     * @return the snapshot
+     */
+    @Override
+    public IShopSnapshot snapshot() {
+        int count = this.stockRecords.size();
+        IProduct[] products = new IProduct[count];
+        int[] stockCounts = new int[count];
+        int[] sales = new int[count];
+        int i = 0;
+        for (IStockRecord record : this.stockRecords.values()) {
+            products[i] = record.getProduct();
+            stockCounts[i] = record.getStockCount();
+            sales[i] = record.getNumberOfSales();
+            i++;
+        }
+        return new ShopSnapshot(products, stockCounts, sales, null, count);
     }
 
     /**
@@ -187,22 +364,17 @@ public class Shop implements IShop {
 
     /**
      * Method for getting the total amount of stock in the shop
+     * The total is maintained as stock is added, bought and unregistered
      * @return the total amount of stock of all products in the shop
      */
     @Override
     public int getTotalStockCount() {
-        // TODO Auto-generated method stub
-        int total = 0;
-        for (int i = 0; i < stockRecords.size(); i++) {
-            total += this.stockRecords.get(i).getStockCount();
-        }
-        return total;
+        return this.totalStockCount;
     }
 
     /**
      * Method for getting the amount of stock for a particular product
-     * Finds the product that corresponds to the barcode passed in
-     * When the index becomes more than the amount of products this means the product with the barcode doesn't exist as this is the end position of the list
+     * Finds the stock record that corresponds to the barcode passed in
      * If the product doesn't exist in the shop the exception is thrown and handled
      * @param barCode the barcode of the product to get the stock count for
      * @return the stock count for the product
@@ -210,36 +382,21 @@ public class Shop implements IShop {
      */
     @Override
     public int getStockCount(String barCode) throws ProductNotRegisteredException {
-        // TODO Auto-generated method stub
-        boolean found = false;
-        int index = 0;
-        int stockCount = 0;
         try {
             if(barCode == null) {
-                System.err.println("Barcode has null value");
-                return stockCount;
+                this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+                return 0;
             }
-            if (this.stockRecords.size() < 1) {
+            int stockCount = lookupStock(barCode);
+            if (stockCount == NOT_REGISTERED) {
                 throw new ProductNotRegisteredException();
             }
-            while (!found) {
-                if (barCode.equals(this.stockRecords.get(index).getProduct().getBarCode())) {
-                    stockCount = this.stockRecords.get(index).getStockCount();
-                    found = true;
-                } else {
-                    index++;
-                }
-
-                if (index > this.numOfProducts) {
-                    throw new ProductNotRegisteredException();
-                }
-                return stockCount;
-            }
+            return stockCount;
         } catch (ProductNotRegisteredException e) {
-            System.err.println("Product does not exist to get stock count");
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
         }
         
-        return stockCount;
+        return 0;
     }
 
     /**
@@ -252,61 +409,110 @@ public class Shop implements IShop {
      */
     @Override
     public int getNumberOfSales(String barCode) throws ProductNotRegisteredException {
-        // TODO Auto-generated method stub
-        int numberOfSales = 0;
-        boolean exists = false;
         try {
             if (barCode == null) {
-                System.err.println("Barcode has null value");
-                return numberOfSales;
-            }
-            for (int i = 0; i < this.stockRecords.size(); i++) {
-                if (barCode.equals(this.stockRecords.get(i).getProduct().getBarCode())) {
-                    numberOfSales = this.stockRecords.get(i).getNumberOfSales();
-                    exists = true;
-                }
+                this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.INVALID_ARGUMENT);
+                return 0;
             }
-            if (!exists) {
+            int numberOfSales = lookupSales(barCode);
+            if (numberOfSales == NOT_REGISTERED) {
                 throw new ProductNotRegisteredException();
             }
             return numberOfSales;
         } catch (ProductNotRegisteredException e) {
-            System.err.println("Product not found");
+            this.listeners.operationFailed(ShopOperation.LOOKUP, barCode, ShopResult.NOT_REGISTERED);
         }
-        return numberOfSales;
+        return 0;
+    }
+
+    /**
+     * Method for getting the amount of stock for a particular product without an exception when it isn't registered
+     * @param barCode the barcode of the product to get the stock count for
+     * @return the stock count for the product, or NOT_REGISTERED
+     */
+    @Override
+    public int lookupStock(String barCode) {
+        IStockRecord record = barCode == null ? null : this.stockRecords.get(barCode);
+        return record == null ? NOT_REGISTERED : record.getStockCount();
+    }
+
+    /**
+     * Method for getting the sales of a particular product without an exception when it isn't registered
+     * @param barCode the barcode of the product to get sales for
+     * @return the number of sales for the product, or NOT_REGISTERED
+     */
+    @Override
+    public int lookupSales(String barCode) {
+        IStockRecord record = barCode == null ? null : this.stockRecords.get(barCode);
+        return record == null ? NOT_REGISTERED : record.getNumberOfSales();
     }
 
     /**
      * Method that gets the product that has sold the most
      * Makes sure there is products in the shop, if not the exception is thrown and handled
-     * Sets the first index of the stock records list to the most popular
-     * Traverses the list and compares the most popular to index of list, if index of list has more sales it is set to the most popular
+     * The popularity index always knows its best seller so no records are traversed
+     * If nothing has sold, every product ties so the earliest registered one is returned
+     * A shop that ranks only its best sellers forgets the sales of products it doesn't track, so once every tracked
+     * product has been unregistered it also returns the earliest registered product, even if others have sold,
+     * until the next sale is tracked
      * @returns the product of the product with the most sales/returns null if the exception is thrown as there are no products in shop
      * @throws ProductNotRegisteredException if there are no products registered in the shop
      */
     @Override
     public IProduct getMostPopular() throws ProductNotRegisteredException {
-        // TODO Auto-generated method stub
-
         try {
-            if (this.stockRecords.size() < 1) {
-                throw new ProductNotRegisteredException();
+            IStockRecord mostPopular = this.popularity.first();
+            if (mostPopular == null && !this.stockRecords.isEmpty()) {
+                mostPopular = this.stockRecords.values().iterator().next();
             }
-            IStockRecord mostPopular = this.stockRecords.get(0);
-            for (int i = 1; i < this.stockRecords.size(); i++) {
-                int mostPopularSales = mostPopular.getNumberOfSales();
-                int indexSales = this.stockRecords.get(i).getNumberOfSales();
-                if (mostPopularSales < indexSales) {
-                    mostPopular = this.stockRecords.get(i);
-                }
+            if (mostPopular == null) {
+                throw new ProductNotRegisteredException();
             }
             return mostPopular.getProduct();
 
         } catch (ProductNotRegisteredException e) {
-            System.err.println("No products in the shop");
+            this.listeners.operationFailed(ShopOperation.LOOKUP, null, ShopResult.NOT_REGISTERED);
         }
         return null;
     }
 
+    /**
+     * Method that gets the best selling products
+     * Walks the popularity index from the top so only the k returned records are visited
+     * A shop that ranks only its best sellers returns none that haven't sold, and at most as many as it ranks
+     * @param k the number of products to return
+     * @return the k products with the most sales, most sales first
+     */
+    @Override
+    public List<IProduct> getTopSellers(int k) {
+        return this.popularity.top(k);
+    }
+
+    /**
+     * Method that adds a listener to be told about changes to the shop and failed operations
+     * @param listener the listener to add
+     */
+    @Override
+    public void addListener(ShopListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Method that removes a listener from the shop
+     * @param listener the listener to remove
+     */
+    @Override
+    public void removeListener(ShopListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Works out the initial capacity of a hash map that can hold the expected number of entries without resizing
+     * @param expected the number of entries expected, or zero for the default size
+     * @return the capacity to create the map with
+     */
+    static int capacityFor(int expected) {
+        return expected < 1 ? 16 : (int) Math.min(Integer.MAX_VALUE, expected / 3L * 4 + 4);
+    }
 
 }
@@ -0,0 +1,217 @@
+package impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IStockRecord;
+
+/**
+ * This class answers questions about a whole chain of shops, such as the stock of a barcode across every store or the
+ * chain's best sellers. Each query is split in half recursively over a fork-join pool until every shop is asked on
+ * its own, and the answers are merged on the way back up, so a chain of hundreds of shops is queried on every core.
+ * A product's chain-wide sales are the sum of its sales in every shop that has it, so the best sellers are found from
+ * each shop's full sales rather than from each shop's own top sellers, which could miss a product sold a little
+ * everywhere. Each shop is read through {@link IShop#snapshot()}, so a shop is never seen half way through a change,
+ * but different shops may be read at slightly different times.
+ *
+ */
+public class ShopChain {
+
+    private final List<IShop> shops;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor for a chain queried on the common fork-join pool, which has a thread per core
+     * @param shops the shops of the chain
+     */
+    public ShopChain(List<? extends IShop> shops) {
+        this(shops, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for a chain queried on the given pool
+     * @param shops the shops of the chain
+     * @param pool the pool the queries run on
+     * @throws IllegalArgumentException if the shops, any shop, or the pool is null
+     */
+    public ShopChain(List<? extends IShop> shops, ForkJoinPool pool) {
+        if (shops == null || pool == null || shops.contains(null)) {
+            throw new IllegalArgumentException("Shops and pool must not be null");
+        }
+        this.shops = Collections.unmodifiableList(new ArrayList<>(shops));
+        this.pool = pool;
+    }
+
+    /**
+     * @return the shops of the chain, in the order they were given
+     */
+    public List<IShop> getShops() {
+        return this.shops;
+    }
+
+    /**
+     * @return the total stock count of every shop in the chain
+     */
+    public long getTotalStockCount() {
+        return query(shop -> (long) shop.getTotalStockCount(), Long::sum, 0L);
+    }
+
+    /**
+     * Gets the stock of a product across the chain
+     * @param barCode the bar code of the product
+     * @return the sum of its stock in every shop that has it, or {@link IShop#NOT_REGISTERED} if none do
+     */
+    public long lookupStock(String barCode) {
+        return query(shop -> (long) shop.lookupStock(barCode), ShopChain::sumRegistered, (long) IShop.NOT_REGISTERED);
+    }
+
+    /**
+     * Gets the sales of a product across the chain
+     * @param barCode the bar code of the product
+     * @return the sum of its sales in every shop that has it, or {@link IShop#NOT_REGISTERED} if none do
+     */
+    public long lookupSales(String barCode) {
+        return query(shop -> (long) shop.lookupSales(barCode), ShopChain::sumRegistered, (long) IShop.NOT_REGISTERED);
+    }
+
+    /**
+     * Gets the product with the most sales across the chain
+     * Ties go to the product found first, going through the shops in order and each shop in registration order
+     * @return the chain's best seller, or null if no shop has any products
+     */
+    public IProduct getMostPopular() {
+        List<IProduct> top = getTopSellers(1);
+        return top.isEmpty() ? null : top.get(0);
+    }
+
+    /**
+     * Gets the best selling products across the chain
+     * Every shop tallies its sales by barcode, the tallies are merged pairwise, and the k best are kept in a heap
+     * @param k the number of products to return
+     * @return the k products with the most sales across the chain, most sales first
+     */
+    public List<IProduct> getTopSellers(int k) {
+        if (k < 1) {
+            return new ArrayList<>();
+        }
+        LinkedHashMap<String, Tally> tallies = query(ShopChain::tally, ShopChain::merge, new LinkedHashMap<>());
+        PriorityQueue<Tally> heap = new PriorityQueue<>(Math.min(k, Math.max(1, tallies.size())) + 1);
+        long order = 0;
+        for (Tally tally : tallies.values()) {
+            tally.order = order++;
+            heap.offer(tally);
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }
+        List<IProduct> products = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            products.add(heap.poll().product);
+        }
+        Collections.reverse(products);
+        return products;
+    }
+
+    private <R> R query(Function<IShop, R> ask, BinaryOperator<R> merge, R none) {
+        if (this.shops.isEmpty()) {
+            return none;
+        }
+        return this.pool.invoke(new Query<>(this.shops, 0, this.shops.size(), ask, merge));
+    }
+
+    private static long sumRegistered(long a, long b) {
+        if (a == IShop.NOT_REGISTERED) {
+            return b;
+        }
+        return b == IShop.NOT_REGISTERED ? a : a + b;
+    }
+
+    private static LinkedHashMap<String, Tally> tally(IShop shop) {
+        List<IStockRecord> records = shop.snapshot().getStockRecords();
+        LinkedHashMap<String, Tally> tallies = new LinkedHashMap<>(Shop.capacityFor(records.size()));
+        for (IStockRecord record : records) {
+            tallies.put(record.getProduct().getBarCode(), new Tally(record.getProduct(), record.getNumberOfSales()));
+        }
+        return tallies;
+    }
+
+    /**
+     * Adds the right tallies into the left, so products keep the order they were first found in
+     */
+    private static LinkedHashMap<String, Tally> merge(LinkedHashMap<String, Tally> left, LinkedHashMap<String, Tally> right) {
+        for (Tally tally : right.values()) {
+            Tally found = left.putIfAbsent(tally.product.getBarCode(), tally);
+            if (found != null) {
+                found.sales += tally.sales;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * A query over a range of the shops, split in half until it covers a single shop.
+     */
+    private static final class Query<R> extends RecursiveTask<R> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<IShop> shops;
+        private final int from;
+        private final int to;
+        private final Function<IShop, R> ask;
+        private final BinaryOperator<R> merge;
+
+        Query(List<IShop> shops, int from, int to, Function<IShop, R> ask, BinaryOperator<R> merge) {
+            this.shops = shops;
+            this.from = from;
+            this.to = to;
+            this.ask = ask;
+            this.merge = merge;
+        }
+
+        @Override
+        protected R compute() {
+            if (this.to - this.from == 1) {
+                return this.ask.apply(this.shops.get(this.from));
+            }
+            int middle = (this.from + this.to) >>> 1;
+            Query<R> right = new Query<>(this.shops, middle, this.to, this.ask, this.merge);
+            right.fork();
+            R left = new Query<>(this.shops, this.from, middle, this.ask, this.merge).compute();
+            return this.merge.apply(left, right.join());
+        }
+    }
+
+    /**
+     * A product's sales summed over the shops that have it, ordered so the heap's head is the weakest.
+     */
+    private static final class Tally implements Comparable<Tally> {
+
+        private final IProduct product;
+        private long sales;
+        private long order;
+
+        Tally(IProduct product, long sales) {
+            this.product = product;
+            this.sales = sales;
+        }
+
+        @Override
+        public int compareTo(Tally other) {
+            if (this.sales != other.sales) {
+                return Long.compare(this.sales, other.sales);
+            }
+            return Long.compare(other.order, this.order);
+        }
+    }
+
+}
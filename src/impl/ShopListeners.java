@@ -0,0 +1,91 @@
+package impl;
+
+import java.util.Arrays;
+
+import interfaces.IProduct;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
+
+/**
+ * This class passes each shop event on to every listener added to a shop.
+ * The listeners are held in an array that is copied when a listener is added or removed,
+ * so publishing an event takes no lock and allocates nothing.
+ *
+ */
+class ShopListeners implements ShopListener {
+
+    private volatile ShopListener[] listeners;
+
+    /**
+     * Constructor with no listeners
+     */
+    ShopListeners() {
+        this.listeners = new ShopListener[0];
+    }
+
+    /**
+     * Adds a listener
+     * @param listener the listener to add, null is ignored
+     */
+    synchronized void add(ShopListener listener) {
+        if (listener == null) {
+            return;
+        }
+        ShopListener[] updated = Arrays.copyOf(this.listeners, this.listeners.length + 1);
+        updated[updated.length - 1] = listener;
+        this.listeners = updated;
+    }
+
+    /**
+     * Removes a listener
+     * @param listener the listener to remove
+     */
+    synchronized void remove(ShopListener listener) {
+        for (int i = 0; i < this.listeners.length; i++) {
+            if (this.listeners[i] == listener) {
+                ShopListener[] updated = new ShopListener[this.listeners.length - 1];
+                System.arraycopy(this.listeners, 0, updated, 0, i);
+                System.arraycopy(this.listeners, i + 1, updated, i, updated.length - i);
+                this.listeners = updated;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void productRegistered(IProduct product) {
+        for (ShopListener listener : this.listeners) {
+            listener.productRegistered(product);
+        }
+    }
+
+    @Override
+    public void productUnregistered(IProduct product, int stockCount) {
+        for (ShopListener listener : this.listeners) {
+            listener.productUnregistered(product, stockCount);
+        }
+    }
+
+    @Override
+    public void stockAdded(String barCode, int quantity, int stockCount) {
+        for (ShopListener listener : this.listeners) {
+            listener.stockAdded(barCode, quantity, stockCount);
+        }
+    }
+
+    @Override
+    public void productSold(String barCode, int quantity, int stockCount) {
+        for (ShopListener listener : this.listeners) {
+            listener.productSold(barCode, quantity, stockCount);
+        }
+    }
+
+    @Override
+    public void operationFailed(ShopOperation operation, String barCode, ShopResult result) {
+        for (ShopListener listener : this.listeners) {
+            listener.operationFailed(operation, barCode, result);
+        }
+    }
+
+}
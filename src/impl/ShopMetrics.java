@@ -0,0 +1,109 @@
+package impl;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import interfaces.IProduct;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
+
+/**
+ * This class is a listener that counts what happens in a shop.
+ * The counters are LongAdders so many tills can update them at once without contending on a single value.
+ *
+ */
+public class ShopMetrics implements ShopListener {
+
+    private final LongAdder registrations;
+    private final LongAdder unregistrations;
+    private final LongAdder unitsStocked;
+    private final LongAdder sales;
+    private final LongAdder unitsSold;
+    private final EnumMap<ShopResult, LongAdder> failures;
+
+    /**
+     * Constructor with every counter at zero
+     */
+    public ShopMetrics() {
+        this.registrations = new LongAdder();
+        this.unregistrations = new LongAdder();
+        this.unitsStocked = new LongAdder();
+        this.sales = new LongAdder();
+        this.unitsSold = new LongAdder();
+        this.failures = new EnumMap<>(ShopResult.class);
+        for (ShopResult result : ShopResult.values()) {
+            this.failures.put(result, new LongAdder());
+        }
+    }
+
+    @Override
+    public void productRegistered(IProduct product) {
+        this.registrations.increment();
+    }
+
+    @Override
+    public void productUnregistered(IProduct product, int stockCount) {
+        this.unregistrations.increment();
+    }
+
+    @Override
+    public void stockAdded(String barCode, int quantity, int stockCount) {
+        this.unitsStocked.add(quantity);
+    }
+
+    @Override
+    public void productSold(String barCode, int quantity, int stockCount) {
+        this.sales.increment();
+        this.unitsSold.add(quantity);
+    }
+
+    @Override
+    public void operationFailed(ShopOperation operation, String barCode, ShopResult result) {
+        this.failures.get(result).increment();
+    }
+
+    /**
+     * @return the number of products registered
+     */
+    public long getRegistrations() {
+        return this.registrations.sum();
+    }
+
+    /**
+     * @return the number of products unregistered
+     */
+    public long getUnregistrations() {
+        return this.unregistrations.sum();
+    }
+
+    /**
+     * @return the number of items of stock added
+     */
+    public long getUnitsStocked() {
+        return this.unitsStocked.sum();
+    }
+
+    /**
+     * @return the number of successful purchases, a basket counts once per line
+     */
+    public long getSales() {
+        return this.sales.sum();
+    }
+
+    /**
+     * @return the number of items bought
+     */
+    public long getUnitsSold() {
+        return this.unitsSold.sum();
+    }
+
+    /**
+     * @param result the reason for failure
+     * @return the number of operations that failed for that reason
+     */
+    public long getFailures(ShopResult result) {
+        return this.failures.get(result).sum();
+    }
+
+}
@@ -0,0 +1,112 @@
+package impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class holds the binary protocol spoken between a {@link PartitionedShop} and its {@link ShopServer} nodes.
+ * Every request is a one byte operation followed by its arguments, and is answered by one reply before the next
+ * request is read, so a client can write a request to every node before reading any reply.
+ * Strings are written as an unsigned short byte length and UTF-8 bytes, with the largest length standing for null.
+ * <p>
+ * Requests and their replies:
+ * <ul>
+ * <li>REGISTER barCode description: result byte, stock count int</li>
+ * <li>UNREGISTER barCode description: result byte, stock count int the product had</li>
+ * <li>ADD_STOCK barCode quantity, BUY barCode quantity: result byte, stock count int after the change</li>
+ * <li>CHECKOUT lines int, then barCode quantity per line: result byte, then the stock count int of each line
+ * if it succeeded or the failing barCode if it didn't</li>
+ * <li>LOOKUP_STOCK barCode, LOOKUP_SALES barCode: count int, or -1 if not registered</li>
+ * <li>TOTALS: number of products int, total stock count int</li>
+ * <li>TOP k: count int, then barCode description sales per product, best seller first</li>
+ * <li>RECORDS: count int, then barCode description stock sales per product, in registration order</li>
+ * <li>RESTORE barCode description stock sales: result byte</li>
+ * <li>MOVING ring limit: starts a scan for the products the ring gives to a joining node and replies with the first
+ * page, a count int then barCode description stock sales per product; a page shorter than limit is the last</li>
+ * <li>MOVING_NEXT limit: the next page of the connection's scan</li>
+ * <li>DROP_MOVING ring: unregisters every product the ring gives to the joining node, replying with their count int;
+ * products already gone are skipped, so it can be repeated</li>
+ * </ul>
+ * A ring is a point count int, then per point its hash long and a byte that is 1 if the joining node owns it.
+ * Results are the ordinals of {@link interfaces.ShopResult}.
+ *
+ */
+final class ShopProtocol {
+
+    static final byte REGISTER = 1;
+    static final byte UNREGISTER = 2;
+    static final byte ADD_STOCK = 3;
+    static final byte BUY = 4;
+    static final byte CHECKOUT = 5;
+    static final byte LOOKUP_STOCK = 6;
+    static final byte LOOKUP_SALES = 7;
+    static final byte TOTALS = 8;
+    static final byte TOP = 9;
+    static final byte RECORDS = 10;
+    static final byte RESTORE = 11;
+    static final byte MOVING = 12;
+    static final byte MOVING_NEXT = 13;
+    static final byte DROP_MOVING = 14;
+
+    private static final int NO_STRING = 0xFFFF;
+
+    private ShopProtocol() {
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the UTF-8 bytes, mixed so nearby barcodes spread over the ring; it is the same in every process
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe1a85ec3L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Gets the point of the ring a barcode belongs to, which is the first point at or after its hash
+     * @param points the sorted points of the ring
+     * @param barCode the barcode
+     * @return the index of the point
+     */
+    static int pointOf(long[] points, String barCode) {
+        int point = Arrays.binarySearch(points, hash(barCode));
+        if (point < 0) {
+            point = -point - 1;
+        }
+        return point == points.length ? 0 : point;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(NO_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NO_STRING) {
+            throw new IOException("Barcode or description too long to send");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        if (length == NO_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
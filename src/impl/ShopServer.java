@@ -0,0 +1,399 @@
+package impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import exceptions.StockUnavailableException;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IStockRecord;
+import interfaces.ShopConfig;
+import interfaces.ShopListener;
+import interfaces.ShopOperation;
+import interfaces.ShopResult;
+
+/**
+ * This class serves one shop to a {@link PartitionedShop} client over local sockets, so a catalog too large for one
+ * heap can be spread over several processes. It listens on the loopback address only, and serves one connection at
+ * a time, reading a request, running it on the shop and writing the reply, as described by {@link ShopProtocol}.
+ * A client that connects while another is served waits until that one disconnects, so only one client changes the
+ * shop and products can be moved to a joining node without anything else changing them during the copy.
+ * Requests are run on the shop one at a time, so any engine can be served.
+ * Products sent over the wire are new instances, so a product is unregistered by barcode and description rather than
+ * by the instance that was registered.
+ *
+ */
+public class ShopServer implements AutoCloseable {
+
+    private final IShop shop;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections;
+    private final HashMap<String, IProduct> products;
+    private final Object lock;
+    private ShopResult failure;
+    private String failedBarCode;
+
+    /**
+     * Constructor that starts serving the shop
+     * @param shop the shop to serve, which may already hold products
+     * @param port the loopback port to listen on, or zero for any free port
+     * @throws IOException if the port can't be listened on
+     */
+    public ShopServer(IShop shop, int port) throws IOException {
+        this.shop = shop;
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.products = new HashMap<>();
+        this.lock = new Object();
+        for (IStockRecord record : shop.snapshot().getStockRecords()) {
+            this.products.put(record.getProduct().getBarCode(), record.getProduct());
+        }
+        shop.addListener(new ShopListener() {
+            @Override
+            public void operationFailed(ShopOperation operation, String barCode, ShopResult result) {
+                ShopServer.this.failure = result;
+                ShopServer.this.failedBarCode = barCode;
+            }
+        });
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "shop-server-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Runs a shop server as its own process until its standard input is closed.
+     * The engine and sizing are read from system properties as described by {@link ShopConfig#fromProperties},
+     * and the port listened on is printed as the first line of standard output.
+     * @param args the port to listen on, or none for any free port
+     * @throws IOException if the port can't be listened on
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        IShop shop = Factory.getInstance().makeShop(ShopConfig.fromProperties(System.getProperties()));
+        try (ShopServer server = new ShopServer(shop, port)) {
+            System.out.println(server.getPort());
+            System.out.flush();
+            InputStream stdin = System.in;
+            while (stdin.read() >= 0) {
+                // served on other threads until the parent closes our input
+            }
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the address clients connect to
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(this.serverSocket.getInetAddress(), getPort());
+    }
+
+    /**
+     * Stops listening and closes every connection
+     */
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+        for (Socket connection : this.connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                Socket connection = this.serverSocket.accept();
+                connection.setTcpNoDelay(true);
+                this.connections.add(connection);
+                serve(connection);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket connection) {
+        try (Socket socket = connection) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Session session = new Session();
+            int operation;
+            while ((operation = in.read()) >= 0) {
+                handle((byte) operation, in, out, session);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away, its connection is dropped
+        } finally {
+            this.connections.remove(connection);
+        }
+    }
+
+    /**
+     * Reads the arguments of a request, then runs it on the shop holding the lock and writes the reply
+     */
+    private void handle(byte operation, DataInputStream in, DataOutputStream out, Session session) throws IOException {
+        switch (operation) {
+            case ShopProtocol.REGISTER:
+            case ShopProtocol.UNREGISTER: {
+                String barCode = ShopProtocol.readString(in);
+                String description = ShopProtocol.readString(in);
+                synchronized (this.lock) {
+                    if (operation == ShopProtocol.REGISTER) {
+                        out.writeByte(register(barCode, description).ordinal());
+                        out.writeInt(this.shop.lookupStock(barCode));
+                    } else {
+                        int stockCount = this.shop.lookupStock(barCode);
+                        out.writeByte(unregister(barCode, description).ordinal());
+                        out.writeInt(stockCount);
+                    }
+                }
+                return;
+            }
+            case ShopProtocol.ADD_STOCK:
+            case ShopProtocol.BUY: {
+                String barCode = ShopProtocol.readString(in);
+                int quantity = in.readInt();
+                synchronized (this.lock) {
+                    ShopResult result = operation == ShopProtocol.ADD_STOCK ? this.shop.tryAddStock(barCode, quantity)
+                            : this.shop.tryBuy(barCode, quantity);
+                    out.writeByte(result.ordinal());
+                    out.writeInt(this.shop.lookupStock(barCode));
+                }
+                return;
+            }
+            case ShopProtocol.CHECKOUT: {
+                int lines = in.readInt();
+                Map<String, Integer> basket = new LinkedHashMap<>(Shop.capacityFor(lines));
+                for (int line = 0; line < lines; line++) {
+                    String barCode = ShopProtocol.readString(in);
+                    basket.put(barCode, in.readInt());
+                }
+                synchronized (this.lock) {
+                    checkout(basket, out);
+                }
+                return;
+            }
+            case ShopProtocol.LOOKUP_STOCK:
+            case ShopProtocol.LOOKUP_SALES: {
+                String barCode = ShopProtocol.readString(in);
+                synchronized (this.lock) {
+                    out.writeInt(operation == ShopProtocol.LOOKUP_STOCK ? this.shop.lookupStock(barCode)
+                            : this.shop.lookupSales(barCode));
+                }
+                return;
+            }
+            case ShopProtocol.TOTALS:
+                synchronized (this.lock) {
+                    out.writeInt(this.shop.getNumberOfProducts());
+                    out.writeInt(this.shop.getTotalStockCount());
+                }
+                return;
+            case ShopProtocol.TOP: {
+                int k = in.readInt();
+                synchronized (this.lock) {
+                    List<IProduct> top = this.shop.getTopSellers(k);
+                    out.writeInt(top.size());
+                    for (IProduct product : top) {
+                        ShopProtocol.writeString(out, product.getBarCode());
+                        ShopProtocol.writeString(out, product.getDescription());
+                        out.writeInt(this.shop.lookupSales(product.getBarCode()));
+                    }
+                }
+                return;
+            }
+            case ShopProtocol.RECORDS: {
+                List<IStockRecord> records;
+                synchronized (this.lock) {
+                    records = this.shop.snapshot().getStockRecords();
+                }
+                out.writeInt(records.size());
+                for (IStockRecord record : records) {
+                    ShopProtocol.writeString(out, record.getProduct().getBarCode());
+                    ShopProtocol.writeString(out, record.getProduct().getDescription());
+                    out.writeInt(record.getStockCount());
+                    out.writeInt(record.getNumberOfSales());
+                }
+                return;
+            }
+            case ShopProtocol.RESTORE: {
+                String barCode = ShopProtocol.readString(in);
+                String description = ShopProtocol.readString(in);
+                IProduct product = Factory.getInstance().makeProduct(barCode, description);
+                int stockCount = in.readInt();
+                int sales = in.readInt();
+                synchronized (this.lock) {
+                    boolean restored = this.shop instanceof Checkpointable
+                            ? ((Checkpointable) this.shop).restore(product, stockCount, sales)
+                            : SnapshotFile.replay(this.shop, product, stockCount, sales);
+                    if (restored) {
+                        this.products.put(product.getBarCode(), product);
+                    }
+                    out.writeByte((restored ? ShopResult.SUCCESS : ShopResult.BAR_CODE_IN_USE).ordinal());
+                }
+                return;
+            }
+            case ShopProtocol.MOVING: {
+                session.readRing(in);
+                int limit = in.readInt();
+                synchronized (this.lock) {
+                    session.moving = this.shop.snapshot().getStockRecords().iterator();
+                }
+                writeMoving(session, limit, out);
+                return;
+            }
+            case ShopProtocol.MOVING_NEXT:
+                writeMoving(session, in.readInt(), out);
+                return;
+            case ShopProtocol.DROP_MOVING: {
+                session.readRing(in);
+                int dropped = 0;
+                synchronized (this.lock) {
+                    for (IStockRecord record : this.shop.snapshot().getStockRecords()) {
+                        String barCode = record.getProduct().getBarCode();
+                        if (session.joins(barCode)
+                                && unregister(barCode, record.getProduct().getDescription()) == ShopResult.SUCCESS) {
+                            dropped++;
+                        }
+                    }
+                }
+                out.writeInt(dropped);
+                return;
+            }
+            default:
+                throw new IOException("Unknown shop operation " + operation);
+        }
+    }
+
+    /**
+     * Writes the next page of products the session's ring gives to the joining node, read from the scan's snapshot
+     */
+    private static void writeMoving(Session session, int limit, DataOutputStream out) throws IOException {
+        if (session.moving == null) {
+            throw new IOException("No scan for moving products was started");
+        }
+        List<IStockRecord> page = new ArrayList<>(Math.min(limit, 1024));
+        while (page.size() < limit && session.moving.hasNext()) {
+            IStockRecord record = session.moving.next();
+            if (session.joins(record.getProduct().getBarCode())) {
+                page.add(record);
+            }
+        }
+        out.writeInt(page.size());
+        for (IStockRecord record : page) {
+            ShopProtocol.writeString(out, record.getProduct().getBarCode());
+            ShopProtocol.writeString(out, record.getProduct().getDescription());
+            out.writeInt(record.getStockCount());
+            out.writeInt(record.getNumberOfSales());
+        }
+        if (page.size() < limit) {
+            session.moving = null;
+        }
+    }
+
+    private ShopResult register(String barCode, String description) {
+        IProduct product = Factory.getInstance().makeProduct(barCode, description);
+        this.failure = null;
+        try {
+            this.shop.registerProduct(product);
+        } catch (BarCodeAlreadyInUseException e) {
+            this.failure = ShopResult.BAR_CODE_IN_USE;
+        }
+        if (this.failure == null) {
+            this.products.put(barCode, product);
+            return ShopResult.SUCCESS;
+        }
+        return this.failure;
+    }
+
+    private ShopResult unregister(String barCode, String description) {
+        IProduct product = this.products.get(barCode);
+        if (product == null || !Objects.equals(description, product.getDescription())) {
+            return ShopResult.NOT_REGISTERED;
+        }
+        this.failure = null;
+        try {
+            this.shop.unregisterProduct(product);
+        } catch (ProductNotRegisteredException e) {
+            this.failure = ShopResult.NOT_REGISTERED;
+        }
+        if (this.failure == null) {
+            this.products.remove(barCode);
+            return ShopResult.SUCCESS;
+        }
+        return this.failure;
+    }
+
+    /**
+     * Checks out the basket and replies with the stock count of each line, or with the line that failed
+     */
+    private void checkout(Map<String, Integer> basket, DataOutputStream out) throws IOException {
+        this.failure = null;
+        this.failedBarCode = null;
+        boolean bought;
+        try {
+            bought = this.shop.checkout(basket);
+        } catch (StockUnavailableException | ProductNotRegisteredException e) {
+            bought = false;
+        }
+        if (!bought) {
+            out.writeByte((this.failure == null ? ShopResult.INVALID_ARGUMENT : this.failure).ordinal());
+            ShopProtocol.writeString(out, this.failedBarCode);
+            return;
+        }
+        out.writeByte(ShopResult.SUCCESS.ordinal());
+        for (String barCode : basket.keySet()) {
+            out.writeInt(this.shop.lookupStock(barCode));
+        }
+    }
+
+    /**
+     * The state one connection keeps between requests: the ring of a node joining and the scan for its products.
+     */
+    private static final class Session {
+
+        private long[] points;
+        private boolean[] joining;
+        private Iterator<IStockRecord> moving;
+
+        void readRing(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            this.points = new long[count];
+            this.joining = new boolean[count];
+            for (int point = 0; point < count; point++) {
+                this.points[point] = in.readLong();
+                this.joining[point] = in.readBoolean();
+            }
+        }
+
+        boolean joins(String barCode) {
+            return this.points.length > 0 && this.joining[ShopProtocol.pointOf(this.points, barCode)];
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+package impl;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import exceptions.StockUnavailableException;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IShopSnapshot;
+import interfaces.IStockRecord;
+
+/**
+ * This class is an immutable view of a shop's stock records at one instant.
+ * It is made from columns of products, stock counts and sales, which may still be in slot order and have gaps;
+ * they are put in registration order the first time the snapshot is read, so taking it stays cheap for the shop.
+ * The shop must not change the columns it hands over.
+ *
+ */
+final class ShopSnapshot implements IShopSnapshot {
+
+    private IProduct[] products;
+    private int[] stockCounts;
+    private int[] sales;
+    private long[] order;
+    private int length;
+    private boolean ordered;
+    private int totalStockCount;
+    private HashMap<String, Integer> index;
+
+    /**
+     * Constructor that takes the columns without copying them
+     * @param products the products, with null for an empty slot
+     * @param stockCounts the stock count of the product in each slot
+     * @param sales the number of sales of the product in each slot
+     * @param order the registration order of the product in each slot, or null if the slots are already in that order
+     * @param length the number of slots used
+     */
+    ShopSnapshot(IProduct[] products, int[] stockCounts, int[] sales, long[] order, int length) {
+        this.products = products;
+        this.stockCounts = stockCounts;
+        this.sales = sales;
+        this.order = order;
+        this.length = length;
+        this.ordered = false;
+    }
+
+    @Override
+    public int getNumberOfProducts() {
+        arrange();
+        return this.length;
+    }
+
+    @Override
+    public int getTotalStockCount() {
+        arrange();
+        return this.totalStockCount;
+    }
+
+    @Override
+    public int lookupStock(String barCode) {
+        int position = positionOf(barCode);
+        return position < 0 ? IShop.NOT_REGISTERED : this.stockCounts[position];
+    }
+
+    @Override
+    public int lookupSales(String barCode) {
+        int position = positionOf(barCode);
+        return position < 0 ? IShop.NOT_REGISTERED : this.sales[position];
+    }
+
+    @Override
+    public List<IStockRecord> getStockRecords() {
+        arrange();
+        return new AbstractList<IStockRecord>() {
+            @Override
+            public IStockRecord get(int position) {
+                if (position < 0 || position >= ShopSnapshot.this.length) {
+                    throw new IndexOutOfBoundsException("No stock record at " + position);
+                }
+                return new FrozenRecord(ShopSnapshot.this.products[position], ShopSnapshot.this.stockCounts[position],
+                        ShopSnapshot.this.sales[position]);
+            }
+
+            @Override
+            public int size() {
+                return ShopSnapshot.this.length;
+            }
+        };
+    }
+
+    @Override
+    public List<IProduct> getTopSellers(int k) {
+        arrange();
+        if (k < 1 || this.length == 0) {
+            return Collections.emptyList();
+        }
+        // positions are registration order, so the lower position wins a tie
+        PriorityQueue<Integer> best = new PriorityQueue<>(Math.min(k, this.length) + 1,
+                (a, b) -> this.sales[a] != this.sales[b] ? Integer.compare(this.sales[a], this.sales[b]) : Integer.compare(b, a));
+        for (int position = 0; position < this.length; position++) {
+            best.add(position);
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
+        IProduct[] top = new IProduct[best.size()];
+        for (int i = top.length - 1; i >= 0; i--) {
+            top[i] = this.products[best.poll()];
+        }
+        return Collections.unmodifiableList(Arrays.asList(top));
+    }
+
+    private int positionOf(String barCode) {
+        if (barCode == null) {
+            return -1;
+        }
+        Integer position = index().get(barCode);
+        return position == null ? -1 : position;
+    }
+
+    private synchronized HashMap<String, Integer> index() {
+        arrange();
+        if (this.index == null) {
+            HashMap<String, Integer> positions = new HashMap<>(Shop.capacityFor(this.length));
+            for (int position = 0; position < this.length; position++) {
+                positions.put(this.products[position].getBarCode(), position);
+            }
+            this.index = positions;
+        }
+        return this.index;
+    }
+
+    /**
+     * Drops the empty slots and puts the rest in registration order, the first time the snapshot is read
+     */
+    private synchronized void arrange() {
+        if (this.ordered) {
+            return;
+        }
+        List<Integer> live = new ArrayList<>(this.length);
+        for (int slot = 0; slot < this.length; slot++) {
+            if (this.products[slot] != null) {
+                live.add(slot);
+            }
+        }
+        if (this.order != null) {
+            long[] registration = this.order;
+            live.sort((a, b) -> Long.compare(registration[a], registration[b]));
+        }
+        IProduct[] arrangedProducts = new IProduct[live.size()];
+        int[] arrangedStock = new int[live.size()];
+        int[] arrangedSales = new int[live.size()];
+        int total = 0;
+        for (int position = 0; position < arrangedProducts.length; position++) {
+            int slot = live.get(position);
+            arrangedProducts[position] = this.products[slot];
+            arrangedStock[position] = this.stockCounts[slot];
+            arrangedSales[position] = this.sales[slot];
+            total += arrangedStock[position];
+        }
+        this.products = arrangedProducts;
+        this.stockCounts = arrangedStock;
+        this.sales = arrangedSales;
+        this.order = null;
+        this.length = arrangedProducts.length;
+        this.totalStockCount = total;
+        this.ordered = true;
+    }
+
+    /**
+     * A stock record that can't be changed.
+     */
+    private static final class FrozenRecord implements IStockRecord {
+
+        private final IProduct product;
+        private final int stockCount;
+        private final int sales;
+
+        FrozenRecord(IProduct product, int stockCount, int sales) {
+            this.product = product;
+            this.stockCount = stockCount;
+            this.sales = sales;
+        }
+
+        @Override
+        public IProduct getProduct() {
+            return this.product;
+        }
+
+        @Override
+        public int getStockCount() {
+            return this.stockCount;
+        }
+
+        @Override
+        public int getNumberOfSales() {
+            return this.sales;
+        }
+
+        @Override
+        public void addStock() {
+            throw new UnsupportedOperationException("A snapshot can't be changed");
+        }
+
+        @Override
+        public void buyProduct() throws StockUnavailableException {
+            throw new UnsupportedOperationException("A snapshot can't be changed");
+        }
+
+        @Override
+        public void addStock(int quantity) {
+            throw new UnsupportedOperationException("A snapshot can't be changed");
+        }
+
+        @Override
+        public void buyProduct(int quantity) throws StockUnavailableException {
+            throw new UnsupportedOperationException("A snapshot can't be changed");
+        }
+    }
+
+}
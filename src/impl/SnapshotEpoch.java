@@ -0,0 +1,87 @@
+package impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class lets a concurrent shop take a consistent snapshot without stopping its tills.
+ * Every change to stock runs inside an epoch. Taking a snapshot starts a new epoch and waits for changes still
+ * running in the old one to finish; from then on the first change to each record saves what the record held before
+ * it, so the snapshot can read every record as it was when the new epoch began.
+ * Changes only wait in the moment between a snapshot starting its epoch and the old changes finishing.
+ * The number of changes running in each epoch is counted in padded stripes picked by thread, so tills don't
+ * contend on one counter.
+ *
+ */
+final class SnapshotEpoch {
+
+    private static final int STRIPES = 64;
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray running;
+    private volatile long epoch;
+    private volatile long readyEpoch;
+
+    /**
+     * Constructor for the first epoch
+     */
+    SnapshotEpoch() {
+        this.running = new AtomicLongArray(2 * STRIPES * PADDING);
+        this.epoch = 0;
+        this.readyEpoch = 0;
+    }
+
+    /**
+     * Starts a change, which must be ended with {@link #exit(long)}
+     * @return the epoch the change runs in
+     */
+    long enter() {
+        int stripe = stripe();
+        while (true) {
+            long current = this.epoch;
+            int counter = counter(current, stripe);
+            this.running.incrementAndGet(counter);
+            if (this.epoch == current) {
+                while (this.readyEpoch < current) {
+                    Thread.yield();
+                }
+                return current;
+            }
+            this.running.decrementAndGet(counter);
+        }
+    }
+
+    /**
+     * Ends a change
+     * @param epoch the epoch returned by {@link #enter()}
+     */
+    void exit(long epoch) {
+        this.running.decrementAndGet(counter(epoch, stripe()));
+    }
+
+    /**
+     * Starts a new epoch and waits for the changes running in the old one to finish.
+     * Only one snapshot may advance the epoch at a time.
+     * @return the new epoch, whose records are read with {@link ConcurrentStockRecord#getStateAt(long)}
+     */
+    long advance() {
+        long next = this.epoch + 1;
+        this.epoch = next;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int counter = counter(next - 1, stripe);
+            while (this.running.get(counter) != 0) {
+                Thread.yield();
+            }
+        }
+        this.readyEpoch = next;
+        return next;
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    }
+
+    private static int counter(long epoch, int stripe) {
+        return ((int) (epoch & 1) * STRIPES + stripe) * PADDING;
+    }
+
+}
@@ -0,0 +1,213 @@
+package impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import exceptions.BarCodeAlreadyInUseException;
+import exceptions.ProductNotRegisteredException;
+import exceptions.StockUnavailableException;
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IStockRecord;
+
+/**
+ * This class checkpoints the products, stock counts and sales counts of a shop into a compact binary file
+ * and loads them back. Files are loaded through a memory mapping and, for the shops in this package, put
+ * straight into the shop's storage, so restarting a large catalog doesn't replay its history.
+ * The concurrent shops can be checkpointed while tills keep buying from them; each product is read in one
+ * step so its stock and sales always agree. Any other shop is written from its {@link IShop#snapshot()}, so every
+ * product belongs to the same moment and keeps its registration order. A {@link JournaledShop} shortens its own
+ * journal with {@link JournaledShop#checkpoint()}.
+ * A checkpoint is written to a temporary file that is forced to disk and only then moved over the old one, and the
+ * directory is forced after the move, so a crash leaves either the old checkpoint or the whole new one.
+ * Loading is bound by making a product object and its two strings per product: a 2,000,000 product checkpoint takes
+ * about 0.7 to 1.5 seconds to load into a {@link ColumnarShop} or {@link ConcurrentShop}, short of the target of well
+ * under a second for multi-million product catalogs.
+ *
+ */
+public final class SnapshotFile {
+
+    private static final int MAGIC = 0x53484F50;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int TRAILER_BYTES = 12;
+    private static final int NO_STRING = 0xFFFF;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes a checkpoint of the shop, replacing any file already at the path
+     * @param shop the shop to checkpoint
+     * @param file the file to write
+     * @return the number of products written
+     * @throws IOException if the file can't be written
+     */
+    public static int write(IShop shop, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        int[] count = new int[1];
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            DataOutputStream header = new DataOutputStream(stream);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(stream, crc));
+            Checkpointable.RecordVisitor writer = (product, stockCount, sales) -> {
+                writeString(out, product.getBarCode());
+                writeString(out, product.getDescription());
+                out.writeInt(stockCount);
+                out.writeInt(sales);
+                count[0]++;
+            };
+            if (shop instanceof Checkpointable) {
+                ((Checkpointable) shop).checkpoint(writer);
+            } else {
+                for (IStockRecord record : shop.snapshot().getStockRecords()) {
+                    writer.visit(record.getProduct(), record.getStockCount(), record.getNumberOfSales());
+                }
+            }
+            out.flush();
+            header.writeInt(count[0]);
+            header.writeLong(crc.getValue());
+            header.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(file.toAbsolutePath().getParent());
+        return count[0];
+    }
+
+    /**
+     * Forces a directory's entries to disk so a file just moved into it survives a crash
+     * Some platforms, such as Windows, can't open a directory, and leave it to the move to be durable
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (FileChannel open = channel) {
+            open.force(true);
+        }
+    }
+
+    /**
+     * Loads a checkpoint into a shop, which would normally be empty
+     * Products whose barcode is already registered in the shop are skipped
+     * @param file the file to read
+     * @param shop the shop to add the products to
+     * @return the number of products added
+     * @throws IOException if the file can't be read or isn't a whole checkpoint
+     */
+    public static int load(Path file, IShop shop) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a shop snapshot: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a shop snapshot: " + file);
+            }
+            int end = (int) size - TRAILER_BYTES;
+            int count = buffer.getInt(end);
+            CRC32 crc = new CRC32();
+            long checksum = buffer.getLong(end + 4);
+            buffer.limit(end);
+            buffer.position(HEADER_BYTES);
+            crc.update(buffer);
+            if (crc.getValue() != checksum) {
+                throw new IOException("Corrupt shop snapshot: " + file);
+            }
+            buffer.position(HEADER_BYTES);
+            try {
+                return restore(buffer, count, shop);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt shop snapshot: " + file, e);
+            }
+        }
+    }
+
+    private static int restore(MappedByteBuffer buffer, int count, IShop shop) {
+        Checkpointable target = shop instanceof Checkpointable ? (Checkpointable) shop : null;
+        byte[] scratch = new byte[64];
+        int added = 0;
+        for (int i = 0; i < count; i++) {
+            String barCode = readString(buffer, scratch);
+            String description = readString(buffer, scratch);
+            int stockCount = buffer.getInt();
+            int sales = buffer.getInt();
+            IProduct product = Factory.getInstance().makeProduct(barCode, description);
+            if (target != null ? target.restore(product, stockCount, sales) : replay(shop, product, stockCount, sales)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Rebuilds a product through the public shop methods, for shops that can't be restored into directly
+     */
+    static boolean replay(IShop shop, IProduct product, int stockCount, int sales) {
+        try {
+            if (shop.lookupStock(product.getBarCode()) != IShop.NOT_REGISTERED) {
+                return false;
+            }
+            shop.registerProduct(product);
+            if (sales > 0) {
+                shop.addStock(product.getBarCode(), sales);
+                shop.buyProduct(product.getBarCode(), sales);
+            }
+            if (stockCount > 0) {
+                shop.addStock(product.getBarCode(), stockCount);
+            }
+            return true;
+        } catch (BarCodeAlreadyInUseException | ProductNotRegisteredException | StockUnavailableException e) {
+            return false;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(NO_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NO_STRING) {
+            throw new IOException("Barcode or description too long for a snapshot");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == NO_STRING) {
+            return null;
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+}
@@ -3,6 +3,7 @@ package impl;
 import exceptions.StockUnavailableException;
 import interfaces.IProduct;
 import interfaces.IStockRecord;
+import interfaces.ShopResult;
 
 /**
  * This class represents a record held by the shop for a particular product.
@@ -24,6 +25,18 @@ public class StockRecord implements IStockRecord {
         this.stockCount = 0;
         this.numberOfSales = 0;
     }
+
+    /**
+     * Stock record constructor used when a shop is restored from a snapshot
+     * @param product the product to make the stock record for
+     * @param stockCount the stock count to start with
+     * @param sales the number of sales to start with
+     */
+    StockRecord(IProduct product, int stockCount, int sales) {
+        this.product = product;
+        this.stockCount = stockCount;
+        this.numberOfSales = sales;
+    }
     
     /**
      * @return the product of the stock record
@@ -64,24 +77,77 @@ public class StockRecord implements IStockRecord {
     /**
      * This method is for the purchase of a singular amount of this product
      * Buying a product means the amount of stock goes down by one, and the number of sales goes up by one
-     * If there is no stock of this product left the exception is thrown and handled
+     * If there is no stock of this product left nothing is bought and the exception is thrown
      * @throws StockUnavailableException if the product trying to be bought has no stock
      */
     @Override
     public void buyProduct() throws StockUnavailableException {
-        // TODO Auto-generated method stub
+        buyProduct(1);
+    }
+
+    /**
+     * Increases the amount of stock for this product by the quantity
+     * @param quantity the number of items of stock to add
+     * @throws IllegalArgumentException if the quantity is below one or would take the stock count past Integer.MAX_VALUE
+     */
+    @Override
+    public void addStock(int quantity) {
+        if (tryAddStock(quantity) != ShopResult.SUCCESS) {
+            throw new IllegalArgumentException("Stock to add must be at least one and fit in the stock count");
+        }
+    }
+
+    /**
+     * This method is for the purchase of several of this product at once
+     * The stock goes down by the quantity and the number of sales goes up by the quantity
+     * If there isn't enough stock for the whole quantity nothing is bought and the exception is thrown
+     * @param quantity the number of items to buy
+     * @throws StockUnavailableException if there are fewer than quantity items in stock
+     * @throws IllegalArgumentException if the quantity is below one or would take the sales past Integer.MAX_VALUE
+     */
+    @Override
+    public void buyProduct(int quantity) throws StockUnavailableException {
+        ShopResult result = tryBuy(quantity);
+        if (result == ShopResult.STOCK_UNAVAILABLE) {
+            throw new StockUnavailableException();
+        }
+        if (result != ShopResult.SUCCESS) {
+            throw new IllegalArgumentException("Quantity to buy must be at least one and fit in the number of sales");
+        }
+    }
 
-        try {
-            if (this.stockCount < 1) {
-                throw new StockUnavailableException();
-            } else {
-                this.stockCount--;
-                this.numberOfSales++;
-            }
-        } catch(StockUnavailableException e) {
-            System.err.println("There is no stock of this product");
+    /**
+     * Adds stock without writing anything when it fails
+     * @param quantity the number of items of stock to add
+     * @return SUCCESS, or INVALID_ARGUMENT if the quantity is below one or the stock count would pass {@link Integer#MAX_VALUE}
+     */
+    ShopResult tryAddStock(int quantity) {
+        if (quantity < 1 || this.stockCount > Integer.MAX_VALUE - quantity) {
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        this.stockCount += quantity;
+        return ShopResult.SUCCESS;
+    }
+
+    /**
+     * Buys stock without writing anything when it fails, buying nothing unless the whole quantity is in stock
+     * @param quantity the number of items to buy
+     * @return SUCCESS, STOCK_UNAVAILABLE, or INVALID_ARGUMENT if the quantity is below one or the number of sales
+     * would pass {@link Integer#MAX_VALUE}
+     */
+    ShopResult tryBuy(int quantity) {
+        if (quantity < 1) {
+            return ShopResult.INVALID_ARGUMENT;
+        }
+        if (this.stockCount < quantity) {
+            return ShopResult.STOCK_UNAVAILABLE;
+        }
+        if (this.numberOfSales > Integer.MAX_VALUE - quantity) {
+            return ShopResult.INVALID_ARGUMENT;
         }
-        
+        this.stockCount -= quantity;
+        this.numberOfSales += quantity;
+        return ShopResult.SUCCESS;
     }
 
 }
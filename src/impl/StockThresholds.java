@@ -0,0 +1,224 @@
+package impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import interfaces.IProduct;
+import interfaces.IShop;
+import interfaces.IStockRecord;
+import interfaces.LowStockListener;
+import interfaces.ShopListener;
+
+/**
+ * This class is a listener that tells a {@link LowStockListener} when a product runs low, so nothing has to poll
+ * the shop's stock counts. Each product has a threshold, its own or the default one, and is armed while its stock is
+ * above it. A sale that leaves an armed product at or below its threshold disarms it and fires the callback, and
+ * stock added that takes it back above the threshold arms it again, so each fall is reported exactly once.
+ * Tills can report changes to the same product out of order, since a concurrent shop tells its listeners after
+ * the change rather than under a lock, so the stock count an event carries may already be stale. When attached to a
+ * shop, each event for a product therefore re-reads the product's live stock count while holding that product's
+ * level, and arms or fires on that count. The counts each product is judged on then follow the order of the changes,
+ * whatever order their events arrive in.
+ * A listener added to a shop directly rather than attached has no shop to read, and judges each product on the
+ * counts its events carry, which is only right for a shop whose events arrive in order, such as a single till shop.
+ *
+ */
+public class StockThresholds implements ShopListener {
+
+    /**
+     * The threshold of a product that is never reported low.
+     */
+    public static final int NO_THRESHOLD = -1;
+
+    private final LowStockListener listener;
+    private final ConcurrentHashMap<String, Level> levels;
+    private volatile int defaultThreshold;
+    private volatile IShop shop;
+
+    /**
+     * Constructor for thresholds with no default, so only products given their own threshold are reported
+     * @param listener the listener to tell when a product runs low
+     */
+    public StockThresholds(LowStockListener listener) {
+        this.listener = listener;
+        this.levels = new ConcurrentHashMap<>();
+        this.defaultThreshold = NO_THRESHOLD;
+    }
+
+    /**
+     * Starts watching a shop, including the products it already has
+     * @param shop the shop to watch
+     */
+    public void attach(IShop shop) {
+        this.shop = shop;
+        shop.addListener(this);
+        for (IStockRecord record : shop.snapshot().getStockRecords()) {
+            this.levels.putIfAbsent(record.getProduct().getBarCode(), new Level(record.getStockCount(), this.defaultThreshold));
+        }
+    }
+
+    /**
+     * Sets the threshold of every product that doesn't have its own
+     * Products are armed or disarmed by their current stock, so none is reported until it next sells
+     * @param threshold the stock count at or below which a product is low, or {@link #NO_THRESHOLD}
+     * @throws IllegalArgumentException if the threshold is below {@link #NO_THRESHOLD}
+     */
+    public void setDefaultThreshold(int threshold) {
+        checkThreshold(threshold);
+        this.defaultThreshold = threshold;
+        for (Level level : this.levels.values()) {
+            level.rearm(threshold);
+        }
+    }
+
+    /**
+     * Sets a product's own threshold, replacing the default for it
+     * The product is armed or disarmed by its current stock, so it isn't reported until it next sells
+     * @param barCode the bar code of the product
+     * @param threshold the stock count at or below which the product is low, or {@link #NO_THRESHOLD}
+     * @return false if the product isn't being watched
+     * @throws IllegalArgumentException if the threshold is below {@link #NO_THRESHOLD}
+     */
+    public boolean setThreshold(String barCode, int threshold) {
+        checkThreshold(threshold);
+        Level level = barCode == null ? null : this.levels.get(barCode);
+        if (level == null) {
+            return false;
+        }
+        level.own(threshold, this.defaultThreshold);
+        return true;
+    }
+
+    /**
+     * Makes a product use the default threshold again
+     * @param barCode the bar code of the product
+     * @return false if the product isn't being watched
+     */
+    public boolean clearThreshold(String barCode) {
+        Level level = barCode == null ? null : this.levels.get(barCode);
+        if (level == null) {
+            return false;
+        }
+        level.disown(this.defaultThreshold);
+        return true;
+    }
+
+    /**
+     * Gets the threshold a product is checked against
+     * @param barCode the bar code of the product
+     * @return its own threshold or the default, or {@link #NO_THRESHOLD} if it has none or isn't being watched
+     */
+    public int getThreshold(String barCode) {
+        Level level = barCode == null ? null : this.levels.get(barCode);
+        return level == null ? NO_THRESHOLD : level.threshold(this.defaultThreshold);
+    }
+
+    @Override
+    public void productRegistered(IProduct product) {
+        this.levels.put(product.getBarCode(), new Level(0, this.defaultThreshold));
+    }
+
+    @Override
+    public void productUnregistered(IProduct product, int stockCount) {
+        this.levels.remove(product.getBarCode());
+    }
+
+    @Override
+    public void stockAdded(String barCode, int quantity, int stockCount) {
+        Level level = this.levels.get(barCode);
+        if (level == null) {
+            return;
+        }
+        synchronized (level) {
+            int live = liveStock(barCode, stockCount);
+            if (live != IShop.NOT_REGISTERED) {
+                level.added(live, this.defaultThreshold);
+            }
+        }
+    }
+
+    @Override
+    public void productSold(String barCode, int quantity, int stockCount) {
+        Level level = this.levels.get(barCode);
+        if (level == null) {
+            return;
+        }
+        int live;
+        int crossed;
+        synchronized (level) {
+            live = liveStock(barCode, stockCount);
+            crossed = live == IShop.NOT_REGISTERED ? NO_THRESHOLD : level.sold(live, this.defaultThreshold);
+        }
+        if (crossed != NO_THRESHOLD) {
+            this.listener.stockLow(barCode, live, crossed);
+        }
+    }
+
+    /**
+     * Gets the stock count of a product now, or the count its event carried if no shop is attached
+     */
+    private int liveStock(String barCode, int reported) {
+        IShop watched = this.shop;
+        return watched == null ? reported : watched.lookupStock(barCode);
+    }
+
+    private static void checkThreshold(int threshold) {
+        if (threshold < NO_THRESHOLD) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+    }
+
+    /**
+     * The threshold and armed state of one product.
+     */
+    private static final class Level {
+
+        private int ownThreshold;
+        private int stockCount;
+        private boolean armed;
+
+        Level(int stockCount, int defaultThreshold) {
+            this.ownThreshold = NO_THRESHOLD;
+            this.stockCount = stockCount;
+            this.armed = stockCount > defaultThreshold;
+        }
+
+        synchronized int threshold(int defaultThreshold) {
+            return this.ownThreshold != NO_THRESHOLD ? this.ownThreshold : defaultThreshold;
+        }
+
+        synchronized void own(int threshold, int defaultThreshold) {
+            this.ownThreshold = threshold;
+            rearm(defaultThreshold);
+        }
+
+        synchronized void disown(int defaultThreshold) {
+            this.ownThreshold = NO_THRESHOLD;
+            rearm(defaultThreshold);
+        }
+
+        synchronized void rearm(int defaultThreshold) {
+            this.armed = this.stockCount > threshold(defaultThreshold);
+        }
+
+        synchronized void added(int stockCount, int defaultThreshold) {
+            this.stockCount = stockCount;
+            if (stockCount > threshold(defaultThreshold)) {
+                this.armed = true;
+            }
+        }
+
+        /**
+         * @return the threshold crossed by the sale, or {@link #NO_THRESHOLD} if it didn't cross one
+         */
+        synchronized int sold(int stockCount, int defaultThreshold) {
+            this.stockCount = stockCount;
+            int threshold = threshold(defaultThreshold);
+            if (threshold == NO_THRESHOLD || !this.armed || stockCount > threshold) {
+                return NO_THRESHOLD;
+            }
+            this.armed = false;
+            return threshold;
+        }
+    }
+
+}
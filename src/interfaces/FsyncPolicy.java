@@ -0,0 +1,25 @@
+package interfaces;
+
+/**
+ * How often a persistent shop forces its journal to disk.
+ *
+ */
+public enum FsyncPolicy {
+
+    /**
+     * Every change is forced to disk before it returns, sharing the fsync with concurrent changes.
+     */
+    ALWAYS,
+
+    /**
+     * Every change is written to the file before it returns and is forced within a sync interval, sharing one fsync
+     * with every change made in that interval.
+     */
+    INTERVAL,
+
+    /**
+     * Every change is written to the file before it returns and forcing it is left to the operating system.
+     */
+    NEVER
+
+}
@@ -33,4 +33,43 @@ public interface IFactory {
     IShop makeShop();
 
 
+    /**
+     * Creates an instance of an empty {@link IShop} whose products are partitioned into independently locked shards.
+     *
+     * @param shardCount the number of shards
+     * @return the shop
+     */
+    IShop makeShardedShop(int shardCount);
+
+
+    /**
+     * Creates an instance of an empty {@link IShop} backed by the engine, size and persistence given in the config.
+     * A journaled shop replays its journal, so it starts with the products it had when last used.
+     *
+     * @param config the settings for the shop
+     * @return the shop
+     * @throws IllegalArgumentException if the config tracks a fixed number of best sellers for an engine that keeps no ranking
+     */
+    IShop makeShop(ShopConfig config);
+
+
+    /**
+     * Turns interning of products on or off.
+     * While interning is on, {@link #makeProduct(String, String)} returns one shared product for each barcode and
+     * description for as long as it is in use, so shops in the same program that sell the same catalog share
+     * their products.
+     *
+     * @param interning whether products should be interned
+     */
+    void setInterning(boolean interning);
+
+
+    /**
+     * Tells whether products are being interned.
+     *
+     * @return true if {@link #makeProduct(String, String)} returns shared products
+     */
+    boolean isInterning();
+
+
 }
@@ -1,5 +1,8 @@
 package interfaces;
 
+import java.util.List;
+import java.util.Map;
+
 import exceptions.BarCodeAlreadyInUseException;
 import exceptions.ProductNotRegisteredException;
 import exceptions.StockUnavailableException;
@@ -10,6 +13,11 @@ import exceptions.StockUnavailableException;
  */
 public interface IShop {
 
+    /**
+     * Returned by the lookup methods when no product with the bar code is registered, or the bar code is null.
+     */
+    int NOT_REGISTERED = -1;
+
 
     /**
      * Registers the specified product for sale in the shop.
@@ -46,6 +54,104 @@ public interface IShop {
     void buyProduct(String barCode) throws StockUnavailableException, ProductNotRegisteredException;
 
 
+    /**
+     * Adds several items of stock to the shop for the product with given bar code in one update.
+     * @param barCode the bar code of the product
+     * @param quantity the number of items to add
+     * @throws ProductNotRegisteredException if the product is not registered for sale in the shop
+     */
+    void addStock(String barCode, int quantity) throws ProductNotRegisteredException;
+
+
+    /**
+     * Buys several of the product with given bar code from the shop in one update.
+     * Either every item is bought or, if there isn't enough stock, none are.
+     *
+     * @param barCode the bar code of the product to be bought
+     * @param quantity the number of items to buy
+     * @throws StockUnavailableException if fewer than quantity items are currently in stock
+     * @throws ProductNotRegisteredException if the product is not registered for sale in the shop
+     */
+    void buyProduct(String barCode, int quantity) throws StockUnavailableException, ProductNotRegisteredException;
+
+
+    /**
+     * Buys every line of a basket from the shop as one purchase.
+     * Either every line is bought or, if any product is not registered or lacks the stock for its line, nothing is.
+     *
+     * @param basket the quantity to buy for each bar code
+     * @return true if the whole basket was bought
+     * @throws StockUnavailableException if a product in the basket has less stock than its quantity
+     * @throws ProductNotRegisteredException if a product in the basket is not registered for sale in the shop
+     */
+    boolean checkout(Map<String, Integer> basket) throws StockUnavailableException, ProductNotRegisteredException;
+
+
+    /**
+     * Adds several items of stock for the product with given bar code, reporting failure by result.
+     * This does the same as {@link #addStock(String, int)} but never creates an exception or writes to the console.
+     *
+     * @param barCode the bar code of the product
+     * @param quantity the number of items to add
+     * @return SUCCESS, NOT_REGISTERED or INVALID_ARGUMENT
+     */
+    ShopResult tryAddStock(String barCode, int quantity);
+
+
+    /**
+     * Buys several of the product with given bar code, reporting failure by result.
+     * This does the same as {@link #buyProduct(String, int)} but never creates an exception or writes to the console.
+     *
+     * @param barCode the bar code of the product to be bought
+     * @param quantity the number of items to buy
+     * @return SUCCESS, NOT_REGISTERED, STOCK_UNAVAILABLE or INVALID_ARGUMENT
+     */
+    ShopResult tryBuy(String barCode, int quantity);
+
+
+    /**
+     * Gets the stock count for a particular shop product without creating an exception when it isn't registered.
+     *
+     * @param barCode the bar code of the product
+     * @return the stock count for the product, or {@link #NOT_REGISTERED}
+     */
+    int lookupStock(String barCode);
+
+
+    /**
+     * Gets the number of times a particular shop product was bought without creating an exception when it isn't registered.
+     *
+     * @param barCode the bar code of the product
+     * @return the number of sales for the product, or {@link #NOT_REGISTERED}
+     */
+    int lookupSales(String barCode);
+
+
+    /**
+     * Adds a listener that will be told about every change to the shop and every operation that fails.
+     *
+     * @param listener the listener to add
+     */
+    void addListener(ShopListener listener);
+
+
+    /**
+     * Removes a listener previously added to the shop.
+     *
+     * @param listener the listener to remove
+     */
+    void removeListener(ShopListener listener);
+
+
+    /**
+     * Takes a snapshot of every stock record of the shop as it is at this instant.
+     * Taking a snapshot doesn't stop tills buying from the shop while it is taken or read.
+     *
+     * @return an immutable view of the shop's stock records
+     */
+    IShopSnapshot snapshot();
+
+
     /**
      * Gets the number of different products sold by the shop.
      * This does not take stock levels into account.
@@ -93,4 +199,15 @@ public interface IShop {
      */
     IProduct getMostPopular() throws ProductNotRegisteredException;
 
+
+    /**
+     * Gets the k shop products that have been bought the greatest number of times, most bought first.
+     * Products with the same number of sales are ordered by when they were registered, earliest first.
+     * If fewer than k products are registered then all of them are returned.
+     *
+     * @param k the number of products to return
+     * @return the best selling products, or an empty list if k is not positive or no products are registered
+     */
+    List<IProduct> getTopSellers(int k);
+
 }
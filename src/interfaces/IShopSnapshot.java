@@ -0,0 +1,65 @@
+package interfaces;
+
+import java.util.List;
+
+/**
+ * Interface for a read-only view of every stock record of a shop as it was at a single instant.
+ * Nothing done to the shop after the snapshot was taken shows up in it, so a report can read it at leisure
+ * while tills keep selling.
+ *
+ */
+public interface IShopSnapshot {
+
+    /**
+     * Gets the number of different products the shop sold when the snapshot was taken.
+     *
+     * @return the number of different products
+     */
+    int getNumberOfProducts();
+
+
+    /**
+     * Gets the total count of stock over all products when the snapshot was taken.
+     *
+     * @return the total stock count over all products
+     */
+    int getTotalStockCount();
+
+
+    /**
+     * Gets the stock count a product had when the snapshot was taken.
+     *
+     * @param barCode the bar code of the product
+     * @return the stock count for the product, or {@link IShop#NOT_REGISTERED}
+     */
+    int lookupStock(String barCode);
+
+
+    /**
+     * Gets the number of times a product had been bought when the snapshot was taken.
+     *
+     * @param barCode the bar code of the product
+     * @return the number of sales for the product, or {@link IShop#NOT_REGISTERED}
+     */
+    int lookupSales(String barCode);
+
+
+    /**
+     * Gets the stock record of every product, in the order the products were registered.
+     * The records can't be changed; their addStock and buyProduct methods throw UnsupportedOperationException.
+     *
+     * @return the stock records
+     */
+    List<IStockRecord> getStockRecords();
+
+
+    /**
+     * Gets the k products that had been bought the greatest number of times, most bought first.
+     * Products with the same number of sales are ordered by when they were registered, earliest first.
+     *
+     * @param k the number of products to return
+     * @return the best selling products, or an empty list if k is not positive or there are no products
+     */
+    List<IProduct> getTopSellers(int k);
+
+}
@@ -42,4 +42,22 @@ public interface IStockRecord {
     void buyProduct() throws StockUnavailableException;
 
 
+    /**
+     * Adds several items of stock for this shop product in one update.
+     * @param quantity the number of items to add
+     * @throws IllegalArgumentException when the quantity is below one or too large for the stock count to hold
+     */
+    void addStock(int quantity);
+
+
+    /**
+     * Processes the purchase of several of this shop product from the stock in one update.
+     * Either every item is bought or, if there isn't enough stock, none are.
+     * @param quantity the number of items to buy
+     * @throws StockUnavailableException when fewer than quantity items are in stock
+     * @throws IllegalArgumentException when the quantity is below one or too large for the number of sales to hold
+     */
+    void buyProduct(int quantity) throws StockUnavailableException;
+
+
 }
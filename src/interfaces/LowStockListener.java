@@ -0,0 +1,19 @@
+package interfaces;
+
+/**
+ * Interface for observers told when a product's stock falls to its low-stock threshold, such as a reorder service.
+ * It is called on the thread whose sale crossed the threshold, so implementations should return quickly.
+ *
+ */
+public interface LowStockListener {
+
+    /**
+     * Called once when a sale takes a product's stock from above its threshold to at or below it.
+     * It isn't called again for the product until stock added takes it back above the threshold.
+     * @param barCode the bar code of the product
+     * @param stockCount the stock count of the product when the sale was checked, which later sales may have lowered
+     * @param threshold the threshold that was crossed
+     */
+    void stockLow(String barCode, int stockCount, int threshold);
+
+}
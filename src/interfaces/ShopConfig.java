@@ -0,0 +1,183 @@
+package interfaces;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * The settings a factory uses to make a shop: which engine backs it, how many products it should expect, how many
+ * tills will use it at once, whether it ranks every product or only its best sellers, and whether it journals its
+ * changes to disk.
+ * A config is immutable; each with method returns a changed copy, so a shared config can't be altered by its users.
+ *
+ */
+public final class ShopConfig {
+
+    /**
+     * A single till shop of default size that isn't persistent, the same shop {@link IFactory#makeShop()} makes.
+     */
+    public static final ShopConfig DEFAULT = new ShopConfig(ShopEngine.SIMPLE, 0, 0, 0, null, FsyncPolicy.ALWAYS);
+
+    private final ShopEngine engine;
+    private final int expectedProducts;
+    private final int concurrencyLevel;
+    private final int trackedSellers;
+    private final Path journal;
+    private final FsyncPolicy fsyncPolicy;
+
+    private ShopConfig(ShopEngine engine, int expectedProducts, int concurrencyLevel, int trackedSellers, Path journal,
+            FsyncPolicy fsyncPolicy) {
+        this.engine = engine;
+        this.expectedProducts = expectedProducts;
+        this.concurrencyLevel = concurrencyLevel;
+        this.trackedSellers = trackedSellers;
+        this.journal = journal;
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Reads a config from properties, so a deployment can pick its shop without changing code.
+     * The keys are shop.engine, shop.expectedProducts, shop.concurrencyLevel, shop.trackedSellers, shop.journal and shop.fsync,
+     * and any that are missing keep their default.
+     *
+     * @param properties the properties to read
+     * @return the config
+     * @throws IllegalArgumentException if a property has a value that isn't allowed
+     */
+    public static ShopConfig fromProperties(Properties properties) {
+        ShopConfig config = DEFAULT;
+        String engine = properties.getProperty("shop.engine");
+        if (engine != null) {
+            config = config.withEngine(ShopEngine.valueOf(engine.trim().toUpperCase(Locale.ROOT)));
+        }
+        String expectedProducts = properties.getProperty("shop.expectedProducts");
+        if (expectedProducts != null) {
+            config = config.withExpectedProducts(Integer.parseInt(expectedProducts.trim()));
+        }
+        String concurrencyLevel = properties.getProperty("shop.concurrencyLevel");
+        if (concurrencyLevel != null) {
+            config = config.withConcurrencyLevel(Integer.parseInt(concurrencyLevel.trim()));
+        }
+        String trackedSellers = properties.getProperty("shop.trackedSellers");
+        if (trackedSellers != null) {
+            config = config.withTrackedSellers(Integer.parseInt(trackedSellers.trim()));
+        }
+        String journal = properties.getProperty("shop.journal");
+        String fsync = properties.getProperty("shop.fsync");
+        if (journal != null) {
+            FsyncPolicy policy = fsync == null ? FsyncPolicy.ALWAYS : FsyncPolicy.valueOf(fsync.trim().toUpperCase(Locale.ROOT));
+            config = config.withJournal(Paths.get(journal.trim()), policy);
+        }
+        return config;
+    }
+
+    /**
+     * @param engine the engine to back the shop
+     * @return a copy of this config with the engine changed
+     * @throws IllegalArgumentException if the engine is null
+     */
+    public ShopConfig withEngine(ShopEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("Engine must not be null");
+        }
+        return new ShopConfig(engine, this.expectedProducts, this.concurrencyLevel, this.trackedSellers, this.journal, this.fsyncPolicy);
+    }
+
+    /**
+     * @param expectedProducts the number of products the shop is expected to hold, used to size it up front,
+     *        or zero for the engine's default
+     * @return a copy of this config with the expected number of products changed
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public ShopConfig withExpectedProducts(int expectedProducts) {
+        if (expectedProducts < 0) {
+            throw new IllegalArgumentException("Expected products must not be negative");
+        }
+        return new ShopConfig(this.engine, expectedProducts, this.concurrencyLevel, this.trackedSellers, this.journal, this.fsyncPolicy);
+    }
+
+    /**
+     * @param concurrencyLevel the number of tills expected to update the shop at once, which is the number of shards
+     *        of a sharded shop, or zero for the engine's default
+     * @return a copy of this config with the concurrency level changed
+     * @throws IllegalArgumentException if the level is negative
+     */
+    public ShopConfig withConcurrencyLevel(int concurrencyLevel) {
+        if (concurrencyLevel < 0) {
+            throw new IllegalArgumentException("Concurrency level must not be negative");
+        }
+        return new ShopConfig(this.engine, this.expectedProducts, concurrencyLevel, this.trackedSellers, this.journal, this.fsyncPolicy);
+    }
+
+    /**
+     * @param trackedSellers the number of best sellers the shop ranks, so ranking a very large catalog costs a fixed
+     *        amount of memory at the price of approximate answers, or zero to rank every product exactly;
+     *        only the simple engine keeps a ranking, and a factory refuses to make any other engine with tracked sellers
+     * @return a copy of this config with the number of tracked best sellers changed
+     * @throws IllegalArgumentException if the number is negative
+     */
+    public ShopConfig withTrackedSellers(int trackedSellers) {
+        if (trackedSellers < 0) {
+            throw new IllegalArgumentException("Tracked sellers must not be negative");
+        }
+        return new ShopConfig(this.engine, this.expectedProducts, this.concurrencyLevel, trackedSellers, this.journal,
+                this.fsyncPolicy);
+    }
+
+    /**
+     * @param journal the journal file the shop persists its changes to, or null for a shop kept only in memory
+     * @param fsyncPolicy how often the journal is forced to disk
+     * @return a copy of this config with the persistence changed
+     * @throws IllegalArgumentException if the policy is null
+     */
+    public ShopConfig withJournal(Path journal, FsyncPolicy fsyncPolicy) {
+        if (fsyncPolicy == null) {
+            throw new IllegalArgumentException("Fsync policy must not be null");
+        }
+        return new ShopConfig(this.engine, this.expectedProducts, this.concurrencyLevel, this.trackedSellers, journal, fsyncPolicy);
+    }
+
+    /**
+     * @return the engine to back the shop
+     */
+    public ShopEngine getEngine() {
+        return this.engine;
+    }
+
+    /**
+     * @return the number of products the shop is expected to hold, or zero for the engine's default
+     */
+    public int getExpectedProducts() {
+        return this.expectedProducts;
+    }
+
+    /**
+     * @return the number of tills expected to update the shop at once, or zero for the engine's default
+     */
+    public int getConcurrencyLevel() {
+        return this.concurrencyLevel;
+    }
+
+    /**
+     * @return the number of best sellers the shop ranks, or zero if it ranks every product exactly
+     */
+    public int getTrackedSellers() {
+        return this.trackedSellers;
+    }
+
+    /**
+     * @return the journal file, or null if the shop is kept only in memory
+     */
+    public Path getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * @return how often the journal is forced to disk
+     */
+    public FsyncPolicy getFsyncPolicy() {
+        return this.fsyncPolicy;
+    }
+
+}
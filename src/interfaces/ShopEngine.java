@@ -0,0 +1,29 @@
+package interfaces;
+
+/**
+ * The implementations a factory can make a shop with.
+ *
+ */
+public enum ShopEngine {
+
+    /**
+     * A shop for a single till, which isn't thread safe.
+     */
+    SIMPLE,
+
+    /**
+     * A shop that many tills can use at once without locking on the purchase path.
+     */
+    CONCURRENT,
+
+    /**
+     * A shop that many tills can use at once, partitioned into independently locked shards.
+     */
+    SHARDED,
+
+    /**
+     * A shop for a single till that keeps its stock in primitive columns, suited to large catalogs.
+     */
+    COLUMNAR
+
+}
@@ -0,0 +1,63 @@
+package interfaces;
+
+/**
+ * Interface for observers of a shop, used for logging and metrics.
+ * A shop calls its listeners on the thread that made the change, so implementations should return quickly.
+ * Every method does nothing by default so a listener only needs to override the events it cares about.
+ *
+ */
+public interface ShopListener {
+
+    /**
+     * A listener that ignores every event.
+     */
+    ShopListener NO_OP = new ShopListener() { };
+
+
+    /**
+     * Called after a product has been registered for sale.
+     * @param product the product that was registered
+     */
+    default void productRegistered(IProduct product) {
+    }
+
+
+    /**
+     * Called after a product has been unregistered.
+     * @param product the product that was removed
+     * @param stockCount the stock the product had when it was removed
+     */
+    default void productUnregistered(IProduct product, int stockCount) {
+    }
+
+
+    /**
+     * Called after stock has been added for a product.
+     * @param barCode the bar code of the product
+     * @param quantity the number of items added
+     * @param stockCount the stock count of the product straight after the items were added
+     */
+    default void stockAdded(String barCode, int quantity, int stockCount) {
+    }
+
+
+    /**
+     * Called after a product has been bought.
+     * @param barCode the bar code of the product
+     * @param quantity the number of items bought
+     * @param stockCount the stock count of the product straight after the purchase
+     */
+    default void productSold(String barCode, int quantity, int stockCount) {
+    }
+
+
+    /**
+     * Called when an operation could not be carried out.
+     * @param operation the operation that failed
+     * @param barCode the bar code the operation was for, which may be null
+     * @param result the reason the operation failed
+     */
+    default void operationFailed(ShopOperation operation, String barCode, ShopResult result) {
+    }
+
+}
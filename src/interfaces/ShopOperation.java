@@ -0,0 +1,39 @@
+package interfaces;
+
+/**
+ * The shop operations reported to a {@link ShopListener} when they fail.
+ *
+ */
+public enum ShopOperation {
+
+    /**
+     * Registering a product.
+     */
+    REGISTER,
+
+    /**
+     * Unregistering a product.
+     */
+    UNREGISTER,
+
+    /**
+     * Adding stock for a product.
+     */
+    ADD_STOCK,
+
+    /**
+     * Buying a product.
+     */
+    BUY,
+
+    /**
+     * Buying a basket of products.
+     */
+    CHECKOUT,
+
+    /**
+     * Reading the stock count, number of sales or most popular product.
+     */
+    LOOKUP
+
+}
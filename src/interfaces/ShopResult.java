@@ -0,0 +1,34 @@
+package interfaces;
+
+/**
+ * The outcome of a shop operation that reports failure by result rather than by exception.
+ *
+ */
+public enum ShopResult {
+
+    /**
+     * The operation was carried out.
+     */
+    SUCCESS,
+
+    /**
+     * No product with the bar code is registered for sale in the shop.
+     */
+    NOT_REGISTERED,
+
+    /**
+     * The product does not have enough stock for the operation.
+     */
+    STOCK_UNAVAILABLE,
+
+    /**
+     * A product with the same bar code is already registered for sale in the shop.
+     */
+    BAR_CODE_IN_USE,
+
+    /**
+     * The bar code was null, or the quantity was less than one or too large for the stock count, sales or the shop's total stock to hold.
+     */
+    INVALID_ARGUMENT
+
+}
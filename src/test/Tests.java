@@ -1,18 +1,71 @@
 package test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 
 import exceptions.BarCodeAlreadyInUseException;
 import exceptions.ProductNotRegisteredException;
 import exceptions.StockUnavailableException;
+import impl.AsyncShopListener;
+import impl.BarcodeIndex;
+import impl.CatalogLoader;
+import impl.DescriptionIndex;
+import impl.ColumnarShop;
+import impl.ConcurrentShop;
 import impl.Factory;
+import impl.JournaledShop;
+import impl.PartitionedShop;
+import impl.SalesVelocity;
+import impl.ShardedShop;
+import impl.Shop;
+import impl.ShopChain;
+import impl.ShopMetrics;
+import impl.ShopServer;
+import impl.SnapshotFile;
+import impl.StockThresholds;
+import interfaces.FsyncPolicy;
 import interfaces.IProduct;
 import interfaces.IShop;
+import interfaces.IShopSnapshot;
 import interfaces.IFactory;
 import interfaces.IStockRecord;
+import interfaces.ShopConfig;
+import interfaces.ShopEngine;
+import interfaces.ShopResult;
 
 /**
  * This is a JUnit test class for the Shop ADT.
@@ -604,7 +657,1351 @@ public class Tests {
         assertEquals(0, shop.getNumberOfSales(null));
       }
 
-      
+      /**
+       * This checks the stock count is found for a product that wasn't the first one registered.
+       */
+      @Test
+      public void stockCountLaterRegisteredProduct() throws BarCodeAlreadyInUseException, ProductNotRegisteredException {
+        IShop shop = Factory.getInstance().makeShop();
+        IProduct product1 = Factory.getInstance().makeProduct("5524177", "Mobile Phone");
+        IProduct product2 = Factory.getInstance().makeProduct("5524178", "Laptop Computer");
+        IProduct product3 = Factory.getInstance().makeProduct("5524179", "Washing Machine");
+
+        shop.registerProduct(product1);
+        shop.registerProduct(product2);
+        shop.registerProduct(product3);
+
+        shop.addStock(product3.getBarCode());
+        shop.addStock(product3.getBarCode());
+
+        assertEquals(2, shop.getStockCount(product3.getBarCode()));
+      }
+
+      /**
+       * This checks a different product that shares a registered barcode can't unregister the registered product.
+       */
+      @Test
+      public void unregisterDifferentProductSameBarcode() throws BarCodeAlreadyInUseException, ProductNotRegisteredException {
+        IShop shop = Factory.getInstance().makeShop();
+        IProduct product1 = Factory.getInstance().makeProduct("6638201", "Mobile Phone");
+        IProduct product2 = Factory.getInstance().makeProduct("6638201", "Laptop Computer");
+
+        shop.registerProduct(product1);
+        shop.unregisterProduct(product2);
+
+        assertEquals(1, shop.getNumberOfProducts());
+        assertEquals(product1, shop.getMostPopular());
+      }
+
+      /**
+       * This checks the total stock count drops by the stock of a product when it is unregistered.
+       */
+      @Test
+      public void totalStockCountAfterRemoving() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop shop = Factory.getInstance().makeShop();
+        IProduct product1 = Factory.getInstance().makeProduct("4410293", "Mobile Phone");
+        IProduct product2 = Factory.getInstance().makeProduct("4410294", "Laptop Computer");
+
+        shop.registerProduct(product1);
+        shop.registerProduct(product2);
+
+        shop.addStock(product1.getBarCode());
+        shop.addStock(product1.getBarCode());
+        shop.addStock(product1.getBarCode());
+
+        shop.addStock(product2.getBarCode());
+        shop.addStock(product2.getBarCode());
 
+        shop.buyProduct(product1.getBarCode());
+        shop.buyProduct(product2.getBarCode());
+        shop.buyProduct(product2.getBarCode());
+        shop.buyProduct(product2.getBarCode());
+
+        shop.unregisterProduct(product1);
+
+        assertEquals(0, shop.getTotalStockCount());
+        assertEquals(1, shop.getNumberOfProducts());
+      }
+
+      /**
+       * This checks the top sellers are returned most sales first, with ties going to the product registered first.
+       */
+      @Test
+      public void topSellersOrder() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop shop = Factory.getInstance().makeShop();
+        IProduct product1 = Factory.getInstance().makeProduct("3380011", "Mobile Phone");
+        IProduct product2 = Factory.getInstance().makeProduct("3380012", "Laptop Computer");
+        IProduct product3 = Factory.getInstance().makeProduct("3380013", "Washing Machine");
+
+        shop.registerProduct(product1);
+        shop.registerProduct(product2);
+        shop.registerProduct(product3);
+
+        shop.addStock(product1.getBarCode());
+        shop.addStock(product2.getBarCode());
+        shop.addStock(product3.getBarCode());
+        shop.addStock(product3.getBarCode());
+
+        shop.buyProduct(product1.getBarCode());
+        shop.buyProduct(product3.getBarCode());
+        shop.buyProduct(product3.getBarCode());
+
+        assertEquals(Arrays.asList(product3, product1), shop.getTopSellers(2));
+        assertEquals(Arrays.asList(product3, product1, product2), shop.getTopSellers(5));
+        assertEquals(0, shop.getTopSellers(0).size());
+      }
+
+      /**
+       * This checks the most popular product is recalculated when the best seller is unregistered.
+       */
+      @Test
+      public void mostPopularAfterRemovingBestSeller() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop shop = Factory.getInstance().makeShop();
+        IProduct product1 = Factory.getInstance().makeProduct("3380021", "Mobile Phone");
+        IProduct product2 = Factory.getInstance().makeProduct("3380022", "Laptop Computer");
+
+        shop.registerProduct(product1);
+        shop.registerProduct(product2);
+
+        shop.addStock(product1.getBarCode());
+        shop.addStock(product2.getBarCode());
+        shop.addStock(product2.getBarCode());
+
+        shop.buyProduct(product1.getBarCode());
+        shop.buyProduct(product2.getBarCode());
+        shop.buyProduct(product2.getBarCode());
+
+        shop.unregisterProduct(product2);
+
+        assertEquals(product1, shop.getMostPopular());
+      }
+
+      /**
+       * This checks that tills buying from a concurrent shop at the same time never oversell or lose a sale.
+       */
+      @Test
+      public void concurrentShopNoOverselling() throws Exception {
+        IShop shop = new ConcurrentShop();
+        IProduct product = Factory.getInstance().makeProduct("9120044", "Mobile Phone");
+
+        shop.registerProduct(product);
+        for (int i = 0; i < 1000; i++) {
+          shop.addStock(product.getBarCode());
+        }
+
+        Thread[] tills = new Thread[4];
+        for (int i = 0; i < tills.length; i++) {
+          tills[i] = new Thread(() -> {
+            for (int j = 0; j < 400; j++) {
+              try {
+                shop.buyProduct(product.getBarCode());
+              } catch (StockUnavailableException | ProductNotRegisteredException e) {
+                throw new IllegalStateException(e);
+              }
+            }
+          });
+          tills[i].start();
+        }
+        for (Thread till : tills) {
+          till.join();
+        }
+
+        assertEquals(0, shop.getStockCount(product.getBarCode()));
+        assertEquals(1000, shop.getNumberOfSales(product.getBarCode()));
+        assertEquals(0, shop.getTotalStockCount());
+      }
+
+      /**
+       * This checks the concurrent shop keeps the same totals and best sellers as the simple shop.
+       */
+      @Test
+      public void concurrentShopTotalsAndTopSellers() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop shop = new ConcurrentShop();
+        IProduct product1 = Factory.getInstance().makeProduct("9120051", "Mobile Phone");
+        IProduct product2 = Factory.getInstance().makeProduct("9120052", "Laptop Computer");
+        IProduct product3 = Factory.getInstance().makeProduct("9120053", "Washing Machine");
+
+        shop.registerProduct(product1);
+        shop.registerProduct(product2);
+        shop.registerProduct(product3);
+        shop.registerProduct(product1);
+
+        shop.addStock(product1.getBarCode());
+        shop.addStock(product2.getBarCode());
+        shop.addStock(product2.getBarCode());
+        shop.addStock(product3.getBarCode());
+
+        shop.buyProduct(product2.getBarCode());
+        shop.buyProduct(product2.getBarCode());
+        shop.buyProduct(product3.getBarCode());
+
+        assertEquals(Arrays.asList(product2, product3, product1), shop.getTopSellers(3));
+
+        shop.unregisterProduct(product2);
+        shop.buyProduct(product2.getBarCode());
+
+        assertEquals(2, shop.getNumberOfProducts());
+        assertEquals(1, shop.getTotalStockCount());
+        assertEquals(product3, shop.getMostPopular());
+      }
+
+      /**
+       * This checks a sharded shop gives correct totals and best seller for products spread over its shards.
+       */
+      @Test
+      public void shardedShopCrossShardQueries() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop shop = Factory.getInstance().makeShardedShop(4);
+        IProduct[] products = new IProduct[20];
+        for (int i = 0; i < products.length; i++) {
+          products[i] = Factory.getInstance().makeProduct("77100" + i, "Product " + i);
+          shop.registerProduct(products[i]);
+          for (int j = 0; j <= i; j++) {
+            shop.addStock(products[i].getBarCode());
+          }
+        }
+
+        shop.buyProduct(products[7].getBarCode());
+        shop.buyProduct(products[7].getBarCode());
+        shop.buyProduct(products[12].getBarCode());
+        shop.unregisterProduct(products[19]);
+
+        assertEquals(19, shop.getNumberOfProducts());
+        assertEquals(187, shop.getTotalStockCount());
+        assertEquals(products[7], shop.getMostPopular());
+        assertEquals(Arrays.asList(products[7], products[12], products[0]), shop.getTopSellers(3));
+      }
+
+      /**
+       * This checks stock can be added and bought in bulk, and that a bulk purchase larger than the stock buys nothing.
+       */
+      @Test
+      public void bulkStockAndPurchase() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop[] shops = {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()};
+        for (IShop shop : shops) {
+          IProduct product = Factory.getInstance().makeProduct("6150021", "Baked Beans");
+
+          shop.registerProduct(product);
+          shop.addStock(product.getBarCode(), 10000);
+          shop.buyProduct(product.getBarCode(), 2500);
+          shop.buyProduct(product.getBarCode(), 8000);
+
+          assertEquals(7500, shop.getStockCount(product.getBarCode()));
+          assertEquals(2500, shop.getNumberOfSales(product.getBarCode()));
+          assertEquals(7500, shop.getTotalStockCount());
+        }
+      }
+
+      /**
+       * This checks a stock record buys nothing, and says so, when asked for more than it has in stock.
+       */
+      @Test
+      public void stockRecordBulkPurchaseAllOrNothing() throws StockUnavailableException {
+        IProduct product = Factory.getInstance().makeProduct("6150022", "Baked Beans");
+        IStockRecord stock = Factory.getInstance().makeStockRecord(product);
+
+        stock.addStock(5);
+        assertThrows(StockUnavailableException.class, () -> stock.buyProduct(6));
+        stock.buyProduct(3);
+
+        assertEquals(2, stock.getStockCount());
+        assertEquals(3, stock.getNumberOfSales());
+      }
+
+      /**
+       * This checks a basket is bought in full when every line is available, and not at all when one line isn't.
+       */
+      @Test
+      public void checkoutAllOrNothing() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop[] shops = {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()};
+        for (IShop shop : shops) {
+          IProduct product1 = Factory.getInstance().makeProduct("8821001", "Bread");
+          IProduct product2 = Factory.getInstance().makeProduct("8821002", "Milk");
+
+          shop.registerProduct(product1);
+          shop.registerProduct(product2);
+          shop.addStock(product1.getBarCode(), 3);
+          shop.addStock(product2.getBarCode(), 2);
+
+          Map<String, Integer> basket = new LinkedHashMap<>();
+          basket.put(product1.getBarCode(), 2);
+          basket.put(product2.getBarCode(), 2);
+          assertTrue(shop.checkout(basket));
+
+          basket.put(product2.getBarCode(), 1);
+          basket.put(product1.getBarCode(), 1);
+          assertFalse(shop.checkout(basket));
+
+          basket.clear();
+          basket.put(product1.getBarCode(), 1);
+          basket.put("8821003", 1);
+          assertFalse(shop.checkout(basket));
+
+          assertEquals(1, shop.getStockCount(product1.getBarCode()));
+          assertEquals(0, shop.getStockCount(product2.getBarCode()));
+          assertEquals(2, shop.getNumberOfSales(product1.getBarCode()));
+          assertEquals(1, shop.getTotalStockCount());
+        }
+      }
+
+      /**
+       * This checks the result code methods, and a stock record's own methods, report each kind of failure without writing anything to the console.
+       */
+      @Test
+      public void resultCodesWithoutConsoleOutput() throws BarCodeAlreadyInUseException, StockUnavailableException {
+        IShop[] shops = {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()};
+        PrintStream console = System.err;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (IShop shop : shops) {
+          IProduct product = Factory.getInstance().makeProduct("2290013", "Mobile Phone");
+          shop.registerProduct(product);
+
+          System.setErr(new PrintStream(output));
+          try {
+            assertEquals(ShopResult.NOT_REGISTERED, shop.tryBuy("2290014", 1));
+            assertEquals(ShopResult.NOT_REGISTERED, shop.tryAddStock("2290014", 1));
+            assertEquals(ShopResult.INVALID_ARGUMENT, shop.tryBuy(null, 1));
+            assertEquals(ShopResult.INVALID_ARGUMENT, shop.tryAddStock(product.getBarCode(), 0));
+            assertEquals(ShopResult.STOCK_UNAVAILABLE, shop.tryBuy(product.getBarCode(), 1));
+            assertEquals(ShopResult.SUCCESS, shop.tryAddStock(product.getBarCode(), 3));
+            assertEquals(ShopResult.SUCCESS, shop.tryBuy(product.getBarCode(), 2));
+            assertEquals(1, shop.lookupStock(product.getBarCode()));
+            assertEquals(2, shop.lookupSales(product.getBarCode()));
+            assertEquals(IShop.NOT_REGISTERED, shop.lookupStock("2290014"));
+            assertEquals(IShop.NOT_REGISTERED, shop.lookupSales(null));
+          } finally {
+            System.setErr(console);
+          }
+        }
+        IStockRecord record = Factory.getInstance().makeStockRecord(Factory.getInstance().makeProduct("2290013", "Mobile Phone"));
+        System.setErr(new PrintStream(output));
+        try {
+          assertThrows(StockUnavailableException.class, () -> record.buyProduct());
+          assertThrows(IllegalArgumentException.class, () -> record.addStock(0));
+          assertThrows(IllegalArgumentException.class, () -> record.buyProduct(0));
+          record.addStock(2);
+          assertThrows(StockUnavailableException.class, () -> record.buyProduct(3));
+        } finally {
+          System.setErr(console);
+        }
+        assertEquals(2, record.getStockCount());
+        assertEquals(0, record.getNumberOfSales());
+        assertEquals(0, output.size());
+      }
+
+      /**
+       * This checks a metrics listener is told about every change and failure in the shop.
+       */
+      @Test
+      public void metricsListenerCountsEvents() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop shop = Factory.getInstance().makeShop();
+        ShopMetrics metrics = new ShopMetrics();
+        IProduct product = Factory.getInstance().makeProduct("4471002", "Mobile Phone");
+
+        shop.addListener(metrics);
+        shop.registerProduct(product);
+        shop.registerProduct(product);
+        shop.addStock(product.getBarCode(), 3);
+        shop.buyProduct(product.getBarCode(), 2);
+        shop.buyProduct(product.getBarCode(), 2);
+        shop.buyProduct("4471003");
+        shop.removeListener(metrics);
+        shop.buyProduct("4471003");
+
+        assertEquals(1, metrics.getRegistrations());
+        assertEquals(3, metrics.getUnitsStocked());
+        assertEquals(1, metrics.getSales());
+        assertEquals(2, metrics.getUnitsSold());
+        assertEquals(1, metrics.getFailures(ShopResult.BAR_CODE_IN_USE));
+        assertEquals(1, metrics.getFailures(ShopResult.STOCK_UNAVAILABLE));
+        assertEquals(1, metrics.getFailures(ShopResult.NOT_REGISTERED));
+      }
+
+      /**
+       * This checks an asynchronous listener passes every event on to its delegate.
+       */
+      @Test
+      public void asyncListenerDeliversEvents() throws Exception {
+        IShop shop = new ConcurrentShop();
+        ShopMetrics metrics = new ShopMetrics();
+        IProduct product = Factory.getInstance().makeProduct("4471011", "Mobile Phone");
+
+        try (AsyncShopListener listener = new AsyncShopListener(metrics, 1024, 16)) {
+          shop.addListener(listener);
+          shop.registerProduct(product);
+          for (int i = 0; i < 100; i++) {
+            shop.addStock(product.getBarCode());
+            shop.buyProduct(product.getBarCode());
+          }
+          listener.flush();
+
+          assertEquals(0, listener.getDropped());
+        }
+        assertEquals(1, metrics.getRegistrations());
+        assertEquals(100, metrics.getUnitsStocked());
+        assertEquals(100, metrics.getUnitsSold());
+      }
+
+      /**
+       * This checks a columnar shop reuses the slot of an unregistered product without mixing up their stock and sales.
+       */
+      @Test
+      public void columnarShopReusesSlots() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        ColumnarShop shop = new ColumnarShop(2);
+        IProduct product1 = Factory.getInstance().makeProduct("1190001", "Mobile Phone");
+        IProduct product2 = Factory.getInstance().makeProduct("1190002", "Laptop Computer");
+        IProduct product3 = Factory.getInstance().makeProduct("1190003", "Washing Machine");
+
+        shop.registerProduct(product1);
+        shop.registerProduct(product2);
+        shop.addStock(product1.getBarCode(), 5);
+        shop.buyProduct(product1.getBarCode(), 2);
+        IStockRecord oldRecord = shop.getStockRecord(product1.getBarCode());
+
+        shop.unregisterProduct(product1);
+        shop.registerProduct(product3);
+        shop.addStock(product3.getBarCode(), 1);
+        shop.addStock(product2.getBarCode(), 4);
+        shop.buyProduct(product2.getBarCode());
+        shop.buyProduct(product3.getBarCode());
+
+        assertEquals(0, oldRecord.getStockCount());
+        assertEquals(0, shop.getStockCount(product3.getBarCode()));
+        assertEquals(1, shop.getStockRecord(product3.getBarCode()).getNumberOfSales());
+        assertEquals(3, shop.getTotalStockCount());
+        assertEquals(Arrays.asList(product2, product3), shop.getTopSellers(3));
+      }
+
+      /**
+       * This checks a columnar shop tells apart numeric barcodes that differ only by leading zeros, and keeps non-numeric ones.
+       */
+      @Test
+      public void columnarShopNumericAndTextBarcodes() throws BarCodeAlreadyInUseException, ProductNotRegisteredException {
+        IShop shop = new ColumnarShop();
+        IProduct product1 = Factory.getInstance().makeProduct("0123", "Mobile Phone");
+        IProduct product2 = Factory.getInstance().makeProduct("123", "Laptop Computer");
+        IProduct product3 = Factory.getInstance().makeProduct("ABC-123", "Washing Machine");
+        IProduct product4 = Factory.getInstance().makeProduct("12345678901234567890", "Desktop Computer");
+
+        shop.registerProduct(product1);
+        shop.registerProduct(product2);
+        shop.registerProduct(product3);
+        shop.registerProduct(product4);
+        shop.addStock(product1.getBarCode(), 1);
+        shop.addStock(product2.getBarCode(), 2);
+        shop.addStock(product3.getBarCode(), 3);
+        shop.addStock(product4.getBarCode(), 4);
+
+        assertEquals(1, shop.getStockCount("0123"));
+        assertEquals(2, shop.getStockCount("123"));
+        assertEquals(3, shop.getStockCount("ABC-123"));
+        assertEquals(4, shop.getStockCount("12345678901234567890"));
+        assertEquals(IShop.NOT_REGISTERED, shop.lookupStock("00123"));
+      }
+
+      /**
+       * This checks a columnar shop agrees with the simple shop over many registrations, removals and sales of numeric barcodes.
+       */
+      @Test
+      public void columnarShopMatchesSimpleShop() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop expected = Factory.getInstance().makeShop();
+        IShop actual = new ColumnarShop(4);
+        Random random = new Random(7);
+        IProduct[] products = new IProduct[500];
+        for (int i = 0; i < products.length; i++) {
+          products[i] = Factory.getInstance().makeProduct(Long.toString(4000000000000L + random.nextInt(100000)), "Product " + i);
+        }
+        for (int i = 0; i < 5000; i++) {
+          IProduct product = products[random.nextInt(products.length)];
+          switch (random.nextInt(4)) {
+            case 0:
+              expected.registerProduct(product);
+              actual.registerProduct(product);
+              break;
+            case 1:
+              expected.unregisterProduct(product);
+              actual.unregisterProduct(product);
+              break;
+            case 2:
+              expected.buyProduct(product.getBarCode());
+              actual.buyProduct(product.getBarCode());
+              break;
+            default:
+              expected.addStock(product.getBarCode());
+              actual.addStock(product.getBarCode());
+              break;
+          }
+          assertEquals(expected.getMostPopular(), actual.getMostPopular());
+        }
+        for (IProduct product : products) {
+          assertEquals(expected.lookupStock(product.getBarCode()), actual.lookupStock(product.getBarCode()));
+        }
+        assertEquals(expected.getNumberOfProducts(), actual.getNumberOfProducts());
+        assertEquals(expected.getTotalStockCount(), actual.getTotalStockCount());
+      }
+
+      /**
+       * This checks a journaled shop rebuilds its stock and sales from the journal after a restart, ignoring a torn last record.
+       */
+      @Test
+      public void journaledShopReplaysAfterRestart() throws Exception {
+        Path journal = Files.createTempFile("shop", ".journal");
+        try {
+          IProduct product1 = Factory.getInstance().makeProduct("123", "Mobile Phone");
+          IProduct product2 = Factory.getInstance().makeProduct("456", "Laptop Computer");
+          IProduct product3 = Factory.getInstance().makeProduct("789", "Washing Machine");
+          try (JournaledShop shop = new JournaledShop(Factory.getInstance().makeShop(), journal)) {
+            shop.registerProduct(product1);
+            shop.registerProduct(product2);
+            shop.registerProduct(product3);
+            shop.registerProduct(product1);
+            shop.addStock("123", 5);
+            shop.addStock("456", 3);
+            shop.buyProduct("123", 2);
+            shop.buyProduct("456", 4);
+            Map<String, Integer> basket = new LinkedHashMap<>();
+            basket.put("123", 1);
+            basket.put("456", 1);
+            shop.checkout(basket);
+            shop.unregisterProduct(product3);
+          }
+          Files.write(journal, new byte[] {0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+
+          try (JournaledShop shop = new JournaledShop(new ConcurrentShop(), journal, FsyncPolicy.NEVER)) {
+            assertEquals(2, shop.getNumberOfProducts());
+            assertEquals(2, shop.getStockCount("123"));
+            assertEquals(3, shop.getNumberOfSales("123"));
+            assertEquals(2, shop.getStockCount("456"));
+            assertEquals(1, shop.getNumberOfSales("456"));
+            assertEquals(IShop.NOT_REGISTERED, shop.lookupStock("789"));
+            assertEquals("Mobile Phone", shop.getMostPopular().getDescription());
+            shop.unregisterProduct(shop.getProduct("456"));
+          }
+          try (JournaledShop shop = new JournaledShop(new ColumnarShop(), journal)) {
+            assertEquals(1, shop.getNumberOfProducts());
+            assertEquals(2, shop.getTotalStockCount());
+          }
+        } finally {
+          Files.delete(journal);
+        }
+      }
+
+      /**
+       * This checks a snapshot file written from each kind of shop loads back the same products, stock and sales.
+       */
+      @Test
+      public void snapshotFileRoundTrip() throws Exception {
+        Path file = Files.createTempFile("shop", ".snapshot");
+        try {
+          for (IShop shop : new IShop[] {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()}) {
+            IProduct product1 = Factory.getInstance().makeProduct("123", "Mobile Phone");
+            IProduct product2 = Factory.getInstance().makeProduct("456", null);
+            IProduct product3 = Factory.getInstance().makeProduct("789", "Washing Machine");
+            IProduct product4 = Factory.getInstance().makeProduct("ABC", "Desktop Computer");
+            shop.registerProduct(product1);
+            shop.registerProduct(product2);
+            shop.registerProduct(product3);
+            shop.registerProduct(product4);
+            shop.unregisterProduct(product1);
+            shop.registerProduct(product1);
+            shop.addStock("123", 5);
+            shop.addStock("456", 5);
+            shop.addStock("789", 2);
+            shop.buyProduct("123", 2);
+            shop.buyProduct("456", 2);
+
+            assertEquals(4, SnapshotFile.write(shop, file));
+            for (IShop restored : new IShop[] {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()}) {
+              assertEquals(4, SnapshotFile.load(file, restored));
+              assertEquals(4, restored.getNumberOfProducts());
+              assertEquals(8, restored.getTotalStockCount());
+              assertEquals(3, restored.getStockCount("123"));
+              assertEquals(2, restored.getNumberOfSales("456"));
+              assertEquals(0, restored.getNumberOfSales("ABC"));
+              assertEquals(null, restored.getTopSellers(2).get(0).getDescription());
+              assertEquals("Mobile Phone", restored.getTopSellers(2).get(1).getDescription());
+              assertEquals("Washing Machine", restored.getTopSellers(4).get(2).getDescription());
+              restored.buyProduct("789", 2);
+              assertEquals(0, restored.getStockCount("789"));
+              assertEquals(0, SnapshotFile.load(file, restored));
+            }
+          }
+        } finally {
+          Files.delete(file);
+        }
+      }
+
+      /**
+       * This checks a concurrent shop can be checkpointed while a till keeps buying, and every product in it adds up.
+       */
+      @Test
+      public void snapshotFileWhileBuying() throws Exception {
+        Path file = Files.createTempFile("shop", ".snapshot");
+        try {
+          IShop shop = new ConcurrentShop();
+          for (int i = 0; i < 100; i++) {
+            shop.registerProduct(Factory.getInstance().makeProduct(Integer.toString(i), "Product " + i));
+            shop.addStock(Integer.toString(i), 1000);
+          }
+          Thread till = new Thread(() -> {
+            for (int n = 0; n < 100000; n++) {
+              shop.tryBuy(Integer.toString(n % 100), 1);
+            }
+          });
+          till.start();
+          SnapshotFile.write(shop, file);
+          till.join();
+
+          IShop restored = new ColumnarShop();
+          assertEquals(100, SnapshotFile.load(file, restored));
+          for (int i = 0; i < 100; i++) {
+            String barCode = Integer.toString(i);
+            assertEquals(1000, restored.getStockCount(barCode) + restored.getNumberOfSales(barCode));
+          }
+        } finally {
+          Files.delete(file);
+        }
+      }
+
+      /**
+       * This checks a catalog file loads every product once, in file order, reporting clashes and bad lines together.
+       */
+      @Test
+      public void catalogLoaderReportsConflictsAsBatch() throws Exception {
+        Path csv = Files.createTempFile("catalog", ".csv");
+        Path journal = csv.resolveSibling(csv.getFileName() + ".journal");
+        try (JournaledShop journaled = new JournaledShop(new Shop(), journal)) {
+          Files.write(csv, ("barcode,description,stock\n"
+              + "123,Mobile Phone,5\r\n"
+              + "456,\"Laptop, 15\"\" screen\",3\n"
+              + "\n"
+              + "123,Another Phone,9\n"
+              + "789,Washing Machine,lots\n"
+              + "999,Desktop Computer,1\n"
+              + "111,Kettle,2").getBytes(StandardCharsets.UTF_8));
+          for (IShop shop : new IShop[] {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop(), journaled}) {
+            shop.registerProduct(Factory.getInstance().makeProduct("999", "Old Computer"));
+            CatalogLoader.Report report = new CatalogLoader(2, 16).load(csv, shop);
+
+            assertEquals(3, report.getLoaded());
+            assertEquals(Arrays.asList("123", "999"), report.getConflicts());
+            assertEquals(Arrays.asList(6L), report.getMalformedLines());
+            assertEquals(4, shop.getNumberOfProducts());
+            assertEquals(10, shop.getTotalStockCount());
+            assertEquals(5, shop.getStockCount("123"));
+            assertEquals("Laptop, 15\" screen", shop.getTopSellers(4).get(2).getDescription());
+            BarCodeAlreadyInUseException conflicts = assertThrows(BarCodeAlreadyInUseException.class, report::throwIfConflicts);
+            assertEquals(Arrays.asList("123", "999"), conflicts.getBarCodes());
+          }
+        } finally {
+          Files.delete(csv);
+          Files.deleteIfExists(journal);
+        }
+      }
+
+      /**
+       * This checks interning gives shops the same product for the same barcode and description, and can be turned off.
+       */
+      @Test
+      public void factoryInternsProducts() throws BarCodeAlreadyInUseException, ProductNotRegisteredException {
+        IFactory factory = Factory.getInstance();
+        assertFalse(factory.isInterning());
+        factory.setInterning(true);
+        try {
+          IProduct product1 = factory.makeProduct("123", "Mobile Phone");
+          IProduct product2 = factory.makeProduct("123", "Mobile Phone");
+          IProduct product3 = factory.makeProduct("123", "Laptop Computer");
+          assertTrue(product1 == product2);
+          assertFalse(product1 == product3);
+
+          IShop shop1 = factory.makeShop();
+          IShop shop2 = new ConcurrentShop();
+          shop1.registerProduct(product1);
+          shop2.registerProduct(factory.makeProduct("123", "Mobile Phone"));
+          shop2.unregisterProduct(product1);
+          assertEquals(0, shop2.getNumberOfProducts());
+          assertTrue(shop1.getTopSellers(1).get(0) == product2);
+
+          List<IProduct> held = new ArrayList<>();
+          for (int i = 0; i < 20000; i++) {
+            held.add(factory.makeProduct("" + i, "Product " + i));
+          }
+          for (int i = 0; i < held.size(); i++) {
+            assertTrue(factory.makeProduct("" + i, "Product " + i) == held.get(i));
+          }
+        } finally {
+          factory.setInterning(false);
+        }
+        assertFalse(factory.makeProduct("123", "Mobile Phone") == factory.makeProduct("123", "Mobile Phone"));
+      }
+
+      /**
+       * This checks the factory makes the engine named in a config, and a persistent shop when given a journal.
+       */
+      @Test
+      public void factoryMakesConfiguredShop() throws Exception {
+        IFactory factory = Factory.getInstance();
+        assertTrue(factory.makeShop(ShopConfig.DEFAULT) instanceof Shop);
+        assertTrue(factory.makeShop(ShopConfig.DEFAULT.withEngine(ShopEngine.CONCURRENT).withConcurrencyLevel(8)) instanceof ConcurrentShop);
+        assertTrue(factory.makeShop(ShopConfig.DEFAULT.withEngine(ShopEngine.COLUMNAR).withExpectedProducts(1000)) instanceof ColumnarShop);
+        IShop sharded = factory.makeShop(ShopConfig.DEFAULT.withEngine(ShopEngine.SHARDED).withConcurrencyLevel(4).withExpectedProducts(1000));
+        assertEquals(4, ((ShardedShop) sharded).getShardCount());
+
+        Path journal = Files.createTempFile("shop", ".journal");
+        try {
+          Properties properties = new Properties();
+          properties.setProperty("shop.engine", "concurrent");
+          properties.setProperty("shop.journal", journal.toString());
+          properties.setProperty("shop.fsync", "never");
+          ShopConfig config = ShopConfig.fromProperties(properties);
+          assertEquals(ShopEngine.CONCURRENT, config.getEngine());
+          assertEquals(FsyncPolicy.NEVER, config.getFsyncPolicy());
+
+          IShop shop = factory.makeShop(config);
+          shop.registerProduct(factory.makeProduct("123", "Mobile Phone"));
+          shop.addStock("123", 4);
+          ((JournaledShop) shop).close();
+          try (JournaledShop restarted = (JournaledShop) factory.makeShop(config)) {
+            assertEquals(4, restarted.getStockCount("123"));
+          }
+        } finally {
+          Files.delete(journal);
+        }
+      }
+
+      /**
+       * This checks a snapshot of each kind of shop keeps showing the shop as it was when it was taken.
+       */
+      @Test
+      public void snapshotIsImmutable() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        for (IShop shop : new IShop[] {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()}) {
+          IProduct product1 = Factory.getInstance().makeProduct("123", "Mobile Phone");
+          IProduct product2 = Factory.getInstance().makeProduct("456", "Laptop Computer");
+          IProduct product3 = Factory.getInstance().makeProduct("789", "Washing Machine");
+          shop.registerProduct(product1);
+          shop.registerProduct(product2);
+          shop.registerProduct(product3);
+          shop.addStock("123", 5);
+          shop.addStock("456", 5);
+          shop.buyProduct("456", 2);
+
+          IShopSnapshot snapshot = shop.snapshot();
+          shop.buyProduct("123", 3);
+          shop.unregisterProduct(product2);
+          shop.registerProduct(Factory.getInstance().makeProduct("999", "Desktop Computer"));
+
+          assertEquals(3, snapshot.getNumberOfProducts());
+          assertEquals(8, snapshot.getTotalStockCount());
+          assertEquals(5, snapshot.lookupStock("123"));
+          assertEquals(2, snapshot.lookupSales("456"));
+          assertEquals(IShop.NOT_REGISTERED, snapshot.lookupStock("999"));
+          assertEquals(Arrays.asList(product2, product1), snapshot.getTopSellers(2));
+          assertEquals(product3, snapshot.getStockRecords().get(2).getProduct());
+          assertThrows(UnsupportedOperationException.class, () -> snapshot.getStockRecords().get(0).addStock(1));
+          assertEquals(5, snapshot.getStockRecords().get(0).getStockCount());
+          assertEquals(3, shop.snapshot().lookupSales("123"));
+        }
+      }
+
+      /**
+       * This checks snapshots taken while tills check out baskets never show part of a basket.
+       */
+      @Test
+      public void snapshotIsConsistentWhileBuying() throws Exception {
+        for (IShop shop : new IShop[] {new ConcurrentShop(), Factory.getInstance().makeShardedShop(4)}) {
+          Map<String, Integer> basket = new LinkedHashMap<>();
+          for (int i = 0; i < 50; i++) {
+            shop.registerProduct(Factory.getInstance().makeProduct(Integer.toString(i), "Product " + i));
+            shop.addStock(Integer.toString(i), 4000);
+            basket.put(Integer.toString(i), 1);
+          }
+          Thread[] tills = new Thread[4];
+          for (int t = 0; t < tills.length; t++) {
+            tills[t] = new Thread(() -> {
+              for (int n = 0; n < 1000; n++) {
+                try {
+                  shop.checkout(basket);
+                } catch (StockUnavailableException | ProductNotRegisteredException e) {
+                  throw new IllegalStateException(e);
+                }
+              }
+            });
+            tills[t].start();
+          }
+          int snapshots = 0;
+          while (snapshots < 200 || tills[0].isAlive()) {
+            IShopSnapshot snapshot = shop.snapshot();
+            for (IStockRecord record : snapshot.getStockRecords()) {
+              assertEquals(snapshot.lookupSales("0"), record.getNumberOfSales());
+            }
+            assertEquals(200000, snapshot.getTotalStockCount() + 50 * snapshot.lookupSales("0"));
+            snapshots++;
+          }
+          for (Thread till : tills) {
+            till.join();
+          }
+          assertEquals(4000, shop.snapshot().lookupSales("49"));
+        }
+      }
+
+      /**
+       * This checks sales drop out of the velocity windows as time moves on, and the best seller follows recent sales.
+       */
+      @Test
+      public void salesVelocityFollowsRecentSales() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        long[] now = {0};
+        Clock clock = new Clock() {
+          @Override
+          public ZoneId getZone() {
+            return ZoneOffset.UTC;
+          }
+
+          @Override
+          public Clock withZone(ZoneId zone) {
+            return this;
+          }
+
+          @Override
+          public Instant instant() {
+            return Instant.ofEpochMilli(now[0]);
+          }
+        };
+        IShop shop = Factory.getInstance().makeShop();
+        shop.registerProduct(Factory.getInstance().makeProduct("123", "Mobile Phone"));
+        SalesVelocity velocity = new SalesVelocity(clock);
+        velocity.attach(shop);
+        shop.registerProduct(Factory.getInstance().makeProduct("456", "Laptop Computer"));
+        shop.addStock("123", 100);
+        shop.addStock("456", 100);
+
+        shop.buyProduct("123", 10);
+        now[0] = Duration.ofMinutes(30).toMillis();
+        shop.buyProduct("456", 3);
+        assertEquals("456", velocity.getMostPopular(Duration.ofMinutes(1)).getBarCode());
+        assertEquals("123", velocity.getMostPopular(Duration.ofHours(1)).getBarCode());
+        assertEquals(0, velocity.getSales("123", Duration.ofMinutes(1)));
+        assertEquals(3, velocity.getSales("456", Duration.ofSeconds(30)));
+        assertEquals(0.05, velocity.getSalesRate("456", Duration.ofMinutes(1)), 0.0);
+
+        now[0] = Duration.ofHours(2).toMillis();
+        assertEquals(null, velocity.getMostPopular(Duration.ofHours(1)));
+        assertEquals(13, velocity.getSales("123", Duration.ofDays(1)) + velocity.getSales("456", Duration.ofDays(1)));
+        assertEquals(IShop.NOT_REGISTERED, velocity.getSales("789", Duration.ofMinutes(1)));
+      }
+
+      /**
+       * This checks a shop that ranks only its best sellers keeps the right ones while more products sell than it ranks.
+       */
+      @Test
+      public void trackedSellersRankBestSellers() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop shop = Factory.getInstance().makeShop(ShopConfig.DEFAULT.withTrackedSellers(2));
+        IProduct[] products = new IProduct[5];
+        for (int i = 0; i < products.length; i++) {
+          products[i] = Factory.getInstance().makeProduct("" + i, "Product " + i);
+          shop.registerProduct(products[i]);
+          shop.addStock("" + i, 100);
+        }
+        assertEquals(products[0], shop.getMostPopular());
+
+        int[] sales = {1, 7, 2, 9, 4};
+        for (int i = 0; i < sales.length; i++) {
+          for (int n = 0; n < sales[i]; n++) {
+            shop.buyProduct("" + i);
+          }
+        }
+        assertEquals(products[3], shop.getMostPopular());
+        assertEquals(Arrays.asList(products[3], products[1]), shop.getTopSellers(5));
+        assertEquals(4, shop.lookupSales("4"));
+
+        // the freed counter goes to the next product to sell, not to product 4 which has sold more
+        shop.unregisterProduct(products[3]);
+        shop.buyProduct("2");
+        assertEquals(Arrays.asList(products[1], products[2]), shop.getTopSellers(5));
+
+        for (ShopEngine engine : new ShopEngine[] {ShopEngine.CONCURRENT, ShopEngine.SHARDED, ShopEngine.COLUMNAR}) {
+          assertThrows(IllegalArgumentException.class,
+              () -> Factory.getInstance().makeShop(ShopConfig.DEFAULT.withEngine(engine).withTrackedSellers(2)));
+        }
+      }
+
+      /**
+       * This checks a chain of different kinds of shops adds up stock and sales across every store.
+       */
+      @Test
+      public void shopChainMergesShops() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop[] shops = {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()};
+        IProduct phone = Factory.getInstance().makeProduct("123", "Mobile Phone");
+        IProduct laptop = Factory.getInstance().makeProduct("456", "Laptop Computer");
+        for (IShop shop : shops) {
+          shop.registerProduct(phone);
+          shop.registerProduct(laptop);
+          shop.addStock("123", 10);
+          shop.addStock("456", 10);
+          shop.buyProduct("123", 2);
+        }
+        // the laptop is the best seller of one shop, but sells less over the whole chain
+        shops[3].buyProduct("456", 5);
+        shops[3].registerProduct(Factory.getInstance().makeProduct("789", "Washing Machine"));
+
+        ShopChain chain = new ShopChain(Arrays.asList(shops));
+        assertEquals(67, chain.getTotalStockCount());
+        assertEquals(32, chain.lookupStock("123"));
+        assertEquals(5, chain.lookupSales("456"));
+        assertEquals(0, chain.lookupStock("789"));
+        assertEquals(IShop.NOT_REGISTERED, chain.lookupStock("999"));
+        assertEquals(phone, chain.getMostPopular());
+        assertEquals(Arrays.asList(phone, laptop), chain.getTopSellers(2));
+        assertEquals(3, chain.getTopSellers(5).size());
+        assertEquals(null, new ShopChain(Arrays.asList()).getMostPopular());
+      }
+
+      /**
+       * This checks a shop partitioned over node processes on loopback answers like one shop, before and after a node joins.
+       */
+      @Test
+      public void partitionedShopSpansNodes() throws Exception {
+        Process[] processes = new Process[2];
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+          for (int i = 0; i < processes.length; i++) {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            processes[i] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "-Dshop.engine=concurrent",
+                "impl.ShopServer").redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(processes[i].getInputStream(), StandardCharsets.UTF_8));
+            addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(reader.readLine().trim())));
+          }
+          ConcurrentShop joined = new ConcurrentShop();
+          try (PartitionedShop shop = new PartitionedShop(addresses); ShopServer joining = new ShopServer(joined, 0)) {
+            for (int i = 0; i < 300; i++) {
+              shop.registerProduct(Factory.getInstance().makeProduct("" + i, "Product " + i));
+              shop.addStock("" + i, 10);
+            }
+            shop.buyProduct("42", 7);
+            shop.buyProduct("7", 3);
+            Map<String, Integer> basket = new LinkedHashMap<>();
+            Map<String, Integer> spanning = new LinkedHashMap<>();
+            for (int i = 100; i < 110; i++) {
+              (shop.getNode("" + i).equals(shop.getNode("100")) ? basket : spanning).put("" + i, 1);
+            }
+            assertFalse(spanning.isEmpty());
+            spanning.put("100", 1);
+            assertFalse(shop.checkout(spanning));
+            assertEquals(10, shop.lookupStock("100"));
+            assertTrue(shop.checkout(basket));
+            basket.put("7", 8);
+            assertFalse(shop.checkout(basket));
+            assertEquals(9, shop.lookupStock("100"));
+
+            assertEquals(300, shop.getNumberOfProducts());
+            assertEquals(3000 - 10 - basket.size() + 1, shop.getTotalStockCount());
+            assertEquals("42", shop.getMostPopular().getBarCode());
+            assertEquals("7", shop.getTopSellers(2).get(1).getBarCode());
+
+            IShop occupied = new ConcurrentShop();
+            occupied.registerProduct(Factory.getInstance().makeProduct("999", "Desktop Computer"));
+            try (ShopServer occupiedNode = new ShopServer(occupied, 0)) {
+              assertThrows(IllegalArgumentException.class, () -> shop.addNode(occupiedNode.getAddress()));
+            }
+            assertEquals(2, shop.getNodes().size());
+            assertEquals(300, shop.getNumberOfProducts());
+
+            int moved = shop.addNode(joining.getAddress());
+            assertTrue(moved > 30 && moved < 170, "moved " + moved);
+            assertEquals(moved, joined.getNumberOfProducts());
+            assertEquals(300, shop.getNumberOfProducts());
+            assertEquals(3000 - 10 - basket.size() + 1, shop.getTotalStockCount());
+            for (int i = 0; i < 300; i++) {
+              assertEquals(i == 42 ? 3 : i == 7 ? 7 : i != 7 && basket.containsKey("" + i) ? 9 : 10, shop.lookupStock("" + i));
+            }
+            assertEquals("42", shop.getMostPopular().getBarCode());
+            shop.unregisterProduct(Factory.getInstance().makeProduct("42", "Product 42"));
+            assertEquals("7", shop.getMostPopular().getBarCode());
+          }
+        } finally {
+          for (Process process : processes) {
+            if (process != null) {
+              process.getOutputStream().close();
+              if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+              }
+            }
+          }
+        }
+      }
+
+      /**
+       * This checks a low-stock callback fires once when a sale crosses the threshold, and again only after restocking.
+       */
+      @Test
+      public void lowStockFiresOncePerCrossing() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        for (IShop shop : new IShop[] {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()}) {
+          shop.registerProduct(Factory.getInstance().makeProduct("123", "Mobile Phone"));
+          shop.addStock("123", 10);
+          List<String> alerts = new ArrayList<>();
+          StockThresholds thresholds = new StockThresholds((barCode, stockCount, threshold) -> alerts.add(barCode + " " + stockCount + " " + threshold));
+          thresholds.attach(shop);
+          thresholds.setDefaultThreshold(3);
+          shop.registerProduct(Factory.getInstance().makeProduct("456", "Laptop Computer"));
+          assertTrue(thresholds.setThreshold("456", 0));
+
+          shop.buyProduct("123", 6);
+          shop.buyProduct("123", 2);
+          shop.buyProduct("123");
+          shop.addStock("456", 1);
+          shop.buyProduct("456");
+          assertEquals(Arrays.asList("123 2 3", "456 0 0"), alerts);
+
+          shop.addStock("123", 1);
+          shop.buyProduct("123");
+          assertEquals(2, alerts.size());
+          shop.addStock("123", 5);
+          shop.buyProduct("123", 4);
+          assertEquals(Arrays.asList("123 2 3", "456 0 0", "123 2 3"), alerts);
+          assertEquals(3, thresholds.getThreshold("123"));
+          assertFalse(thresholds.setThreshold("789", 1));
+        }
+      }
+
+      /**
+       * This checks the barcode index lists a manufacturer's products by prefix and a range of barcodes, in order.
+       */
+      @Test
+      public void barcodeIndexFindsPrefixAndRange() throws BarCodeAlreadyInUseException, ProductNotRegisteredException {
+        IShop shop = new ConcurrentShop();
+        IProduct phone = Factory.getInstance().makeProduct("5012345000017", "Mobile Phone");
+        shop.registerProduct(phone);
+        BarcodeIndex index = new BarcodeIndex();
+        index.attach(shop);
+        Map<String, IProduct> products = new LinkedHashMap<>();
+        for (String barCode : new String[] {"5012349000013", "5012345000024", "501234", "5012350000010", "4012345000011"}) {
+          products.put(barCode, Factory.getInstance().makeProduct(barCode, "Product " + barCode));
+          shop.registerProduct(products.get(barCode));
+        }
+        shop.unregisterProduct(phone);
+
+        Iterator<IProduct> manufacturer = index.productsWithPrefix("501234");
+        assertEquals(products.get("501234"), manufacturer.next());
+        assertEquals(products.get("5012345000024"), manufacturer.next());
+        assertEquals(products.get("5012349000013"), manufacturer.next());
+        assertFalse(manufacturer.hasNext());
+
+        Iterator<IProduct> range = index.productsInRange("5012345000000", "5012350000010");
+        assertEquals(products.get("5012345000024"), range.next());
+        assertEquals(products.get("5012349000013"), range.next());
+        assertEquals(products.get("5012350000010"), range.next());
+        assertFalse(range.hasNext());
+
+        Iterator<IProduct> upTo = index.productsInRange(null, "501234");
+        assertEquals(products.get("4012345000011"), upTo.next());
+        assertEquals(products.get("501234"), upTo.next());
+        assertFalse(upTo.hasNext());
+        assertFalse(index.productsWithPrefix("9").hasNext());
+        assertFalse(index.productsInRange("6", "5").hasNext());
+
+        index.productUnregistered(Factory.getInstance().makeProduct("501234", "Stale Product"), 0);
+        assertEquals(products.get("501234"), index.productsWithPrefix("501234").next());
+      }
+
+      /**
+       * This checks description search matches every query word, expands prefixes and ranks specific matches first.
+       */
+      @Test
+      public void descriptionSearchFindsWords() throws BarCodeAlreadyInUseException, ProductNotRegisteredException {
+        IShop shop = Factory.getInstance().makeShop();
+        IProduct washer = Factory.getInstance().makeProduct("1", "Washing Machine");
+        shop.registerProduct(washer);
+        DescriptionIndex index = new DescriptionIndex();
+        index.attach(shop);
+        IProduct dryer = Factory.getInstance().makeProduct("2", "Washer-Dryer combination machine, 8kg");
+        IProduct phone = Factory.getInstance().makeProduct("3", "Mobile Phone");
+        IProduct sewing = Factory.getInstance().makeProduct("4", "Sewing MACHINE");
+        shop.registerProduct(dryer);
+        shop.registerProduct(phone);
+        shop.registerProduct(sewing);
+        for (int i = 0; i < 50; i++) {
+          shop.registerProduct(Factory.getInstance().makeProduct("x" + i, "Spare part " + i + " for machine"));
+        }
+
+        assertEquals(Arrays.asList(washer, sewing), index.search("machine", 2));
+        assertEquals(Arrays.asList(washer, dryer), index.search("wash* MACHINE", 5));
+        assertEquals(Arrays.asList(dryer), index.search("8KG", 5));
+        assertEquals(Arrays.asList(), index.search("phone machine", 5));
+        assertEquals(53, index.search("machine", 100).size());
+
+        shop.unregisterProduct(washer);
+        for (int i = 0; i < 50; i++) {
+          shop.unregisterProduct(shop.snapshot().getStockRecords().get(3).getProduct());
+        }
+        assertEquals(Arrays.asList(sewing, dryer), index.search("machine", 5));
+        assertEquals(Arrays.asList(dryer), index.search("wash*", 5));
+        assertEquals(Arrays.asList(phone), index.search("mob*", 5));
+
+        List<IProduct> kept = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+          IProduct part = Factory.getInstance().makeProduct("y" + i, "Machine part " + i);
+          shop.registerProduct(part);
+          if (i % 50 != 0) {
+            shop.unregisterProduct(part);
+          } else {
+            kept.add(part);
+          }
+        }
+        IProduct machine = Factory.getInstance().makeProduct("5", "Machine");
+        shop.registerProduct(machine);
+        assertEquals(Arrays.asList(machine, sewing, kept.get(0), kept.get(1)), index.search("machine", 4));
+        assertEquals(4, index.search("machine part*", 10).size());
+        assertEquals(Arrays.asList(phone), index.search("mob*", 5));
+      }
+
+      /**
+       * This checks the best seller of the concurrent shops is right once tills racing on the leaders have finished,
+       * and is never missing while the best seller is unregistered.
+       */
+      @Test
+      public void concurrentMostPopularSettlesOnLeader() throws Exception {
+        for (IShop shop : new IShop[] {new ConcurrentShop(), Factory.getInstance().makeShardedShop(4)}) {
+          IProduct[] products = new IProduct[8];
+          for (int i = 0; i < products.length; i++) {
+            products[i] = Factory.getInstance().makeProduct("" + i, "Product " + i);
+            shop.registerProduct(products[i]);
+            shop.addStock("" + i, 100000);
+          }
+          Thread[] tills = new Thread[4];
+          for (int t = 0; t < tills.length; t++) {
+            int seed = t;
+            tills[t] = new Thread(() -> {
+              Random random = new Random(seed);
+              for (int n = 0; n < 20000; n++) {
+                shop.tryBuy("" + random.nextInt(3), 1);
+              }
+            });
+            tills[t].start();
+          }
+          for (Thread till : tills) {
+            till.join();
+          }
+          IProduct leader = products[0];
+          for (IProduct product : products) {
+            if (shop.lookupSales(product.getBarCode()) > shop.lookupSales(leader.getBarCode())) {
+              leader = product;
+            }
+          }
+          assertEquals(leader, shop.getMostPopular());
+
+          shop.unregisterProduct(leader);
+          assertNotNull(shop.getMostPopular());
+          assertTrue(shop.getMostPopular() != leader);
+        }
+      }
+
+      /**
+       * This checks a journal keeps descriptions of any length and character exactly, and refuses to open if a record or its length before the end is corrupt.
+       */
+      @Test
+      public void journaledShopFailsOnCorruptRecord() throws Exception {
+        Path journal = Files.createTempFile("shop", ".journal");
+        try {
+          StringBuilder description = new StringBuilder("Café 🛒 \u0000");
+          while (description.length() < 70000) {
+            description.append("Long description ");
+          }
+          try (JournaledShop shop = new JournaledShop(new Shop(), journal)) {
+            shop.registerProduct(Factory.getInstance().makeProduct("123", description.toString()));
+            shop.addStock("123", 5);
+          }
+          try (JournaledShop shop = new JournaledShop(new Shop(), journal)) {
+            assertEquals(description.toString(), shop.getProduct("123").getDescription());
+            assertEquals(5, shop.getStockCount("123"));
+          }
+
+          byte[] bytes = Files.readAllBytes(journal);
+          bytes[20] ^= 1;
+          Files.write(journal, bytes);
+          assertThrows(IOException.class, () -> new JournaledShop(new Shop(), journal).close());
+          assertEquals(bytes.length, Files.size(journal));
+
+          bytes[20] ^= 1;
+          Files.write(journal, bytes);
+          try (JournaledShop shop = new JournaledShop(new Shop(), journal)) {
+            shop.addStock("123", 1);
+          }
+          bytes = Files.readAllBytes(journal);
+          int second = 12 + ByteBuffer.wrap(bytes).getInt(0);
+          bytes[second] ^= 0x40;
+          Files.write(journal, bytes);
+          assertThrows(IOException.class, () -> new JournaledShop(new Shop(), journal).close());
+          assertEquals(bytes.length, Files.size(journal));
+        } finally {
+          Files.delete(journal);
+        }
+      }
+
+      /**
+       * This checks low-stock thresholds judge a product on its live stock, so events that arrive out of order neither re-arm nor fire it.
+       */
+      @Test
+      public void lowStockIgnoresStaleEvents() throws BarCodeAlreadyInUseException, ProductNotRegisteredException, StockUnavailableException {
+        IShop shop = new ConcurrentShop();
+        shop.registerProduct(Factory.getInstance().makeProduct("123", "Mobile Phone"));
+        shop.addStock("123", 10);
+        List<String> alerts = new ArrayList<>();
+        StockThresholds thresholds = new StockThresholds((barCode, stockCount, threshold) -> alerts.add(barCode + " " + stockCount + " " + threshold));
+        thresholds.attach(shop);
+        thresholds.setDefaultThreshold(5);
+
+        shop.buyProduct("123", 6);
+        thresholds.stockAdded("123", 10, 14);
+        shop.buyProduct("123");
+        assertEquals(Arrays.asList("123 4 5"), alerts);
+
+        shop.addStock("123", 10);
+        thresholds.productSold("123", 1, 2);
+        assertEquals(1, alerts.size());
+        shop.buyProduct("123", 9);
+        assertEquals(Arrays.asList("123 4 5", "123 4 5"), alerts);
+      }
+
+      /**
+       * This checks every engine refuses stock or sales that would overflow a product's counts or the shop's total, and changes nothing.
+       */
+      @Test
+      public void shopsRefuseCountOverflow() throws BarCodeAlreadyInUseException, StockUnavailableException, ProductNotRegisteredException {
+        for (IShop shop : new IShop[] {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()}) {
+          shop.registerProduct(Factory.getInstance().makeProduct("123", "Mobile Phone"));
+          shop.registerProduct(Factory.getInstance().makeProduct("456", "Laptop Computer"));
+          assertEquals(ShopResult.SUCCESS, shop.tryAddStock("123", Integer.MAX_VALUE - 1));
+          assertEquals(ShopResult.SUCCESS, shop.tryBuy("123", Integer.MAX_VALUE - 1));
+          assertEquals(ShopResult.SUCCESS, shop.tryAddStock("123", Integer.MAX_VALUE - 5));
+          assertEquals(ShopResult.INVALID_ARGUMENT, shop.tryAddStock("123", 10));
+          assertEquals(ShopResult.INVALID_ARGUMENT, shop.tryBuy("123", 2));
+          assertEquals(ShopResult.SUCCESS, shop.tryBuy("123", 1));
+
+          shop.addStock("456", 5);
+          Map<String, Integer> basket = new LinkedHashMap<>();
+          basket.put("456", 2);
+          basket.put("123", 1);
+          assertFalse(shop.checkout(basket));
+          assertEquals(5, shop.lookupStock("456"));
+          assertEquals(0, shop.lookupSales("456"));
+          assertEquals(Integer.MAX_VALUE - 6, shop.lookupStock("123"));
+          assertEquals(Integer.MAX_VALUE, shop.lookupSales("123"));
+          assertEquals("123", shop.getMostPopular().getBarCode());
+
+          assertEquals(Integer.MAX_VALUE - 1, shop.getTotalStockCount());
+          assertEquals(ShopResult.INVALID_ARGUMENT, shop.tryAddStock("456", 2));
+          assertEquals(5, shop.lookupStock("456"));
+          assertEquals(ShopResult.SUCCESS, shop.tryAddStock("456", 1));
+          assertEquals(Integer.MAX_VALUE, shop.getTotalStockCount());
+        }
+      }
+
+      /**
+       * This checks a partitioned shop disconnects the nodes whose replies it left unread when another node fails, so their next answers aren't stale.
+       */
+      @Test
+      public void partitionedShopRecoversFromFailedNode() throws Exception {
+        ShopServer first = new ShopServer(new ConcurrentShop(), 0);
+        try (ShopServer second = new ShopServer(new ConcurrentShop(), 0);
+            PartitionedShop shop = new PartitionedShop(Arrays.asList(first.getAddress(), second.getAddress()))) {
+          String onSecond = null;
+          for (int i = 0; i < 20; i++) {
+            shop.registerProduct(Factory.getInstance().makeProduct("" + i, "Product " + i));
+            shop.addStock("" + i, i + 1);
+            if (shop.getNode("" + i).equals(second.getAddress())) {
+              onSecond = "" + i;
+            }
+          }
+          assertTrue(onSecond != null);
+          first.close();
+          assertThrows(UncheckedIOException.class, shop::getTotalStockCount);
+          assertEquals(Integer.parseInt(onSecond) + 1, shop.lookupStock(onSecond));
+          assertEquals(0, shop.lookupSales(onSecond));
+        } finally {
+          first.close();
+        }
+      }
+
+      /**
+       * This checks a journaled shop checkpoints into a short journal while tills keep buying, and restarts to the same state.
+       */
+      @Test
+      public void journaledShopCheckpointShortensJournal() throws Exception {
+        Path journal = Files.createTempFile("shop", ".journal");
+        try {
+          try (JournaledShop shop = new JournaledShop(new ConcurrentShop(), journal, FsyncPolicy.NEVER)) {
+            for (int i = 0; i < 50; i++) {
+              shop.registerProduct(Factory.getInstance().makeProduct("" + i, i % 10 == 0 ? null : "Product " + i));
+              shop.addStock("" + i, 1000);
+            }
+            shop.unregisterProduct(shop.getProduct("7"));
+            for (int round = 0; round < 20; round++) {
+              for (int i = 0; i < 50; i++) {
+                shop.buyProduct("" + i, 1 + i % 3);
+              }
+            }
+            long before = Files.size(journal);
+            Thread till = new Thread(() -> {
+              for (int round = 0; round < 2000; round++) {
+                shop.tryBuy("" + (round % 50), 1);
+              }
+            });
+            till.start();
+            assertEquals(49, shop.checkpoint());
+            till.join();
+            assertEquals(49, shop.checkpoint());
+            assertTrue(Files.size(journal) < before / 5, Files.size(journal) + " against " + before);
+            shop.registerProduct(Factory.getInstance().makeProduct("7", "Returned Product"));
+            shop.addStock("7", 3);
+          }
+
+          IShopSnapshot expected;
+          try (JournaledShop shop = new JournaledShop(new Shop(), journal)) {
+            expected = shop.snapshot();
+            assertEquals(50, shop.getNumberOfProducts());
+            assertEquals(null, shop.getProduct("10").getDescription());
+            assertEquals(3, shop.getStockCount("7"));
+            for (int i = 0; i < 50; i++) {
+              assertEquals(i == 7 ? 3 : 1000, shop.lookupStock("" + i) + shop.lookupSales("" + i));
+            }
+            shop.checkpoint();
+          }
+          try (JournaledShop shop = new JournaledShop(new ColumnarShop(), journal)) {
+            List<IStockRecord> records = shop.snapshot().getStockRecords();
+            assertEquals(expected.getStockRecords().size(), records.size());
+            for (int i = 0; i < records.size(); i++) {
+              IStockRecord record = expected.getStockRecords().get(i);
+              assertEquals(record.getProduct().getBarCode(), records.get(i).getProduct().getBarCode());
+              assertEquals(record.getStockCount(), records.get(i).getStockCount());
+              assertEquals(record.getNumberOfSales(), records.get(i).getNumberOfSales());
+            }
+          }
+        } finally {
+          Files.delete(journal);
+        }
+      }
+
+      /**
+       * This checks listeners attached before a bulk load hear about every product it adds.
+       */
+      @Test
+      public void catalogLoadTellsListeners() throws Exception {
+        Path csv = Files.createTempFile("catalog", ".csv");
+        try {
+          Files.write(csv, "123,Mobile Phone,5\n456,Laptop Computer,0\n789,Washing Machine,2\n".getBytes(StandardCharsets.UTF_8));
+          for (IShop shop : new IShop[] {Factory.getInstance().makeShop(), new ConcurrentShop(), Factory.getInstance().makeShardedShop(2), new ColumnarShop()}) {
+            BarcodeIndex barcodes = new BarcodeIndex();
+            barcodes.attach(shop);
+            List<String> alerts = new ArrayList<>();
+            StockThresholds thresholds = new StockThresholds((barCode, stockCount, threshold) -> alerts.add(barCode));
+            thresholds.setDefaultThreshold(3);
+            thresholds.attach(shop);
+            assertEquals(3, new CatalogLoader().load(csv, shop).getLoaded());
+            assertEquals("Laptop Computer", barcodes.productsWithPrefix("45").next().getDescription());
+            shop.buyProduct("123", 3);
+            assertEquals(Arrays.asList("123"), alerts);
+          }
+        } finally {
+          Files.delete(csv);
+        }
+      }
 
 }